@@ -0,0 +1,155 @@
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe date parser with a cache for already parsed dates.
+ * The input data contains only a few thousand different dates, so nearly every date is parsed only once.
+ * Dates in the format yyyy-MM-dd are converted directly from their digits, other patterns use a DateTimeFormatter.
+ * A date is always the beginning of the day in UTC, independent of the time zone of the system, so all readers
+ * (line reader, memory-mapped and parallel parser, snapshot, store, sorter) get the same timestamps.
+ *
+ * @author Leo Knoll
+ */
+public class DateParser {
+
+    public static final String DEFAULT_PATTERN = "yyyy-MM-dd";
+    public static final long SECONDS_PER_DAY = 24 * 60 * 60;
+    public static final long MILLIS_PER_DAY = SECONDS_PER_DAY * 1000;
+
+    private static final int MAX_CACHE_SIZE = 1 << 16; // stop caching if the data contains a lot more dates
+
+    private final String pattern;
+    private final boolean defaultPattern;
+    private final DateTimeFormatter formatter;
+
+    private final ConcurrentHashMap<String, Long> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Initializes DateParser object.
+     * @param pattern the date pattern, see DateTimeFormatter
+     */
+    public DateParser(String pattern) {
+        this.pattern = pattern;
+        this.defaultPattern = DEFAULT_PATTERN.equals(pattern);
+        this.formatter = DateTimeFormatter.ofPattern(pattern);
+    }
+
+    /**
+     * Parses a date into the number of days since 1970-01-01.
+     * @param string the date
+     * @return the epoch day
+     */
+    public long parseEpochDay(String string) {
+        return get(string);
+    }
+
+    /**
+     * Parses a date into the timestamp of the beginning of the day in UTC.
+     * @param string the date
+     * @return the timestamp in milliseconds
+     */
+    public long parseMillis(String string) {
+        return parseEpochDay(string) * MILLIS_PER_DAY;
+    }
+
+    /**
+     * Parses the date column of an input line, either a UNIX timestamp in milliseconds or a date string.
+     * @param string the date column
+     * @return the UNIX timestamp in seconds, 0 for an empty column
+     */
+    public long parseTimestamp(String string) {
+        String trimmed = string.trim();
+        if (trimmed.isEmpty()) {
+            return 0;
+        }
+        for (int i = 0; i < trimmed.length(); i++) {
+            char c = trimmed.charAt(i);
+            if ((c < '0' || c > '9') && !(i == 0 && c == '-')) {
+                return parseEpochDay(trimmed) * SECONDS_PER_DAY;
+            }
+        }
+        return Long.parseLong(trimmed) / 1000; // because of unix timestamp conversion
+    }
+
+    /**
+     * Formats the day of a timestamp (in UTC) using the pattern of the parser.
+     * @param millis the timestamp in milliseconds
+     * @return the formatted date
+     */
+    public String format(long millis) {
+        return formatter.format(LocalDate.ofEpochDay(Math.floorDiv(millis, MILLIS_PER_DAY)));
+    }
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * Returns true if the pattern is yyyy-MM-dd, only then dates may be converted directly from their digits.
+     */
+    public boolean isDefaultPattern() {
+        return defaultPattern;
+    }
+
+    private long get(String string) {
+        Long date = cache.get(string);
+        if (date == null) {
+            date = parse(string);
+            if (cache.size() < MAX_CACHE_SIZE) {
+                cache.putIfAbsent(string, date);
+            }
+        }
+        return date;
+    }
+
+    private long parse(String string) {
+        long epochDay;
+        String trimmed = string.trim();
+        if (defaultPattern && isDefaultFormat(trimmed)) {
+            epochDay = toEpochDay(digits(trimmed, 0, 4), digits(trimmed, 5, 7), digits(trimmed, 8, 10));
+        } else {
+            try {
+                epochDay = LocalDate.parse(trimmed, formatter).toEpochDay();
+            } catch (DateTimeParseException e) {
+                throw new RuntimeException("Date format is not " + pattern + ": " + string);
+            }
+        }
+        return epochDay;
+    }
+
+    private static boolean isDefaultFormat(String string) {
+        if (string.length() != 10 || string.charAt(4) != '-' || string.charAt(7) != '-') {
+            return false;
+        }
+        int month = digits(string, 5, 7);
+        int day = digits(string, 8, 10);
+        return digits(string, 0, 4) >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31;
+    }
+
+    private static int digits(String string, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = string.charAt(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Converts a date of the gregorian calendar into the days since 1970-01-01.
+     */
+    public static long toEpochDay(int year, int month, int day) {
+        // shift year so that it starts in march, the leap day is then at the end of the year
+        long y = (month <= 2) ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -6,10 +6,17 @@ import java.util.Random;
  */
 public class DistributedDataSetIterator extends SingleDataSetIterator{
 
+    // decides if a line is used for testing, is created in splitData (no initializer, see SeparatedDataSetIterator)
+    private Random random;
+
     public DistributedDataSetIterator(String dataFilePath, String delimiter, int inputDays, double splitRatio, String model, boolean addMissingDays, int skipFirstLines, boolean average) {
         super(dataFilePath, delimiter, inputDays, splitRatio, model, addMissingDays, skipFirstLines, average);
     }
 
+    public DistributedDataSetIterator(String dataFilePath, String delimiter, int inputDays, double splitRatio, String model, boolean addMissingDays, int skipFirstLines, boolean average, RebateReaderOptions options) {
+        super(dataFilePath, delimiter, inputDays, splitRatio, model, addMissingDays, skipFirstLines, average, options);
+    }
+
     @Override
     void splitData(double splitRatio) {
         // Check if data-size is big enough
@@ -18,18 +25,40 @@ public class DistributedDataSetIterator extends SingleDataSetIterator{
             System.exit(-1);
         }
 
-        Random random = new Random(1234);
-        for (RebateData data : allData) {
+        random = new Random(1234);
+        for (int i = 0; i < allData.size(); i++) {
+            boolean test = random.nextDouble() < 0.5;
+            if (test) {
+                testData.add(allData, i);
+            } else {
+                trainData.add(allData, i);
+            }
+        }
+        trainSize = trainData.size();
+
+        test = generateTestDataSet(testData, 0, testData.size());
+        System.out.println("Test data set size: " + test.size());
+        System.out.println("Training data set size: " + trainSize);
+    }
+
+    /**
+     * New lines are distributed randomly like in splitData, the test windows are created again.
+     */
+    @Override
+    void extendData() {
+        // all lines before the new ones are already distributed
+        for (int i = trainData.size() + testData.size(); i < allData.size(); i++) {
             boolean test = random.nextDouble() < 0.5;
             if (test) {
-                testDataList.add(data);
+                testData.add(allData, i);
             } else {
-                trainDataList.add(data);
+                trainData.add(allData, i);
             }
         }
+        trainSize = trainData.size();
 
-        test = generateTestDataSet(testDataList);
+        test = generateTestDataSet(testData, 0, testData.size());
         System.out.println("Test data set size: " + test.size());
-        System.out.println("Training data set size: " + trainDataList.size());
+        System.out.println("Training data set size: " + trainSize);
     }
 }
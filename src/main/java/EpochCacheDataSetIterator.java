@@ -0,0 +1,462 @@
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Writes the mini-batches of the first epoch to a cache file and replays them from the memory-mapped file
+ * in the following epochs, instead of building the same mini-batches again in every epoch.
+ * The file starts with a key of the input file (size, modification time and hash), the iterator, the window
+ * parameters and the min and max values. A cache with another key is written again, so the cache of the last
+ * training run is replayed from the first epoch on if nothing changed.
+ * The file is written to a temporary file and renamed when the epoch is complete, a canceled epoch leaves no cache.
+ * The cache is not used when the training windows are shuffled, every epoch has other mini-batches then.
+ *
+ * @author Leo Knoll
+ */
+public class EpochCacheDataSetIterator implements DataSetIterator {
+
+    public static final String FILE_SUFFIX = ".epochs";
+
+    private static final long MAGIC = 0x4E4144494E455043L; // "NADINEPC"
+    private static final int VERSION = 1;
+    private static final int TRAILER_BYTES = 12;            // index position and number of mini-batches
+    private static final long MAP_REGION = 256L * 1024 * 1024;
+
+    // flags of a mini-batch
+    private static final int FLAG_LAST_OF_MODEL = 1;
+    private static final int FLAG_MASKS = 2;
+
+    // modes
+    private static final int MODE_OFF = 0;
+    private static final int MODE_RECORD = 1;
+    private static final int MODE_REPLAY = 2;
+
+    private final PrefetchingDataSetIterator source;
+    private final File cacheFile;
+    private final boolean doublePrecision;
+    private byte[] key;
+    private int mode;
+
+    // recording of the current epoch
+    private File tempFile;
+    private RandomAccessFile output;
+    private long[] offsets;
+    private int recorded;
+    private ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+
+    // replay
+    private RandomAccessFile input;
+    private long[] index;
+    private int count;
+    private int cursor;
+    private boolean needsReset = false;
+    private ByteBuffer region;
+    private long regionStart;
+    private long regionEnd;
+    private final NDArrayBuffer features = new NDArrayBuffer();
+    private final NDArrayBuffer labels = new NDArrayBuffer();
+    private final NDArrayBuffer featuresMask = new NDArrayBuffer();
+    private final NDArrayBuffer labelsMask = new NDArrayBuffer();
+
+    /**
+     * @param source the mini-batches of the iterator, it must be at the start of an epoch
+     * @param options epochCache enables the cache, the cache file is kept in the sort directory
+     */
+    public EpochCacheDataSetIterator(PrefetchingDataSetIterator source, RebateReaderOptions options) {
+        this.source = source;
+        this.doublePrecision = features.isDoublePrecision();
+        RebateDataSetIterator iterator = source.getIterator();
+        this.cacheFile = new File(options.getSortDirectory(),
+            new File(iterator.dataFilePath).getName() + "." + iterator.getClass().getSimpleName() + FILE_SUFFIX);
+
+        mode = MODE_OFF;
+        if (!options.isEpochCache()) {
+            return;
+        }
+        if (options.isShuffle()) {
+            System.out.println("Epoch cache is not used, the training windows are shuffled.");
+            return;
+        }
+        try {
+            key = createKey(iterator, options);
+            if (open()) {
+                System.out.println("Replay mini-batches from epoch cache " + cacheFile);
+                mode = MODE_REPLAY;
+            } else {
+                mode = MODE_RECORD;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not open epoch cache " + cacheFile + ": " + e.getMessage());
+            mode = MODE_OFF;
+        }
+    }
+
+    /**
+     * Everything the mini-batches depend on, a cache with another key is outdated.
+     */
+    private byte[] createKey(RebateDataSetIterator iterator, RebateReaderOptions options) throws IOException {
+        String path = iterator.dataFilePath;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream key = new DataOutputStream(bytes);
+        key.writeUTF(iterator.getClass().getName());
+        key.writeUTF(new File(path).getAbsolutePath());
+        key.writeLong(RebateFileSet.getLength(path));
+        key.writeLong(RebateFileSet.getLastModified(path));
+        key.writeLong(RebateFileSet.isFileSet(path) ? 0 : RebateSnapshot.hash(new File(path)));
+        key.writeUTF(iterator.delimiter);
+        key.writeInt(iterator.skipFirstLines);
+        key.writeUTF(iterator.model);
+        key.writeDouble(iterator.splitRatio);
+        key.writeBoolean(iterator.addMissingDays);
+        key.writeInt(iterator.getInputDays());
+        key.writeBoolean(options.isAggregate());
+        key.writeBoolean(options.isExternalSort());
+        key.writeUTF(StringReplacer.getDateParser().getPattern());
+        key.writeBoolean(options.isModelIndex());
+        key.writeBoolean(options.isPackedSequences());
+        key.writeInt(options.getSequenceLength());
+        key.writeBoolean(doublePrecision);
+        key.writeInt(iterator.totalExamples());
+        for (int i = 0; i < iterator.minArray.length; i++) {
+            key.writeDouble(iterator.minArray[i]);
+            key.writeDouble(iterator.maxArray[i]);
+        }
+        key.flush();
+        return bytes.toByteArray();
+    }
+
+    // -------------------------------------------------- Replay --------------------------------------------------- //
+
+    /**
+     * Opens the cache file for replay.
+     * @return false if there is no cache file or it does not match the key
+     */
+    private boolean open() throws IOException {
+        if (!cacheFile.isFile() || cacheFile.length() < 16 + TRAILER_BYTES) {
+            return false;
+        }
+        RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            ByteBuffer prefix = readFully(channel, 0, 16);
+            if (prefix.getLong() != MAGIC || prefix.getInt() != VERSION || prefix.getInt() != key.length
+                || !Arrays.equals(readFully(channel, 16, key.length).array(), key)) {
+                System.out.println("Epoch cache " + cacheFile + " is outdated.");
+                file.close();
+                return false;
+            }
+            ByteBuffer trailer = readFully(channel, channel.size() - TRAILER_BYTES, TRAILER_BYTES);
+            long indexPosition = trailer.getLong();
+            int batches = trailer.getInt();
+            long[] positions = new long[batches + 1];
+            readFully(channel, indexPosition, positions.length * 8).asLongBuffer().get(positions);
+
+            input = file;
+            index = positions;
+            count = batches;
+            cursor = 0;
+            needsReset = false;
+            region = null;
+            return true;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the mapped bytes of a mini-batch, a new region of the file is mapped if needed.
+     */
+    private ByteBuffer map(int batch) throws IOException {
+        long start = index[batch];
+        long end = index[batch + 1];
+        if (region == null || start < regionStart || end > regionEnd) {
+            long size = Math.min(Math.max(MAP_REGION, end - start), index[count] - start);
+            region = input.getChannel().map(FileChannel.MapMode.READ_ONLY, start, size);
+            regionStart = start;
+            regionEnd = start + size;
+        }
+        ByteBuffer bytes = region.duplicate();
+        bytes.limit((int) (end - regionStart)).position((int) (start - regionStart));
+        return bytes;
+    }
+
+    private DataSet replay() {
+        try {
+            ByteBuffer bytes = map(cursor++);
+            int flags = bytes.get();
+            needsReset = (flags & FLAG_LAST_OF_MODEL) != 0;
+            INDArray f = read(bytes, features);
+            INDArray l = read(bytes, labels);
+            if ((flags & FLAG_MASKS) != 0) {
+                INDArray fm = read(bytes, featuresMask);
+                INDArray lm = read(bytes, labelsMask);
+                return new DataSet(f, l, fm, lm);
+            }
+            return new DataSet(f, l);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read epoch cache " + cacheFile, e);
+        }
+    }
+
+    private static INDArray read(ByteBuffer bytes, NDArrayBuffer buffer) {
+        int[] shape = new int[bytes.get()];
+        for (int i = 0; i < shape.length; i++) {
+            shape[i] = bytes.getInt();
+        }
+        return buffer.reset(shape).read(bytes).create();
+    }
+
+    // ------------------------------------------------- Recording ------------------------------------------------- //
+
+    private void startRecording() throws IOException {
+        tempFile = new File(cacheFile.getPath() + ".tmp");
+        output = new RandomAccessFile(tempFile, "rw");
+        output.setLength(0);
+        offsets = new long[1024];
+        recorded = 0;
+
+        ByteBuffer header = ByteBuffer.allocate(16 + key.length);
+        header.putLong(MAGIC).putInt(VERSION).putInt(key.length).put(key);
+        header.flip();
+        write(header);
+    }
+
+    private void record(DataSet data, boolean lastOfModel) throws IOException {
+        INDArray fm = data.getFeaturesMaskArray();
+        INDArray lm = data.getLabelsMaskArray();
+        boolean masks = fm != null && lm != null;
+        INDArray[] arrays = masks ? new INDArray[]{data.getFeatures(), data.getLabels(), fm, lm}
+            : new INDArray[]{data.getFeatures(), data.getLabels()};
+
+        int size = 1;
+        for (INDArray array : arrays) {
+            size += 1 + 4 * array.shape().length + array.length() * (doublePrecision ? 8 : 4);
+        }
+        if (record.capacity() < size) {
+            record = ByteBuffer.allocate(size);
+        }
+        record.clear();
+        record.put((byte) ((lastOfModel ? FLAG_LAST_OF_MODEL : 0) | (masks ? FLAG_MASKS : 0)));
+        for (INDArray array : arrays) {
+            // values in 'f' order like NDArrayBuffer
+            INDArray values = (array.ordering() == 'f' && !array.isView()) ? array : array.dup('f');
+            record.put((byte) values.shape().length);
+            for (int dimension : values.shape()) {
+                record.putInt(dimension);
+            }
+            if (doublePrecision) {
+                for (double value : values.data().asDouble()) {
+                    record.putDouble(value);
+                }
+            } else {
+                for (float value : values.data().asFloat()) {
+                    record.putFloat(value);
+                }
+            }
+        }
+        record.flip();
+
+        if (recorded + 1 == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        offsets[recorded++] = output.getFilePointer();
+        write(record);
+    }
+
+    /**
+     * Writes the index of the complete epoch and renames the temporary file to the cache file.
+     */
+    private void finishRecording() throws IOException {
+        long indexPosition = output.getFilePointer();
+        offsets[recorded] = indexPosition;
+        ByteBuffer buffer = ByteBuffer.allocate((recorded + 1) * 8 + TRAILER_BYTES);
+        buffer.asLongBuffer().put(offsets, 0, recorded + 1);
+        buffer.position((recorded + 1) * 8);
+        buffer.putLong(indexPosition).putInt(recorded);
+        buffer.flip();
+        write(buffer);
+        output.getChannel().force(true);
+        output.close();
+        output = null;
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        System.out.println("Saved " + recorded + " mini-batches in epoch cache " + cacheFile);
+    }
+
+    /**
+     * Deletes the file of an incomplete epoch.
+     */
+    private void abortRecording() {
+        if (output != null) {
+            try {
+                output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            output = null;
+            tempFile.delete();
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        FileChannel channel = output.getChannel();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // ------------------------------------------------- Iterator -------------------------------------------------- //
+
+    @Override
+    public DataSet next() {
+        if (mode == MODE_REPLAY) {
+            if (cursor == count) {
+                throw new NoSuchElementException();
+            }
+            return replay();
+        }
+        DataSet data = source.next();
+        if (mode == MODE_RECORD) {
+            try {
+                if (output == null) {
+                    startRecording();
+                }
+                record(data, source.needsReset());
+            } catch (IOException e) {
+                // cache is only an optimization, continue without it
+                System.err.println("Could not write epoch cache " + cacheFile + ": " + e.getMessage());
+                abortRecording();
+                mode = MODE_OFF;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Returns the next mini-batch, the size is chosen by the wrapped iterator.
+     */
+    @Override public DataSet next(int num) { return next(); }
+
+    @Override
+    public boolean hasNext() {
+        return (mode == MODE_REPLAY) ? cursor < count : source.hasNext();
+    }
+
+    public boolean needsReset() {
+        return (mode == MODE_REPLAY) ? needsReset : source.needsReset();
+    }
+
+    /**
+     * Continues with the next model after a model boundary (see needsReset), otherwise starts a new epoch.
+     * The first complete epoch is saved, the following epochs are replayed from the cache.
+     */
+    @Override
+    public void reset() {
+        if (mode == MODE_REPLAY) {
+            if (!needsReset || cursor == count) {
+                cursor = 0;
+            }
+            needsReset = false;
+            return;
+        }
+        if (source.needsReset() && source.hasNext()) {
+            source.reset(); // next model
+            return;
+        }
+        if (mode == MODE_RECORD && output != null) {
+            if (source.hasNext()) {
+                // epoch was not complete, record the next one
+                abortRecording();
+                source.restartEpoch();
+                return;
+            }
+            try {
+                finishRecording();
+                if (open()) {
+                    mode = MODE_REPLAY;
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("Could not write epoch cache " + cacheFile + ": " + e.getMessage());
+                abortRecording();
+            }
+            mode = MODE_OFF;
+        }
+        source.reset();
+    }
+
+    /**
+     * Stops the wrapped iterator and closes the cache file, an incomplete epoch is not saved.
+     */
+    public void close() {
+        abortRecording();
+        source.close();
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            input = null;
+            region = null;
+            if (mode == MODE_REPLAY) {
+                mode = MODE_OFF;
+            }
+        }
+    }
+
+    public File getCacheFile() {
+        return cacheFile;
+    }
+
+    @Override public int totalExamples() { return source.totalExamples(); }
+
+    @Override public int inputColumns() { return source.inputColumns(); }
+
+    @Override public int totalOutcomes() { return source.totalOutcomes(); }
+
+    @Override public boolean resetSupported() { return true; }
+
+    @Override public boolean asyncSupported() { return false; }
+
+    @Override public int batch() { return source.batch(); }
+
+    @Override public int cursor() { return source.cursor(); }
+
+    @Override public int numExamples() { return source.numExamples(); }
+
+    @Override public void setPreProcessor(DataSetPreProcessor dataSetPreProcessor) {
+        throw new UnsupportedOperationException("Not Implemented");
+    }
+
+    @Override public DataSetPreProcessor getPreProcessor() { throw new UnsupportedOperationException("Not Implemented"); }
+
+    @Override public List<String> getLabels() { throw new UnsupportedOperationException("Not Implemented"); }
+}
@@ -0,0 +1,451 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parser for input files in the format MODEL;MODELYEAR;INVOICEDATE;REBATE;SALES.
+ * The file is memory-mapped and each field is scanned byte by byte directly into primitive values,
+ * no line strings and no String arrays are created. The model name is only decoded when it changes.
+ * Dates are either UNIX timestamps in milliseconds or dates (yyyy-MM-dd is read directly as UTC midnight,
+ * other formats with the date parser), both are returned as UNIX timestamp in seconds.
+ * Gzip files can not be mapped, they are decompressed ahead of the parser (see ParallelGzipInputStream)
+ * and parsed block by block with the same scanner.
+ *
+ * @author Leo Knoll
+ */
+public class MappedRebateParser {
+
+    /**
+     * Receives the parsed values of each line.
+     */
+    public interface RowHandler {
+        void handleRow(String model, int year, long date, double rebate, int sales);
+    }
+
+    private static final int COLUMNS = 5;
+    private static final long MAX_REGION_SIZE = 1 << 28; // map at most 256 MB at once
+    private static final int STREAM_BLOCK_SIZE = 1 << 20; // parse decompressed data in blocks of 1 MB
+    private static final long UNIX_TIMESTAMP_DAY = 24*60*60;
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+        1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+
+    private final byte delimiter;
+    private final int skipFirstLines;
+
+    // optional filter, lines of other models are skipped without decoding them
+    private byte[] modelFilter = null;
+
+    // last decoded model, reused as long as the following lines have the same model
+    private byte[] lastModelBytes = new byte[64];
+    private int lastModelLength = -1;
+    private String lastModel = null;
+
+    // threads decompressing gzip files
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors();
+
+    // parser for dates which are not in the format yyyy-MM-dd
+    private DateParser dateParser = StringReplacer.getDateParser();
+
+    // start of each field in the current line (+ end of line)
+    private final int[] fieldStarts = new int[COLUMNS + 1];
+
+    private int lineNumber;
+    private long rangeStart;
+    private long parsedBytes;
+    private long parsedLines;
+    private long parseTime;
+
+    /**
+     * Initializes MappedRebateParser object.
+     * @param delimiter the delimiter used to separate columns, has to be a single character
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     */
+    public MappedRebateParser(String delimiter, int skipFirstLines) {
+        if (delimiter.length() != 1 || delimiter.charAt(0) > 127) {
+            throw new IllegalArgumentException("Memory-mapped parser only supports single ASCII character delimiters, got: " + delimiter);
+        }
+        this.delimiter = (byte) delimiter.charAt(0);
+        this.skipFirstLines = skipFirstLines;
+    }
+
+    /**
+     * Only lines with exactly this model are passed to the handler.
+     * @param model the model name, null to disable the filter
+     */
+    public void setModelFilter(String model) {
+        modelFilter = (model == null) ? null : model.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sets the parser for dates which are neither UNIX timestamps nor in the format yyyy-MM-dd.
+     * @param dateParser the date parser, default is the parser of StringReplacer
+     */
+    public void setDateParser(DateParser dateParser) {
+        this.dateParser = dateParser;
+    }
+
+    /**
+     * Sets the number of threads decompressing the members of gzip files.
+     * @param decompressionThreads the number of threads, default is the number of cores
+     */
+    public void setDecompressionThreads(int decompressionThreads) {
+        this.decompressionThreads = Math.max(1, decompressionThreads);
+    }
+
+    /**
+     * Parses the whole file and passes each line to the handler.
+     * @param filename the path to the file containing the data
+     * @param handler the handler receiving the parsed values
+     * @throws IOException if the file can not be read
+     */
+    public void parse(String filename, RowHandler handler) throws IOException {
+        parse(filename, 0, Long.MAX_VALUE, handler);
+    }
+
+    /**
+     * Parses all lines between two byte positions and passes each line to the handler.
+     * Both positions have to be at the beginning of a line (or the end of the file).
+     * The first lines are only skipped if the range starts at the beginning of the file.
+     * @param filename the path to the file containing the data
+     * @param from the position of the first byte
+     * @param to the position after the last byte, is limited by the file size
+     * @param handler the handler receiving the parsed values
+     * @throws IOException if the file can not be read
+     */
+    public void parse(String filename, long from, long to, RowHandler handler) throws IOException {
+        parse(filename, new long[] {from, to}, handler);
+    }
+
+    /**
+     * Parses several ranges of a file (e.g. the ranges of a model, see RebateModelIndex) and passes each line to the handler.
+     * The file is only opened once, all positions have to be at the beginning of a line (or the end of the file).
+     * Gzip files can only be parsed as a whole.
+     * @param filename the path to the file containing the data
+     * @param ranges start and end position of each range: {from0, to0, from1, to1, ...}
+     * @param handler the handler receiving the parsed values
+     * @throws IOException if the file can not be read
+     */
+    public void parse(String filename, long[] ranges, RowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        parsedBytes = 0;
+        parsedLines = 0;
+
+        if (ParallelGzipInputStream.isGzip(filename)) {
+            if (ranges.length != 2 || ranges[0] != 0 || ranges[1] < new File(filename).length()) {
+                throw new IOException("Compressed file " + filename + " can only be parsed as a whole");
+            }
+            try (InputStream in = ParallelGzipInputStream.open(filename, decompressionThreads)) {
+                parse(in, handler);
+            }
+            parseTime = System.nanoTime() - start;
+            return;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r"); FileChannel channel = file.getChannel()) {
+            for (int r = 0; r + 1 < ranges.length; r += 2) {
+                lineNumber = 0;
+                rangeStart = ranges[r];
+                long end = Math.min(ranges[r + 1], channel.size());
+                long position = ranges[r];
+                while (position < end) {
+                    long length = Math.min(MAX_REGION_SIZE, end - position);
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    int consumed = parseRegion(buffer, position + length == end, handler);
+                    if (consumed == 0) {
+                        throw new IOException("Line " + (lineNumber + 1) + " is longer than " + MAX_REGION_SIZE + " bytes");
+                    }
+                    position += consumed;
+                }
+                parsedBytes += Math.max(0, end - ranges[r]);
+                parsedLines += lineNumber;
+            }
+        }
+
+        parseTime = System.nanoTime() - start;
+    }
+
+    /**
+     * Parses a stream block by block, e.g. a decompressed file.
+     * An incomplete last line of a block is moved to the beginning of the next block.
+     * @param in the stream containing the data, is not closed
+     * @param handler the handler receiving the parsed values
+     * @throws IOException if the stream can not be read
+     */
+    public void parse(InputStream in, RowHandler handler) throws IOException {
+        lineNumber = 0;
+        rangeStart = 0;
+        parsedBytes = 0;
+        byte[] bytes = new byte[STREAM_BLOCK_SIZE];
+        int filled = 0;
+        boolean end = false;
+        while (!end) {
+            int read = in.read(bytes, filled, bytes.length - filled);
+            if (read < 0) {
+                end = true;
+            } else {
+                filled += read;
+                parsedBytes += read;
+                if (filled < bytes.length) {
+                    continue;
+                }
+            }
+            int consumed = parseRegion((ByteBuffer) ByteBuffer.wrap(bytes).limit(filled), end, handler);
+            if (consumed == 0 && !end) {
+                if (bytes.length >= MAX_REGION_SIZE) {
+                    throw new IOException("Line " + (lineNumber + 1) + " is longer than " + MAX_REGION_SIZE + " bytes");
+                }
+                bytes = Arrays.copyOf(bytes, bytes.length * 2); // line is longer than the block
+                continue;
+            }
+            System.arraycopy(bytes, consumed, bytes, 0, filled - consumed);
+            filled -= consumed;
+        }
+        parsedLines = lineNumber;
+    }
+
+    /**
+     * Parses all complete lines of a mapped region or block.
+     * @param buffer the mapped region or block
+     * @param lastRegion true if the region ends at the end of the file
+     * @param handler the handler receiving the parsed values
+     * @return the number of bytes consumed, an incomplete last line is left for the next region
+     */
+    private int parseRegion(ByteBuffer buffer, boolean lastRegion, RowHandler handler) {
+        int limit = buffer.limit();
+        int lineStart = 0;
+        while (lineStart < limit) {
+            // find end of line
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == limit && !lastRegion) {
+                return lineStart; // line continues in next region
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            lineNumber++;
+            if (rangeStart > 0 || lineNumber > skipFirstLines) {
+                parseLine(buffer, lineStart, lineEnd, handler);
+            }
+            lineStart = next;
+        }
+        return limit;
+    }
+
+    private void parseLine(ByteBuffer buffer, int lineStart, int lineEnd, RowHandler handler) {
+        // find field boundaries
+        int columns = 0;
+        fieldStarts[0] = lineStart;
+        for (int i = lineStart; i < lineEnd; i++) {
+            if (buffer.get(i) == delimiter) {
+                columns++;
+                if (columns == COLUMNS) {
+                    break;
+                }
+                fieldStarts[columns] = i + 1;
+            }
+        }
+        columns++;
+        if (columns != COLUMNS) {
+            // Print Error
+            System.err.println("Wrong number of columns in line " + getLinePosition() + ": " + decode(buffer, lineStart, lineEnd));
+            return;
+        }
+        fieldStarts[COLUMNS] = lineEnd + 1;
+
+        // model
+        int modelStart = fieldStarts[0];
+        int modelEnd = fieldStarts[1] - 1;
+        if (modelFilter != null && !equalsBytes(buffer, modelStart, modelEnd, modelFilter, modelFilter.length)) {
+            return;
+        }
+        String model = getModel(buffer, modelStart, modelEnd);
+
+        int year = (int) parseLong(buffer, fieldStarts[1], fieldStarts[2] - 1);
+        long date = parseDate(buffer, fieldStarts[2], fieldStarts[3] - 1);
+        double rebate = parseDouble(buffer, fieldStarts[3], fieldStarts[4] - 1);
+        int sales = (int) parseLong(buffer, fieldStarts[4], fieldStarts[5] - 1);
+
+        handler.handleRow(model, year, date, rebate, sales);
+    }
+
+    /**
+     * Returns the model name, only decodes a new string if the bytes differ from the last model.
+     */
+    private String getModel(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        if (lastModel != null && equalsBytes(buffer, start, end, lastModelBytes, lastModelLength)) {
+            return lastModel;
+        }
+        if (length > lastModelBytes.length) {
+            lastModelBytes = new byte[length * 2];
+        }
+        for (int i = 0; i < length; i++) {
+            lastModelBytes[i] = buffer.get(start + i);
+        }
+        lastModelLength = length;
+        lastModel = new String(lastModelBytes, 0, length, StandardCharsets.UTF_8);
+        return lastModel;
+    }
+
+    private static boolean equalsBytes(ByteBuffer buffer, int start, int end, byte[] bytes, int length) {
+        if (end - start != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses an integer number, empty fields are 0.
+     * Falls back to double parsing if the field contains a decimal point or exponent.
+     */
+    private long parseLong(ByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) == ' ') start++;
+        while (end > start && buffer.get(end - 1) == ' ') end--;
+
+        boolean negative = false;
+        int i = start;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return (long) parseDouble(buffer, start, end);
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a decimal number with '.' as decimal separator, empty fields are 0.
+     * Uncommon notations (e.g. exponents) are passed to Double.parseDouble.
+     */
+    private double parseDouble(ByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) == ' ') start++;
+        while (end > start && buffer.get(end - 1) == ' ') end--;
+
+        boolean negative = false;
+        int i = start;
+        if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+            negative = buffer.get(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+                continue;
+            }
+            int digit = b - '0';
+            if (digit < 0 || digit > 9 || digits == 18) {
+                return Double.parseDouble(decode(buffer, start, end));
+            }
+            mantissa = mantissa * 10 + digit;
+            digits++;
+            if (fractionDigits >= 0) {
+                fractionDigits++;
+            }
+        }
+        double value = (fractionDigits > 0) ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a date, either as UNIX timestamp in milliseconds or as date string.
+     * If the date parser uses yyyy-MM-dd the dates are converted directly from the bytes, other formats use the date parser.
+     * @return the UNIX timestamp in seconds
+     */
+    private long parseDate(ByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) == ' ') start++;
+        while (end > start && buffer.get(end - 1) == ' ') end--;
+
+        if (digits(buffer, start, end) >= 0 || end - start > 10) {
+            return parseLong(buffer, start, end) / 1000; // because of unix timestamp conversion
+        }
+        if (dateParser.isDefaultPattern() && end - start == 10 && buffer.get(start + 4) == '-' && buffer.get(start + 7) == '-') {
+            int year = digits(buffer, start, start + 4);
+            int month = digits(buffer, start + 5, start + 7);
+            int day = digits(buffer, start + 8, start + 10);
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31) {
+                return DateParser.toEpochDay(year, month, day) * UNIX_TIMESTAMP_DAY;
+            }
+        }
+        try {
+            return dateParser.parseEpochDay(decode(buffer, start, end)) * UNIX_TIMESTAMP_DAY;
+        } catch (RuntimeException e) {
+            throw new RuntimeException(e.getMessage() + " (line " + getLinePosition() + ")");
+        }
+    }
+
+    private static int digits(ByteBuffer buffer, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Describes the current line for error messages, line numbers are relative if the range does not start at 0.
+     */
+    private String getLinePosition() {
+        return (rangeStart > 0) ? lineNumber + " after byte " + rangeStart : String.valueOf(lineNumber);
+    }
+
+    private static String decode(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[Math.max(0, end - start)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the number of bytes read by the last call of parse (sum of all ranges).
+     */
+    public long getParsedBytes() {
+        return parsedBytes;
+    }
+
+    /**
+     * Returns the number of lines read by the last call of parse (sum of all ranges), including skipped first lines,
+     * empty lines and lines with errors. Counted like BufferedReader.lines, a line break at the end adds no line.
+     */
+    public long getParsedLines() {
+        return parsedLines;
+    }
+
+    /**
+     * Returns the parse throughput of the last call of parse.
+     * @return the throughput in MB/s
+     */
+    public double getThroughput() {
+        return RebateDataSetIterator.toMegabytesPerSecond(parsedBytes, parseTime);
+    }
+}
@@ -0,0 +1,127 @@
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded queue of the mini-batches of one epoch, the batches are built on a background thread while the network
+ * is trained on the previous ones (see PrefetchingDataSetIterator and StreamingDataSetIterator).
+ * The producer thread is started with the queue, the end of the epoch is marked in the queue. If the producer fails,
+ * the batches which were not taken yet are dropped and the error is thrown in the training thread.
+ * Only the training thread may call hasNext, next and stop.
+ *
+ * @author Leo Knoll
+ */
+class MiniBatchQueue {
+
+    /**
+     * Builds the mini-batches of an epoch on the producer thread and puts them into the queue.
+     */
+    interface Producer {
+        void produce(MiniBatchQueue queue) throws IOException, InterruptedException;
+    }
+
+    /**
+     * A mini-batch and whether it is the last one of its model.
+     */
+    static class Batch {
+        final DataSet data;
+        final boolean lastOfModel;
+
+        private Batch(DataSet data, boolean lastOfModel) {
+            this.data = data;
+            this.lastOfModel = lastOfModel;
+        }
+    }
+
+    // marks the end of an epoch in the queue
+    private static final Batch END = new Batch(null, false);
+
+    private final BlockingQueue<Batch> queue;
+    private final Thread producer;
+    private volatile Exception producerError;
+    private Batch pending;
+
+    /**
+     * Creates the queue and starts the producer.
+     * @param capacity the number of finished batches which may wait in the queue
+     * @param threadName the name of the producer thread
+     * @param builder builds the batches of the epoch
+     */
+    MiniBatchQueue(int capacity, String threadName, Producer builder) {
+        queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        producer = new Thread(() -> {
+            try {
+                builder.produce(this);
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // epoch was stopped
+            } catch (IOException | RuntimeException e) {
+                producerError = e;
+                queue.clear();
+                queue.offer(END);
+            }
+        }, threadName);
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Puts a mini-batch into the queue, waits while the queue is full. Only called by the producer.
+     */
+    void put(DataSet data, boolean lastOfModel) throws InterruptedException {
+        queue.put(new Batch(data, lastOfModel));
+    }
+
+    /**
+     * Returns true if the epoch has another batch, waits until it is built.
+     */
+    boolean hasNext() {
+        return peek() != END;
+    }
+
+    /**
+     * Returns the next batch of the epoch and removes it from the queue.
+     */
+    Batch next() {
+        Batch batch = peek();
+        if (batch == END) {
+            throw new NoSuchElementException();
+        }
+        pending = null;
+        return batch;
+    }
+
+    /**
+     * Stops the producer and waits until it ended, the batches which were not taken are dropped.
+     */
+    void stop() {
+        producer.interrupt();
+        try {
+            producer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the next batch of the queue without removing it.
+     */
+    private Batch peek() {
+        if (pending == null) {
+            try {
+                pending = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Building of mini-batches was interrupted", e);
+            }
+        }
+        Exception error = producerError;
+        if (pending == END && error != null) {
+            throw (error instanceof RuntimeException) ? (RuntimeException) error : new RuntimeException(error);
+        }
+        return pending;
+    }
+}
@@ -3,7 +3,6 @@ import org.apache.log4j.BasicConfigurator;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,10 +14,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowEvent;
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.Calendar;
-import java.util.stream.Stream;
+import java.util.concurrent.ExecutionException;
 
 /**
  * View to set parameters for rebate prediction and to train and test predictions.
@@ -29,9 +26,13 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
 
     public static final String DELIMITER = ";";
     public static final int FIRST_LINES_TO_SKIP = 1;
+    private static final String MODEL_LABEL = "Select the model/class you want the prediction for (select input file first):";
 
     private boolean canceled = false;
 
+    // reads the models of the input file in the background
+    private SwingWorker<RebateModelCatalog, Void> catalogWorker = null;
+
     // GUI elements
     private JLabel lblInput = new JLabel("Select input file (CSV-file with ';' as column delimiter and '.' as comma delimiter)");
     private JTextField txtInput = new JTextField();
@@ -46,10 +47,20 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
     private JCheckBox cbFill = new JCheckBox("Add missing days", false);
     private JCheckBox cbAverage = new JCheckBox("Average testing with using results of all input days", true);
     private JCheckBox cbClasses = new JCheckBox("Train on car classes", true);
-    private JLabel lblModel = new JLabel("Select the model/class you want the prediction for (select input file first):");
+    private JCheckBox cbSnapshot = new JCheckBox("Cache parsed input file (snapshot next to input file)", false);
+    private JCheckBox cbOffHeap = new JCheckBox("Keep input data off-heap (for very large input files)", false);
+    private JCheckBox cbModelIndex = new JCheckBox("Index models of input file (only read lines of the selected model)", false);
+    private JCheckBox cbAggregate = new JCheckBox("Merge all lines of the same day (input file does not need to be sorted)", false);
+    private JCheckBox cbSort = new JCheckBox("Sort input file by date before reading (for unsorted exports)", false);
+    private JCheckBox cbShuffle = new JCheckBox("Shuffle training windows of the selected model in each epoch", false);
+    private JCheckBox cbPrefetch = new JCheckBox("Build mini-batches in the background while the network trains", false);
+    private JCheckBox cbEpochCache = new JCheckBox("Cache mini-batches of the first epoch for the following epochs", false);
+    private JLabel lblParser = new JLabel("Read input file with:");
+    private JComboBox<String> comboParser = new JComboBox<>(new String[]{"Line reader", "Memory-mapped parser", "Parallel memory-mapped parser"});
+    private JLabel lblModel = new JLabel(MODEL_LABEL);
     private JComboBox<String> comboModel = new JComboBox<>();
     private JLabel lblIterator = new JLabel("Train network on:");
-    private JComboBox<String> comboIterator = new JComboBox<>(new String[]{"Only selected model", "Only model distributed", "Complete dataset"});
+    private JComboBox<String> comboIterator = new JComboBox<>(new String[]{"Only selected model", "Only model distributed", "Complete dataset", "Complete dataset (streaming)", "Complete dataset (packed sequences)"});
     private JLabel lblSave = new JLabel("Location where neural network will be saved:");
     private JTextField txtSave = new JTextField();
     private JButton butBrowseSave = new JButton("Browse");
@@ -61,7 +72,7 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
     public NADIN_Prediction_View() {
         super.setTitle("NADIN Rebate Prediction Tool");
         super.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        super.setSize(500, 480);
+        super.setSize(500, 540);
         super.setLocationRelativeTo(null);
 
         initElements();
@@ -75,6 +86,7 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
         butStart.addActionListener(this);
         butCancel.addActionListener(this);
         txtInput.getDocument().addDocumentListener(this);
+        cbOffHeap.setToolTipText("Direct memory is limited by -XX:MaxDirectMemorySize (default -Xmx), needs about 28 bytes per input line");
 
         // position GUI elements
         setPosition(lblInput, 0,0,4,1,1,0);
@@ -90,40 +102,86 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
         setPosition(cbFill, 0,9,4,1,1,0);
         setPosition(cbAverage, 0,10,4,1,1,0);
         //setPosition(cbClasses, 0,11,4,1,1,0);
-        setPosition(lblModel, 0,12,4,1,1,0);
-        setPosition(comboModel, 0,13,4,1,1,0);
-        setPosition(lblIterator, 0,14,4,1,1,0);
-        setPosition(comboIterator, 0,15,4,1,1,0);
-        setPosition(lblSave, 0,16,4,1,1,0);
-        setPosition(txtSave, 0,17,3,1,1,0);
-        setPosition(butBrowseSave, 3,17,1,1,0,0);
-        setPosition(butCancel, 0,18,1,1,0,0);
-        setPosition(butStart, 3,18,1,1,0,0);
-        setPosition(lblProgress, 0,19,4,1,1,0);
-        setPosition(progressBar, 0,20,4,1,1,0);
+        setPosition(lblParser, 0,11,1,1,1,0);
+        setPosition(comboParser, 1,11,3,1,1,0);
+        setPosition(cbSnapshot, 0,12,4,1,1,0);
+        setPosition(cbOffHeap, 0,13,4,1,1,0);
+        setPosition(cbModelIndex, 0,14,4,1,1,0);
+        setPosition(cbAggregate, 0,15,4,1,1,0);
+        setPosition(cbSort, 0,16,4,1,1,0);
+        setPosition(lblModel, 0,17,4,1,1,0);
+        setPosition(comboModel, 0,18,4,1,1,0);
+        setPosition(lblIterator, 0,19,4,1,1,0);
+        setPosition(comboIterator, 0,20,4,1,1,0);
+        setPosition(cbShuffle, 0,21,4,1,1,0);
+        setPosition(cbPrefetch, 0,22,4,1,1,0);
+        setPosition(cbEpochCache, 0,23,4,1,1,0);
+        setPosition(lblSave, 0,24,4,1,1,0);
+        setPosition(txtSave, 0,25,3,1,1,0);
+        setPosition(butBrowseSave, 3,25,1,1,0,0);
+        setPosition(butCancel, 0,26,1,1,0,0);
+        setPosition(butStart, 3,26,1,1,0,0);
+        setPosition(lblProgress, 0,27,4,1,1,0);
+        setPosition(progressBar, 0,28,4,1,1,0);
     }
 
     /**
-     * Updates models combo box based on file read at input path
+     * Updates models combo box based on file read at input path.
+     * The model catalog of the file is built in the background, following calls use the cached catalog.
      */
     private void updateModels() {
-        try {
-            String path = txtInput.getText();
-            if (new File(path).exists()) {
-                Stream<String> stream = Files.lines(Paths.get(path));
-                String[] choices = stream.map(e -> e.split(DELIMITER)[0]).distinct().sorted().toArray(String[]::new);
-                comboModel.removeAllItems();
-                if (choices != null) {
-                    for (String model : choices) {
-                        comboModel.addItem(model);
-                    }
+        if (catalogWorker != null) {
+            catalogWorker.cancel(true);
+            catalogWorker = null;
+        }
+        comboModel.removeAllItems();
+
+        String path = txtInput.getText();
+        if (!new File(path).isFile() && !RebateFileSet.isFileSet(path)) {
+            return;
+        }
+        RebateModelCatalog catalog = RebateModelCatalog.getCached(path);
+        if (catalog != null) {
+            showModels(catalog);
+            return;
+        }
+
+        lblModel.setText(MODEL_LABEL + " (reading models...)");
+        catalogWorker = new SwingWorker<RebateModelCatalog, Void>() {
+            @Override
+            protected RebateModelCatalog doInBackground() throws Exception {
+                return RebateModelCatalog.get(path, DELIMITER, FIRST_LINES_TO_SKIP);
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                lblModel.setText(MODEL_LABEL);
+                try {
+                    showModels(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    // do not display error message
                 }
-                return;
             }
-        } catch (Exception e) {
-            // do not display error message
+        };
+        catalogWorker.execute();
+    }
+
+    private void showModels(RebateModelCatalog catalog) {
+        lblModel.setText(MODEL_LABEL);
+        for (String model : catalog.getModels()) {
+            comboModel.addItem(model);
+        }
+    }
+
+    private static boolean hasMetadata(String modelFile) {
+        try {
+            return new File(modelFile).isFile() && RebateModelMetadata.load(new File(modelFile)) != null;
+        } catch (IOException e) {
+            return false;
         }
-        comboModel.removeAllItems();
     }
 
     private String getNetworkName() {
@@ -165,7 +223,8 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
     public void actionPerformed(ActionEvent e) {
         if (e.getSource().equals(butBrowseInput)) {
             JFileChooser chooser = new JFileChooser();
-            chooser.setDialogTitle("Select input file");
+            chooser.setDialogTitle("Select input file or directory");
+            chooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
             int success = chooser.showOpenDialog(this);
             if (success == JFileChooser.APPROVE_OPTION) {
                 txtInput.setText(chooser.getSelectedFile().getAbsolutePath());
@@ -183,16 +242,18 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
         } else if (e.getSource().equals(butStart)) {
             // check inputs
             // TODO: Check with Preconditions.checkArgument(expression which must be true, error string, printf style objects);
-            if (txtInput.getText().trim().isEmpty()) {
+            // a network saved with metadata predicts without input data
+            boolean predictOnly = !cbTrain.isSelected() && hasMetadata(txtSave.getText());
+            if (!predictOnly && txtInput.getText().trim().isEmpty()) {
                 JOptionPane.showMessageDialog(this,"No input file selected!", "Error", JOptionPane.ERROR_MESSAGE);
                 return;
-            } else if ( ! new File(txtInput.getText()).exists()) {
+            } else if (!predictOnly && ! new File(txtInput.getText()).exists() && ! RebateFileSet.isFileSet(txtInput.getText())) {
                 JOptionPane.showMessageDialog(this, "Input file does not exists!", "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             } else if (txtSave.getText().trim().isEmpty()) {
                 JOptionPane.showMessageDialog(this, "Save file not selected!", "Error", JOptionPane.ERROR_MESSAGE);
                 return;
-            } else if (comboModel.getSelectedItem() == null) {
+            } else if (!predictOnly && comboModel.getSelectedItem() == null) {
                 JOptionPane.showMessageDialog(this, "Model not selected!", "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
@@ -256,6 +317,7 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
         updateModels();
     }
     public void removeUpdate(DocumentEvent e) {
+        updateModels();
     }
     public void changedUpdate(DocumentEvent e) {
     }
@@ -332,19 +394,50 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
             int inputDays = Integer.valueOf(txtDays.getText());
             boolean addMissingDays = cbFill.isSelected();
             boolean average = cbAverage.isSelected();
-            String selectedModel = comboModel.getSelectedItem().toString();
             File locationToSave = new File(txtSave.getText());
 
+            if (!cbTrain.isSelected()) {
+                RebateModelMetadata metadata = RebateModelMetadata.load(locationToSave);
+                if (metadata != null) {
+                    // dictionary, normalization values and last input window are saved with the network
+                    log.info("Predicting " + metadata.getModel() + " from model file " + locationToSave + " without input data");
+                    listener.updateProgress(100, 0);
+                    predictFuture(locationToSave, metadata);
+                    return null;
+                }
+                // network was saved without metadata, the input data is read again
+            }
+
+            String selectedModel = comboModel.getSelectedItem().toString();
             log.info("Selected model or class: " + selectedModel);
 
+            RebateReaderOptions options = new RebateReaderOptions();
+            options.setSnapshotCache(cbSnapshot.isSelected());
+            options.setOffHeap(cbOffHeap.isSelected());
+            options.setModelIndex(cbModelIndex.isSelected());
+            options.setAggregate(cbAggregate.isSelected());
+            options.setExternalSort(cbSort.isSelected());
+            options.setShuffle(cbShuffle.isSelected());
+            options.setPrefetch(cbPrefetch.isSelected());
+            options.setEpochCache(cbEpochCache.isSelected());
+            options.setPackedSequences(comboIterator.getSelectedIndex() == 4);
+            if (comboParser.getSelectedIndex() == 1) {
+                options.setParser(RebateReaderOptions.PARSER_MAPPED);
+            } else if (comboParser.getSelectedIndex() == 2) {
+                options.setParser(RebateReaderOptions.PARSER_PARALLEL);
+            }
+
             log.info("Create dataSet iterator...");
             RebateDataSetIterator iterator;
             if (comboIterator.getSelectedIndex() == 0) {
-                iterator = new SingleDataSetIterator(inputPath, DELIMITER,inputDays, splitRatio, selectedModel, addMissingDays,FIRST_LINES_TO_SKIP, average);
+                iterator = new SingleDataSetIterator(inputPath, DELIMITER,inputDays, splitRatio, selectedModel, addMissingDays,FIRST_LINES_TO_SKIP, average, options);
             } else if(comboIterator.getSelectedIndex() == 1) {
-                iterator = new DistributedDataSetIterator(inputPath, DELIMITER,inputDays, splitRatio, selectedModel, addMissingDays,FIRST_LINES_TO_SKIP, average);
+                iterator = new DistributedDataSetIterator(inputPath, DELIMITER,inputDays, splitRatio, selectedModel, addMissingDays,FIRST_LINES_TO_SKIP, average, options);
+            } else if (comboIterator.getSelectedIndex() == 2 || comboIterator.getSelectedIndex() == 4) {
+                iterator = new SeparatedDataSetIterator(inputPath, DELIMITER, splitRatio, selectedModel, addMissingDays, FIRST_LINES_TO_SKIP, average, options);
             } else {
-                iterator = new SeparatedDataSetIterator(inputPath, DELIMITER, splitRatio, selectedModel, addMissingDays, FIRST_LINES_TO_SKIP, average);
+                // training lines stay on disk, for inputs which do not fit into memory
+                iterator = new StreamingDataSetIterator(inputPath, DELIMITER, splitRatio, selectedModel, addMissingDays, FIRST_LINES_TO_SKIP, average, options);
             }
 
             MultiLayerNetwork net;
@@ -362,32 +455,39 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
                 long lastEpochFinishing = Calendar.getInstance().getTimeInMillis();
                 EvictingQueue<Double> lastFinishedEpochs = EvictingQueue.create(10);
 
-                for (int i = 0; i < epochs; i++) {
-                    System.out.println("Epoch: " + i);
-                    while (iterator.hasNext()) {
-                        if (iterator.needsReset()) {
-                            iterator.reset();
-                            net.rnnClearPreviousState(); // clear previous state
+                // builds the next mini-batches in the background and replays them from the epoch cache if enabled
+                EpochCacheDataSetIterator training = new EpochCacheDataSetIterator(new PrefetchingDataSetIterator(iterator, options), options);
+
+                try {
+                    for (int i = 0; i < epochs; i++) {
+                        System.out.println("Epoch: " + i);
+                        while (training.hasNext()) {
+                            if (training.needsReset()) {
+                                training.reset();
+                                net.rnnClearPreviousState(); // clear previous state
+                            }
+                            net.fit(training.next());   // fit model using mini-batch data
                         }
-                        net.fit(iterator.next());   // fit model using mini-batch data
-                    }
 
-                    iterator.reset(); // reset iterator
-                    net.rnnClearPreviousState(); // clear previous state
+                        training.reset(); // reset iterator
+                        net.rnnClearPreviousState(); // clear previous state
 
-                    // calculate time for epoch to finish
-                    double diff = Calendar.getInstance().getTimeInMillis() - lastEpochFinishing;
-                    if (diff > 1000) { // because sometimes the first epoch finishes too fast
-                        lastFinishedEpochs.add(diff);
-                    }
-                    // average with last 10 results
-                    diff = lastFinishedEpochs.stream().mapToDouble(e -> e).average().orElse(0.0);
-                    // compute estimated finish time
-                    long completion_in = (long) diff *(epochs - i);
-                    if (listener.updateProgress((int) i*100/epochs, completion_in)) {
-                        return null; // cancel
+                        // calculate time for epoch to finish
+                        double diff = Calendar.getInstance().getTimeInMillis() - lastEpochFinishing;
+                        if (diff > 1000) { // because sometimes the first epoch finishes too fast
+                            lastFinishedEpochs.add(diff);
+                        }
+                        // average with last 10 results
+                        diff = lastFinishedEpochs.stream().mapToDouble(e -> e).average().orElse(0.0);
+                        // compute estimated finish time
+                        long completion_in = (long) diff *(epochs - i);
+                        if (listener.updateProgress((int) i*100/epochs, completion_in)) {
+                            return null; // cancel
+                        }
+                        lastEpochFinishing = Calendar.getInstance().getTimeInMillis();
                     }
-                    lastEpochFinishing = Calendar.getInstance().getTimeInMillis();
+                } finally {
+                    training.close(); // stop building mini-batches and delete temporary files
                 }
 
                 locationToSave = new File(txtSave.getText() + File.separator + getNetworkName() + ".zip");
@@ -396,6 +496,8 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
                 log.info("At: " + locationToSave);
                 // saveUpdater: i.e., the state for Momentum, RMSProp, Adagrad etc. Save this to train your network more in the future
                 ModelSerializer.writeModel(net, locationToSave, true);
+                // dictionary and normalization values are needed to predict without reading in the input data again
+                RebateModelMetadata.fromIterator(iterator, selectedModel).save(locationToSave);
 
             }
 
@@ -409,6 +511,19 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
 
             log.info("Done...");
 
+            RebateModelMetadata metadata = RebateModelMetadata.load(locationToSave);
+            if (metadata == null) { // network was saved without metadata
+                metadata = RebateModelMetadata.fromIterator(iterator, selectedModel);
+            }
+            predictFuture(locationToSave, metadata);
+            return null;
+        }
+
+        /**
+         * Predicts the sales of the next days for different rebates and plots them, only needs the model file
+         * and its metadata (the network state is restored from the saved input window, see primeNetwork).
+         */
+        private void predictFuture(File locationToSave, RebateModelMetadata metadata) {
             log.info("Predict future");
 
             try {
@@ -418,24 +533,16 @@ class NADIN_Prediction_View extends JFrame implements ActionListener, DocumentLi
                 for (int r = 0; r <= 30; r += 5) {
                     INDArray[] rebates = new INDArray[predictDays];
                     for (int i = 0; i < predictDays; i++) {
-                        INDArray input = Nd4j.create(new int[]{inputDays, RebateDataSetIterator.INPUT_VECTOR_SIZE}, 'f');
-                        for (int j = 0; j < inputDays; j++) {
-                            input.putScalar(new int[]{j, 0}, (iterator.getAllData().get(iterator.getAllData().size() - 1).getName() - iterator.minArray[0]) / (iterator.maxArray[0] - iterator.minArray[0]));
-                            input.putScalar(new int[]{j, 1}, (iterator.getAllData().get(iterator.getAllData().size() - 1).getYear() - iterator.minArray[1]) / (iterator.maxArray[1] - iterator.minArray[1]));
-                            input.putScalar(new int[]{j, 2}, (iterator.getAllData().get(iterator.getAllData().size() - 1).getDate() + (i + 1) * 60 * 60 * 24 - iterator.minArray[2]) / (iterator.maxArray[2] - iterator.minArray[2]));
-                            input.putScalar(new int[]{j, 3}, (r - iterator.minArray[3]) / (iterator.maxArray[3] - iterator.minArray[3]));
-                        }
-                        rebates[i] = input;
+                        rebates[i] = metadata.createInput(i + 1, r);
                     }
-                    net = ModelSerializer.restoreMultiLayerNetwork(locationToSave);
-                    iterator.testPrediction(net, average, false);
-                    results[r / 5] = iterator.predictFutureSales(net, rebates);
+                    MultiLayerNetwork net = ModelSerializer.restoreMultiLayerNetwork(locationToSave);
+                    metadata.primeNetwork(net);
+                    results[r / 5] = metadata.predictFutureSales(net, rebates);
                 }
                 PlotUtil.plot(results, new String[]{"0%", "5%", "10%", "15%", "20%", "25%", "30%"}, "Total Sales", "Prediction Results");
             }catch(Exception e) {
                 e.printStackTrace();
                 }
-            return null;
         }
     }
 
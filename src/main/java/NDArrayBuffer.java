@@ -0,0 +1,92 @@
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable buffer for the values of an INDArray in 'f' order.
+ * The values are written with plain array writes and copied into a new INDArray in one go (see create),
+ * instead of one putScalar call with a new index array per value.
+ * The buffer has the data type of ND4J (float by default), so the copy needs no conversion.
+ * Not thread-safe, each thread needs its own buffer.
+ *
+ * @author Leo Knoll
+ */
+class NDArrayBuffer {
+
+    private final boolean doublePrecision = Nd4j.dataType() == DataBuffer.Type.DOUBLE;
+    private float[] floatValues = new float[0];
+    private double[] doubleValues = new double[0];
+    private int[] shape;
+
+    // 'f' order: value {i, j, k} is at i + rows * (j + columns * k)
+    private int rows;
+    private int columns;
+
+    /**
+     * Prepares the buffer for an array of up to three dimensions, all values have to be written before create.
+     * The value array is only allocated again if the number of values changes (e.g. for the last mini-batch).
+     * @param shape the shape of the array
+     * @return this buffer
+     */
+    NDArrayBuffer reset(int... shape) {
+        int length = 1;
+        for (int size : shape) {
+            length *= size;
+        }
+        if (doublePrecision && doubleValues.length != length) {
+            doubleValues = new double[length];
+        } else if (!doublePrecision && floatValues.length != length) {
+            floatValues = new float[length];
+        }
+        this.shape = shape;
+        this.rows = shape[0];
+        this.columns = (shape.length > 1) ? shape[1] : 1;
+        return this;
+    }
+
+    void put(int i, int j, int k, double value) {
+        put(i + rows * (j + columns * k), value);
+    }
+
+    void put(int i, int j, double value) {
+        put(i + rows * j, value);
+    }
+
+    void put(int index, double value) {
+        if (doublePrecision) {
+            doubleValues[index] = value;
+        } else {
+            floatValues[index] = (float) value;
+        }
+    }
+
+    /**
+     * Reads all values at once from the position of a byte buffer (e.g. a mapped file), see EpochCacheDataSetIterator.
+     * The values have to be stored in the data type of this buffer, the position is moved behind them.
+     * @param source the values
+     * @return this buffer
+     */
+    NDArrayBuffer read(ByteBuffer source) {
+        if (doublePrecision) {
+            source.asDoubleBuffer().get(doubleValues);
+            source.position(source.position() + doubleValues.length * 8);
+        } else {
+            source.asFloatBuffer().get(floatValues);
+            source.position(source.position() + floatValues.length * 4);
+        }
+        return this;
+    }
+
+    boolean isDoublePrecision() {
+        return doublePrecision;
+    }
+
+    /**
+     * Creates a new INDArray with a copy of the values, the buffer can be written again afterwards.
+     */
+    INDArray create() {
+        return doublePrecision ? Nd4j.create(doubleValues, shape, 'f') : Nd4j.create(floatValues, shape, 'f');
+    }
+}
@@ -0,0 +1,110 @@
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.util.Arrays;
+
+/**
+ * The lines of columns normalized once with the min and max values of an iterator.
+ * Windows of following lines (see SingleDataSetIterator) overlap, so without it every line is normalized
+ * and copied once per window it is part of. The normalized inputs are kept in one feature matrix (outside of the heap
+ * with a native backend), mini-batches copy the values of their lines from it and test windows are views of its rows,
+ * so memory stays O(lines) instead of O(lines * inputDays). Normalized sales are calculated when they are needed.
+ *
+ * @author Leo Knoll
+ */
+class NormalizedSeries {
+
+    private final RebateColumns columns;
+    private final int size;
+    private final double[] minArray;
+    private final double[] maxArray;
+
+    // {size, INPUT_VECTOR_SIZE} in 'f' order, feature j of line i is at i + size * j of the data buffer
+    private final INDArray featureMatrix;
+    private final DataBuffer features;
+
+    // created on first use, only test windows need it
+    private INDArray salesMatrix;
+
+    /**
+     * Normalizes all lines of the columns.
+     * @param columns the lines
+     * @param minArray min value of each column, see RebateDataSetIterator
+     * @param maxArray max value of each column, see RebateDataSetIterator
+     */
+    NormalizedSeries(RebateColumns columns, double[] minArray, double[] maxArray) {
+        this.columns = columns;
+        this.size = columns.size();
+        this.minArray = minArray.clone();
+        this.maxArray = maxArray.clone();
+
+        if (size == 0) { // ND4J can not create empty arrays, there are no windows either
+            featureMatrix = null;
+            features = null;
+            return;
+        }
+        NDArrayBuffer buffer = new NDArrayBuffer().reset(size, RebateDataSetIterator.INPUT_VECTOR_SIZE);
+        for (int i = 0; i < size; i++) {
+            buffer.put(i, RebateDataSetIterator.INDEX_MODEL, normalize(RebateDataSetIterator.INDEX_MODEL, columns.getName(i)));
+            buffer.put(i, RebateDataSetIterator.INDEX_YEAR, normalize(RebateDataSetIterator.INDEX_YEAR, columns.getYear(i)));
+            buffer.put(i, RebateDataSetIterator.INDEX_DATE, normalize(RebateDataSetIterator.INDEX_DATE, columns.getDate(i)));
+            buffer.put(i, RebateDataSetIterator.INDEX_REBATE, normalize(RebateDataSetIterator.INDEX_REBATE, columns.getRebate(i)));
+        }
+        featureMatrix = buffer.create();
+        features = featureMatrix.data();
+    }
+
+    private double normalize(int column, double value) {
+        return (value - minArray[column]) / (maxArray[column] - minArray[column]);
+    }
+
+    /**
+     * Returns true if the series was created from these columns (with their current number of lines) and min and max values.
+     * Lines changed in place are not detected, the owner has to drop the series in that case.
+     */
+    boolean matches(RebateColumns columns, double[] minArray, double[] maxArray) {
+        return this.columns == columns && size == columns.size()
+            && Arrays.equals(this.minArray, minArray) && Arrays.equals(this.maxArray, maxArray);
+    }
+
+    /**
+     * Returns a normalized input value.
+     * @param line the index of the line
+     * @param feature the column, RebateDataSetIterator.INDEX_MODEL ... INDEX_REBATE
+     */
+    double getFeature(int line, int feature) {
+        return features.getDouble(line + (long) size * feature);
+    }
+
+    /**
+     * Returns the normalized sales of a line.
+     */
+    double getSales(int line) {
+        return normalize(RebateDataSetIterator.INDEX_SALES, columns.getSales(line));
+    }
+
+    /**
+     * Returns the normalized inputs of following lines as a view {days, INPUT_VECTOR_SIZE} of the feature matrix.
+     * @param from the index of the first line
+     * @param days the number of lines
+     */
+    INDArray getWindow(int from, int days) {
+        return featureMatrix.get(NDArrayIndex.interval(from, from + days), NDArrayIndex.all());
+    }
+
+    /**
+     * Returns the not normalized sales of a line as a view {1, 1} of the sales column.
+     * @param line the index of the line
+     */
+    INDArray getActualSales(int line) {
+        if (salesMatrix == null) {
+            NDArrayBuffer buffer = new NDArrayBuffer().reset(size, RebateDataSetIterator.OUTPUT_VECTOR_SIZE);
+            for (int i = 0; i < size; i++) {
+                buffer.put(i, columns.getSales(i));
+            }
+            salesMatrix = buffer.create();
+        }
+        return salesMatrix.get(NDArrayIndex.interval(line, line + 1), NDArrayIndex.all());
+    }
+}
@@ -0,0 +1,478 @@
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a gzip file ahead of the reader, so reading the file, decompressing and parsing overlap.
+ * A producer thread fills a bounded queue with decompressed blocks, the parser reads them as a normal stream.
+ * Files with several members (concatenated gzip files, bgzip) are decompressed in parallel: the members
+ * are found by their headers, decompressed on a thread pool and passed to the queue in file order.
+ * Files with a single member (or very large members) are decompressed by the producer thread alone.
+ *
+ * @author Leo Knoll
+ */
+public class ParallelGzipInputStream extends InputStream {
+
+    private static final int BLOCK_SIZE = 1 << 20;                    // 1 MB
+    private static final int QUEUE_SIZE = 8;                          // decompressed blocks ahead of the reader
+    private static final long MAX_MEMBER_SIZE = 4 << 20;              // larger members are not decompressed in memory
+    private static final int MAX_MEMBER_OUTPUT = 256 << 20;
+    private static final int MEMBERS_PER_THREAD = 2;                  // members decompressed ahead per thread
+
+    // gzip header
+    private static final int ID1 = 0x1f;
+    private static final int ID2 = 0x8b;
+    private static final int DEFLATE = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final int RESERVED_FLAGS = 0xe0;
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+
+    // marks the end of the data in the queue
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread producer;
+    private volatile IOException error = null;
+
+    private byte[] block = null;
+    private int position = 0;
+    private final boolean parallel;
+    private final int members;
+
+    /**
+     * Initializes ParallelGzipInputStream object and starts decompressing.
+     * @param file the gzip file
+     * @param threads the number of threads used for files with several members
+     * @throws IOException if the file can not be read
+     */
+    public ParallelGzipInputStream(File file, int threads) throws IOException {
+        long size = file.length();
+        long[] starts = (threads > 1 && size <= Integer.MAX_VALUE) ? findMembers(file) : new long[] {0};
+        members = starts.length;
+        parallel = starts.length > 1 && maxMemberSize(starts, size) <= MAX_MEMBER_SIZE;
+
+        producer = new Thread(() -> {
+            try {
+                if (parallel) {
+                    decompressParallel(file, starts, threads);
+                } else {
+                    decompress(file, 0);
+                }
+                queue.put(END);
+            } catch (InterruptedException e) {
+                // stream was closed
+            } catch (IOException | RuntimeException e) {
+                error = (e instanceof IOException) ? (IOException) e : new IOException(e);
+                queue.clear();
+                queue.offer(END);
+            }
+        }, "Gzip decompression " + file.getName());
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Returns true if the file starts with the gzip magic number, independent of the file name.
+     * @param filename the path to the file
+     */
+    public static boolean isGzip(String filename) {
+        try (InputStream in = new FileInputStream(filename)) {
+            return in.read() == ID1 && in.read() == ID2;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a file for reading, gzip files are decompressed transparently.
+     * @param filename the path to the file
+     * @param threads the number of threads used for decompressing
+     * @return the stream of the (decompressed) file
+     * @throws IOException if the file can not be opened
+     */
+    public static InputStream open(String filename, int threads) throws IOException {
+        if (isGzip(filename)) {
+            return new ParallelGzipInputStream(new File(filename), threads);
+        }
+        return new FileInputStream(filename);
+    }
+
+    /**
+     * Opens a file for reading with one decompression thread per core.
+     * @see #open(String, int)
+     */
+    public static InputStream open(String filename) throws IOException {
+        return open(filename, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, block.length - position);
+        System.arraycopy(block, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return (block == null) ? 0 : block.length - position;
+    }
+
+    /**
+     * Stops decompressing, blocks which were not read yet are dropped.
+     */
+    @Override
+    public void close() {
+        producer.interrupt();
+        queue.clear();
+        block = END;
+    }
+
+    /**
+     * Returns true if the file was decompressed in parallel.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Returns the number of members found in the file (possibly a few more than the file contains,
+     * candidates inside of compressed data are skipped while decompressing).
+     */
+    public int getMembers() {
+        return members;
+    }
+
+    /**
+     * Takes the next block from the queue if the current one is read.
+     * @return false at the end of the data
+     */
+    private boolean nextBlock() throws IOException {
+        while (block == null || position == block.length) {
+            if (block == END) {
+                return false;
+            }
+            try {
+                block = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Reading of compressed file was interrupted", e);
+            }
+            position = 0;
+            if (block == END && error != null) {
+                throw error;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decompresses the file from a member start with a single thread, following members are read as well.
+     */
+    private void decompress(File file, long from) throws IOException, InterruptedException {
+        try (FileInputStream fileIn = new FileInputStream(file)) {
+            fileIn.getChannel().position(from);
+            try (InputStream in = new GZIPInputStream(new BufferedInputStream(fileIn, BLOCK_SIZE), BLOCK_SIZE)) {
+                while (true) {
+                    byte[] buffer = new byte[BLOCK_SIZE];
+                    int filled = 0;
+                    int read;
+                    while (filled < buffer.length && (read = in.read(buffer, filled, buffer.length - filled)) > 0) {
+                        filled += read;
+                    }
+                    if (filled > 0) {
+                        queue.put(filled == buffer.length ? buffer : Arrays.copyOf(buffer, filled));
+                    }
+                    if (filled < buffer.length) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decompresses the members on a thread pool and passes them to the queue in file order.
+     * A member has to start where the previous member ended, candidates inside of a member are skipped.
+     * If a member can not be decompressed in memory, the rest of the file is decompressed with a single thread.
+     */
+    private void decompressParallel(File file, long[] starts, int threads) throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "Gzip member decompression");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            List<Future<Member>> futures = new ArrayList<>();
+            int window = threads * MEMBERS_PER_THREAD;
+            long expected = 0;
+            for (int i = 0; i < starts.length; i++) {
+                while (futures.size() < starts.length && futures.size() <= i + window) {
+                    long start = starts[futures.size()];
+                    futures.add(pool.submit(() -> inflateMember(data.duplicate(), (int) start)));
+                }
+                Future<Member> future = futures.get(i);
+                if (starts[i] < expected) {
+                    future.cancel(true); // header bytes inside of the previous member
+                    continue;
+                }
+                if (starts[i] > expected) {
+                    break; // no member at the end of the previous one
+                }
+                Member member;
+                try {
+                    member = future.get();
+                } catch (ExecutionException e) {
+                    System.err.println("Gzip member at byte " + expected + " of " + file + " can not be decompressed in parallel: "
+                        + e.getCause().getMessage());
+                    for (int j = i + 1; j < futures.size(); j++) {
+                        futures.get(j).cancel(true);
+                    }
+                    decompress(file, expected);
+                    return;
+                }
+                for (int offset = 0; offset < member.data.length; offset += BLOCK_SIZE) {
+                    queue.put((member.data.length <= BLOCK_SIZE) ? member.data
+                        : Arrays.copyOfRange(member.data, offset, Math.min(member.data.length, offset + BLOCK_SIZE)));
+                }
+                expected = member.end;
+            }
+            if (expected < channel.size() && !isPadding(data, (int) expected)) {
+                System.err.println("Ignored " + (channel.size() - expected) + " bytes after the last gzip member of " + file);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Decompresses the member starting at a position and checks its trailer.
+     */
+    private static Member inflateMember(ByteBuffer data, int start) throws IOException, DataFormatException {
+        int position = skipHeader(data, start);
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            byte[] input = new byte[1 << 16];
+            byte[] output = new byte[1 << 16];
+            int outputSize = 0;
+            int inputPosition = position;
+            while (!inflater.finished()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new ZipException("Decompression was cancelled");
+                }
+                if (inflater.needsInput()) {
+                    int length = Math.min(input.length, data.limit() - inputPosition);
+                    if (length <= 0) {
+                        throw new ZipException("Unexpected end of member");
+                    }
+                    data.position(inputPosition);
+                    data.get(input, 0, length);
+                    inputPosition += length;
+                    inflater.setInput(input, 0, length);
+                }
+                if (outputSize == output.length) {
+                    if (output.length >= MAX_MEMBER_OUTPUT) {
+                        throw new ZipException("Member is larger than " + MAX_MEMBER_OUTPUT + " bytes");
+                    }
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                int inflated = inflater.inflate(output, outputSize, output.length - outputSize);
+                if (inflated == 0 && inflater.needsDictionary()) {
+                    throw new ZipException("Member needs a preset dictionary");
+                }
+                crc.update(output, outputSize, inflated);
+                outputSize += inflated;
+            }
+
+            int trailer = position + (int) inflater.getBytesRead();
+            if (trailer + TRAILER_SIZE > data.limit()) {
+                throw new ZipException("Missing member trailer");
+            }
+            if (readIntLittleEndian(data, trailer) != (int) crc.getValue()
+                || readIntLittleEndian(data, trailer + 4) != outputSize) {
+                throw new ZipException("Corrupt member (wrong checksum or size)");
+            }
+            return new Member(Arrays.copyOf(output, outputSize), trailer + TRAILER_SIZE);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Returns the position after the header of the member starting at a position.
+     */
+    private static int skipHeader(ByteBuffer data, int start) throws ZipException {
+        if (!isHeader(data, start)) {
+            throw new ZipException("No gzip header at byte " + start);
+        }
+        int flags = data.get(start + 3);
+        int position = start + HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) {
+            position += 2 + readShortLittleEndian(data, position);
+        }
+        if ((flags & FNAME) != 0) {
+            position = skipZeroTerminated(data, position);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            position = skipZeroTerminated(data, position);
+        }
+        if ((flags & FHCRC) != 0) {
+            position += 2;
+        }
+        if (position > data.limit()) {
+            throw new ZipException("Truncated gzip header at byte " + start);
+        }
+        return position;
+    }
+
+    private static int skipZeroTerminated(ByteBuffer data, int position) {
+        while (position < data.limit() && data.get(position) != 0) {
+            position++;
+        }
+        return position + 1;
+    }
+
+    /**
+     * Returns the start of each member. The headers of bgzip files contain the member size, otherwise
+     * the file is scanned for header bytes. The scan may find header bytes inside of compressed data,
+     * these candidates are skipped because they do not start where the previous member ends.
+     */
+    private static long[] findMembers(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int size = data.limit();
+            List<Long> starts = new ArrayList<>();
+
+            // bgzip: the extra field BC contains the member size - 1
+            int position = 0;
+            int blockSize;
+            while (position < size && (blockSize = bgzipBlockSize(data, position)) > 0) {
+                starts.add((long) position);
+                position += blockSize;
+            }
+            if (position < size) {
+                starts.clear();
+                for (int i = 0; i + HEADER_SIZE <= size; i++) {
+                    if (data.get(i) == (byte) ID1 && isHeader(data, i)) {
+                        starts.add((long) i);
+                    }
+                }
+            }
+
+            long[] result = new long[starts.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = starts.get(i);
+            }
+            return (result.length == 0) ? new long[] {0} : result;
+        }
+    }
+
+    /**
+     * Returns the size of the bgzip member starting at a position or 0 if there is no bgzip header.
+     */
+    private static int bgzipBlockSize(ByteBuffer data, int start) {
+        if (start + HEADER_SIZE + 2 > data.limit() || !isHeader(data, start) || (data.get(start + 3) & FEXTRA) == 0) {
+            return 0;
+        }
+        int extraLength = readShortLittleEndian(data, start + HEADER_SIZE);
+        int position = start + HEADER_SIZE + 2;
+        int end = Math.min(data.limit(), position + extraLength);
+        while (position + 4 <= end) {
+            int subfieldLength = readShortLittleEndian(data, position + 2);
+            if (data.get(position) == 'B' && data.get(position + 1) == 'C' && subfieldLength == 2 && position + 6 <= end) {
+                return readShortLittleEndian(data, position + 4) + 1;
+            }
+            position += 4 + subfieldLength;
+        }
+        return 0;
+    }
+
+    private static boolean isHeader(ByteBuffer data, int position) {
+        return position + HEADER_SIZE <= data.limit()
+            && (data.get(position) & 0xff) == ID1
+            && (data.get(position + 1) & 0xff) == ID2
+            && data.get(position + 2) == DEFLATE
+            && (data.get(position + 3) & RESERVED_FLAGS) == 0;
+    }
+
+    /**
+     * Returns true if only zero bytes follow (some tools pad gzip files).
+     */
+    private static boolean isPadding(ByteBuffer data, int position) {
+        for (int i = position; i < data.limit(); i++) {
+            if (data.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long maxMemberSize(long[] starts, long size) {
+        long max = 0;
+        for (int i = 0; i < starts.length; i++) {
+            max = Math.max(max, ((i + 1 < starts.length) ? starts[i + 1] : size) - starts[i]);
+        }
+        return max;
+    }
+
+    private static int readShortLittleEndian(ByteBuffer data, int position) {
+        return (data.get(position) & 0xff) | (data.get(position + 1) & 0xff) << 8;
+    }
+
+    private static int readIntLittleEndian(ByteBuffer data, int position) {
+        return readShortLittleEndian(data, position) | readShortLittleEndian(data, position + 2) << 16;
+    }
+
+    /**
+     * Decompressed data of a member and the position after its trailer.
+     */
+    private static class Member {
+        private final byte[] data;
+        private final long end;
+
+        private Member(byte[] data, long end) {
+            this.data = data;
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Parses an input file in the format MODEL;MODELYEAR;INVOICEDATE;REBATE;SALES on several cores.
+ * The file is split into byte ranges which start and end at line breaks, each range is parsed by a
+ * MappedRebateParser on a fork-join pool. Afterwards the results are merged in file order, so the
+ * model numbers are the same as if the file was read line by line.
+ * Gzip files can not be split, they are parsed as one range while their members are decompressed in parallel.
+ *
+ * @author Leo Knoll
+ */
+public class ParallelRebateParser {
+
+    private static final long MIN_CHUNK_SIZE = 1 << 20; // 1 MB
+    private static final int CHUNKS_PER_THREAD = 4;     // smaller chunks balance the work better
+
+    private final String delimiter;
+    private final int skipFirstLines;
+    private final int threads;
+
+    private String modelFilter = null;
+    private boolean offHeap = false;
+
+    // result of the last parse
+    private List<Chunk> chunks = new ArrayList<>();
+    private long parsedBytes;
+    private long parsedLines;
+    private long parseTime;
+
+    /**
+     * Initializes ParallelRebateParser object.
+     * @param delimiter the delimiter used to separate columns, has to be a single character
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @param threads the number of threads used for parsing
+     */
+    public ParallelRebateParser(String delimiter, int skipFirstLines, int threads) {
+        new MappedRebateParser(delimiter, skipFirstLines); // fail early on unsupported delimiters
+        this.delimiter = delimiter;
+        this.skipFirstLines = skipFirstLines;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Only lines with exactly this model are kept.
+     * @param model the model name, null to disable the filter
+     */
+    public void setModelFilter(String model) {
+        modelFilter = model;
+    }
+
+    /**
+     * Selects where the parsed lines are kept.
+     * @param offHeap true to keep the lines in direct buffers outside of the heap
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Parses the file in parallel and merges the results.
+     * @param filename the path to the file containing the data
+     * @param modelReplacer replaces the model names (column 0) with numbers, numbers are assigned in file order
+     * @return all lines of the file in file order
+     * @throws IOException if the file can not be read
+     */
+    public RebateColumns parse(String filename, StringReplacer modelReplacer) throws IOException {
+        long start = System.nanoTime();
+
+        // split file into ranges starting at line breaks
+        List<long[]> ranges = split(filename);
+
+        // parse ranges in parallel
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        chunks = new ArrayList<>();
+        try {
+            List<Callable<Chunk>> tasks = new ArrayList<>();
+            for (long[] range : ranges) {
+                tasks.add(() -> parseChunk(filename, range[0], range[1]));
+            }
+            for (Future<Chunk> future : pool.invokeAll(tasks)) {
+                chunks.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Parsing of " + filename + " was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        // merge chunks in file order, model numbers are assigned in order of first appearance
+        long rows = 0;
+        parsedLines = 0;
+        for (Chunk chunk : chunks) {
+            rows += chunk.columns.size();
+            parsedLines += chunk.lines;
+        }
+        RebateColumns merged = new RebateColumns(RebateColumns.checkCapacity(rows), offHeap);
+        for (Chunk chunk : chunks) {
+            chunk.mapping = new int[chunk.models.size()];
+            for (int i = 0; i < chunk.mapping.length; i++) {
+                chunk.mapping[i] = modelReplacer.encodeString(RebateDataSetIterator.INDEX_MODEL, chunk.models.get(i));
+            }
+            chunk.offset = merged.size();
+            merged.addAll(chunk.columns, chunk.mapping);
+            chunk.columns = null; // free memory of the chunk
+        }
+
+        parsedBytes = ranges.isEmpty() ? 0 : ranges.get(ranges.size() - 1)[1];
+        parseTime = System.nanoTime() - start;
+        return merged;
+    }
+
+    /**
+     * Splits the file into ranges, each range starts after a line break.
+     */
+    private List<long[]> split(String filename) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        if (ParallelGzipInputStream.isGzip(filename)) {
+            ranges.add(new long[]{0, new File(filename).length()});
+            return ranges;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r"); FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            int count = (int) Math.max(1, Math.min((long) threads * CHUNKS_PER_THREAD, size / MIN_CHUNK_SIZE));
+            long chunkSize = size / count;
+
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long from = 0;
+            for (int i = 1; i <= count && from < size; i++) {
+                long to = (i == count) ? size : Math.max(from, i * chunkSize);
+                // move end to the next line break
+                while (to < size) {
+                    buffer.clear();
+                    int read = channel.read(buffer, to);
+                    if (read <= 0) {
+                        to = size;
+                        break;
+                    }
+                    int lineBreak = -1;
+                    for (int j = 0; j < read; j++) {
+                        if (buffer.get(j) == '\n') {
+                            lineBreak = j;
+                            break;
+                        }
+                    }
+                    if (lineBreak >= 0) {
+                        to += lineBreak + 1;
+                        break;
+                    }
+                    to += read;
+                }
+                if (to > from) {
+                    ranges.add(new long[]{from, to});
+                }
+                from = to;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Parses one range with its own parser and model dictionary.
+     */
+    private Chunk parseChunk(String filename, long from, long to) throws IOException {
+        Chunk chunk = new Chunk(new RebateColumns(1024, offHeap));
+        MappedRebateParser parser = new MappedRebateParser(delimiter, skipFirstLines);
+        parser.setModelFilter(modelFilter);
+        parser.setDecompressionThreads(threads);
+
+        Map<String, Integer> dictionary = new HashMap<>();
+        String[] lastModel = new String[1];
+        int[] lastId = new int[1];
+        parser.parse(filename, from, to, (name, year, date, rebate, sales) -> {
+            // the parser returns the same string instance as long as the model does not change
+            if (name != lastModel[0]) {
+                Integer id = dictionary.get(name);
+                if (id == null) {
+                    id = chunk.models.size();
+                    dictionary.put(name, id);
+                    chunk.models.add(name);
+                }
+                lastModel[0] = name;
+                lastId[0] = id;
+            }
+            chunk.columns.add(lastId[0], year, date, rebate, sales);
+            chunk.update(year, date, rebate, sales);
+        });
+        chunk.lines = parser.getParsedLines();
+        return chunk;
+    }
+
+    /**
+     * Updates min and max values with all lines before endRow.
+     * Statistics of complete chunks are merged, only the chunk containing endRow is scanned.
+     * @param merged the columns returned by parse
+     * @param endRow the index after the last line to be included
+     * @param minArray min values, indexed by RebateDataSetIterator.INDEX_MODEL ... INDEX_SALES
+     * @param maxArray max values, indexed by RebateDataSetIterator.INDEX_MODEL ... INDEX_SALES
+     */
+    public void updateMinMax(RebateColumns merged, int endRow, double[] minArray, double[] maxArray) {
+        for (Chunk chunk : chunks) {
+            int chunkSize = chunk.rows;
+            if (chunk.offset >= endRow) {
+                break;
+            }
+            if (chunkSize == 0) {
+                continue; // e.g. only malformed lines, the following chunks may still be training data
+            }
+            if (chunk.offset + chunkSize <= endRow) {
+                // complete chunk, use its statistics
+                for (int id : chunk.mapping) {
+                    update(minArray, maxArray, RebateDataSetIterator.INDEX_MODEL, id);
+                }
+                for (int i = RebateDataSetIterator.INDEX_YEAR; i < minArray.length; i++) {
+                    update(minArray, maxArray, i, chunk.min[i]);
+                    update(minArray, maxArray, i, chunk.max[i]);
+                }
+            } else {
+                // chunk is split, scan the lines
+                for (int i = chunk.offset; i < endRow; i++) {
+                    update(minArray, maxArray, RebateDataSetIterator.INDEX_MODEL, merged.getName(i));
+                    update(minArray, maxArray, RebateDataSetIterator.INDEX_YEAR, merged.getYear(i));
+                    update(minArray, maxArray, RebateDataSetIterator.INDEX_DATE, merged.getDate(i));
+                    update(minArray, maxArray, RebateDataSetIterator.INDEX_REBATE, merged.getRebate(i));
+                    update(minArray, maxArray, RebateDataSetIterator.INDEX_SALES, merged.getSales(i));
+                }
+            }
+        }
+    }
+
+    private static void update(double[] minArray, double[] maxArray, int index, double value) {
+        if (value > maxArray[index]) maxArray[index] = value;
+        if (value < minArray[index]) minArray[index] = value;
+    }
+
+    /**
+     * Returns the number of bytes read by the last call of parse.
+     */
+    public long getParsedBytes() {
+        return parsedBytes;
+    }
+
+    /**
+     * Returns the number of lines of the file read by the last call of parse, see MappedRebateParser.getParsedLines.
+     */
+    public long getParsedLines() {
+        return parsedLines;
+    }
+
+    /**
+     * Returns the parse throughput of the last call of parse.
+     * @return the throughput in MB/s
+     */
+    public double getThroughput() {
+        return RebateDataSetIterator.toMegabytesPerSecond(parsedBytes, parseTime);
+    }
+
+    /**
+     * Result of one parsed range.
+     */
+    private static class Chunk {
+        private RebateColumns columns;
+        private List<String> models = new ArrayList<>();    // local model number -> name
+        private int[] mapping;                              // local model number -> global model number
+        private int offset;                                 // index of the first line in the merged columns
+        private int rows = 0;
+        private long lines;                                 // lines of the range including lines with errors
+
+        // min and max values without the model column (model numbers are not known yet)
+        private double[] min = {0, Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        private double[] max = {0, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+        private Chunk(RebateColumns columns) {
+            this.columns = columns;
+        }
+
+        private void update(int year, long date, double rebate, int sales) {
+            ParallelRebateParser.update(min, max, RebateDataSetIterator.INDEX_YEAR, year);
+            ParallelRebateParser.update(min, max, RebateDataSetIterator.INDEX_DATE, date);
+            ParallelRebateParser.update(min, max, RebateDataSetIterator.INDEX_REBATE, rebate);
+            ParallelRebateParser.update(min, max, RebateDataSetIterator.INDEX_SALES, sales);
+            rows++;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+import java.util.List;
+
+/**
+ * Builds the mini-batches of a RebateDataSetIterator on a background thread while the network is trained
+ * on the previous ones. Up to prefetchBatches finished batches wait in a bounded queue (see RebateReaderOptions
+ * and MiniBatchQueue).
+ * The producer continues with the next model on its own, needsReset is passed through the queue, so the training
+ * loop stays the same: needsReset is true after the last batch of a model and reset continues with the next one.
+ * Reset after the last batch of an epoch starts a new epoch, the producer is only started when the first batch
+ * is needed. The wrapped iterator must not be used while the producer runs. close stops the producer and closes
+ * the wrapped iterator, it must be called when the training ends (also on cancel).
+ * Without prefetching (or for StreamingDataSetIterator, which reads ahead itself) all calls go to the iterator.
+ *
+ * @author Leo Knoll
+ */
+public class PrefetchingDataSetIterator implements DataSetIterator {
+
+    private final RebateDataSetIterator iterator;
+    private final boolean prefetch;
+    private final int prefetchBatches;
+
+    // batches of the current epoch, null until the first batch is needed
+    private MiniBatchQueue queue;
+    private boolean needsReset = false;
+    private boolean resetPending = false;
+
+    /**
+     * @param iterator the iterator which builds the mini-batches, it must be at the start of an epoch
+     * @param options prefetch enables the background thread, prefetchBatches is the size of the queue
+     */
+    public PrefetchingDataSetIterator(RebateDataSetIterator iterator, RebateReaderOptions options) {
+        this.iterator = iterator;
+        this.prefetch = options.isPrefetch() && !(iterator instanceof StreamingDataSetIterator);
+        this.prefetchBatches = Math.max(1, options.getPrefetchBatches());
+    }
+
+    /**
+     * Returns the batches of the epoch, restarts the iterator after a reset or close and starts the producer if needed.
+     * The iterator is only restarted while no producer is running, so it is never used by two threads at once.
+     */
+    private MiniBatchQueue queue() {
+        if (queue == null) {
+            if (resetPending) {
+                iterator.restartEpoch();
+                resetPending = false;
+            }
+            queue = new MiniBatchQueue(prefetchBatches, "Mini-batch prefetch", target -> {
+                // same order of calls as the training loop without prefetching
+                while (!Thread.currentThread().isInterrupted() && iterator.hasNext()) {
+                    if (iterator.needsReset()) {
+                        iterator.reset(); // next model
+                    }
+                    DataSet data = iterator.next();
+                    target.put(data, iterator.needsReset());
+                }
+            });
+        }
+        return queue;
+    }
+
+    private void stopProducer() {
+        if (queue != null) {
+            queue.stop();
+            queue = null;
+        }
+    }
+
+    @Override
+    public DataSet next() {
+        if (!prefetch) {
+            return iterator.next();
+        }
+        MiniBatchQueue.Batch batch = queue().next();
+        needsReset = batch.lastOfModel;
+        return batch.data;
+    }
+
+    /**
+     * Returns the next mini-batch, the size is chosen by the wrapped iterator.
+     */
+    @Override public DataSet next(int num) { return next(); }
+
+    @Override
+    public boolean hasNext() {
+        if (!prefetch) {
+            return iterator.hasNext();
+        }
+        return queue().hasNext();
+    }
+
+    public boolean needsReset() {
+        return prefetch ? needsReset : iterator.needsReset();
+    }
+
+    /**
+     * Continues with the next model after a model boundary (see needsReset), otherwise stops the producer
+     * and starts a new epoch with the next batch.
+     */
+    @Override
+    public void reset() {
+        if (!prefetch) {
+            iterator.reset();
+            return;
+        }
+        if (needsReset && queue != null && queue.hasNext()) {
+            needsReset = false;
+            return;
+        }
+        restartEpoch();
+    }
+
+    /**
+     * Starts a new epoch with the next batch, also before the end of the current epoch.
+     */
+    public void restartEpoch() {
+        if (!prefetch) {
+            iterator.restartEpoch();
+            return;
+        }
+        stopProducer();
+        needsReset = false;
+        resetPending = true;
+    }
+
+    /**
+     * Stops the producer, the batches which were already built are dropped. Closes the wrapped iterator,
+     * afterwards it can only be used for testing (see RebateDataSetIterator.close).
+     */
+    public void close() {
+        if (prefetch) {
+            stopProducer();
+            needsReset = false;
+            resetPending = true;
+        }
+        iterator.close();
+    }
+
+    public RebateDataSetIterator getIterator() {
+        return iterator;
+    }
+
+    @Override public int totalExamples() { return iterator.totalExamples(); }
+
+    @Override public int inputColumns() { return iterator.inputColumns(); }
+
+    @Override public int totalOutcomes() { return iterator.totalOutcomes(); }
+
+    @Override public boolean resetSupported() { return true; }
+
+    // the batches are already built in the background
+    @Override public boolean asyncSupported() { return false; }
+
+    @Override public int batch() { return iterator.batch(); }
+
+    @Override public int cursor() { return iterator.cursor(); }
+
+    @Override public int numExamples() { return iterator.numExamples(); }
+
+    @Override public void setPreProcessor(DataSetPreProcessor dataSetPreProcessor) {
+        throw new UnsupportedOperationException("Not Implemented");
+    }
+
+    @Override public DataSetPreProcessor getPreProcessor() { throw new UnsupportedOperationException("Not Implemented"); }
+
+    @Override public List<String> getLabels() { throw new UnsupportedOperationException("Not Implemented"); }
+}
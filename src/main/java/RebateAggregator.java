@@ -0,0 +1,183 @@
+import java.util.Arrays;
+
+/**
+ * Aggregates lines with the same model, model year and day, independent of their position in the input file.
+ * The rebates of a day are averaged and the sales are summed up, the date of the first line of a day is kept.
+ * Uses an open addressing hash table with primitive long keys, so no objects are created per line.
+ * The aggregated lines are ordered by day, model and model year, input files therefore do not need to be sorted.
+ *
+ * @author Leo Knoll
+ */
+public class RebateAggregator {
+
+    private static final int SECONDS_PER_DAY = 60 * 60 * 24;
+
+    // key layout (day first, so that sorting the keys orders the lines by date): day (23 bit) | model (24 bit) | year (16 bit)
+    private static final int DAY_BITS = 23;
+    private static final int MODEL_BITS = 24;
+    private static final int YEAR_BITS = 16;
+    private static final long DAY_OFFSET = 1L << (DAY_BITS - 1);
+
+    // hash table, contains the group number + 1 of each slot (0 = empty)
+    private int[] table;
+    private int mask;
+
+    // values of each group
+    private long[] keys;
+    private long[] dates;
+    private double[] rebateSums;
+    private long[] salesSums;
+    private int[] counts;
+    private int groups = 0;
+    private long lines = 0;
+
+
+    public RebateAggregator() {
+        this(1024);
+    }
+
+    /**
+     * Initializes RebateAggregator object.
+     * @param expectedGroups the expected number of aggregated lines
+     */
+    public RebateAggregator(int expectedGroups) {
+        int capacity = Math.max(16, Integer.highestOneBit(Math.max(1, expectedGroups) - 1) << 1);
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+        keys = new long[capacity];
+        dates = new long[capacity];
+        rebateSums = new double[capacity];
+        salesSums = new long[capacity];
+        counts = new int[capacity];
+    }
+
+    /**
+     * Aggregates all lines of a column store.
+     * @param lines the lines in any order
+     * @param offHeap true to create the aggregated lines off-heap (see RebateColumns)
+     * @return one line per model, model year and day, ordered by date
+     */
+    public static RebateColumns aggregate(RebateColumns lines, boolean offHeap) {
+        RebateAggregator aggregator = new RebateAggregator(lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            aggregator.add(lines.getName(i), lines.getYear(i), lines.getDate(i), lines.getRebate(i), lines.getSales(i));
+        }
+        RebateColumns aggregated = new RebateColumns(aggregator.size(), offHeap);
+        aggregator.writeTo(aggregated);
+        return aggregated;
+    }
+
+    /**
+     * Adds a line to the group of its model, model year and day.
+     * @param date the UNIX timestamp in seconds
+     */
+    public void add(int name, int year, long date, double rebate, int sales) {
+        long key = key(name, year, date);
+        int group = find(key);
+        if (group < 0) {
+            group = groups;
+            if (group == keys.length) {
+                grow();
+            }
+            keys[group] = key;
+            dates[group] = date;
+            groups++;
+            insert(key, group);
+        }
+        rebateSums[group] += rebate;
+        salesSums[group] += sales;
+        counts[group]++;
+        lines++;
+    }
+
+    /**
+     * Adds the aggregated lines at the end of a column store, ordered by day, model and model year.
+     * @param target the column store
+     */
+    public void writeTo(RebateColumns target) {
+        long[] sorted = Arrays.copyOf(keys, groups);
+        Arrays.sort(sorted);
+        for (long key : sorted) {
+            int group = find(key);
+            int name = (int) ((key >>> YEAR_BITS) & ((1L << MODEL_BITS) - 1));
+            int year = (int) (key & ((1L << YEAR_BITS) - 1));
+            long sales = salesSums[group];
+            target.add(name, year, dates[group], rebateSums[group] / counts[group],
+                (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, sales)));
+        }
+    }
+
+    /**
+     * Returns the number of aggregated lines.
+     */
+    public int size() {
+        return groups;
+    }
+
+    /**
+     * Returns the number of added lines.
+     */
+    public long getLines() {
+        return lines;
+    }
+
+    private static long key(int name, int year, long date) {
+        long day = Math.floorDiv(date, SECONDS_PER_DAY) + DAY_OFFSET;
+        if (name < 0 || name >= 1 << MODEL_BITS) {
+            throw new IllegalArgumentException("Model number out of range: " + name);
+        }
+        if (year < 0 || year >= 1 << YEAR_BITS) {
+            throw new IllegalArgumentException("Model year out of range: " + year);
+        }
+        if (day < 0 || day >= 1L << DAY_BITS) {
+            throw new IllegalArgumentException("Date out of range: " + date);
+        }
+        return (day << (MODEL_BITS + YEAR_BITS)) | ((long) name << YEAR_BITS) | year;
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Returns the group of a key or -1.
+     */
+    private int find(long key) {
+        int slot = hash(key) & mask;
+        while (table[slot] != 0) {
+            int group = table[slot] - 1;
+            if (keys[group] == key) {
+                return group;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(long key, int group) {
+        int slot = hash(key) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = group + 1;
+    }
+
+    /**
+     * Doubles the capacity, the hash table is kept at most half full.
+     */
+    private void grow() {
+        int capacity = keys.length * 2;
+        keys = Arrays.copyOf(keys, capacity);
+        dates = Arrays.copyOf(dates, capacity);
+        rebateSums = Arrays.copyOf(rebateSums, capacity);
+        salesSums = Arrays.copyOf(salesSums, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+        for (int group = 0; group < groups; group++) {
+            insert(keys[group], group);
+        }
+    }
+}
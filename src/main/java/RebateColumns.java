@@ -0,0 +1,421 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Growable column store for rebate data, each feature is kept in its own primitive buffer.
+ * Uses the same fields as RebateData but without one object per line.
+ * The buffers are either on the heap (backed by arrays) or off-heap (direct or memory-mapped buffers),
+ * off-heap stores keep the heap small and are not scanned by the garbage collector.
+ * A store created by groupByName additionally knows the range of lines of each model.
+ *
+ * @author Leo Knoll
+ */
+public class RebateColumns {
+
+    /**
+     * Maximum number of lines, the direct buffer of an off-heap column with 8 bytes per line is limited to
+     * Integer.MAX_VALUE bytes. Heap columns use the same limit, so both behave the same.
+     */
+    public static final int MAX_CAPACITY = Integer.MAX_VALUE / 8;
+
+    private final boolean offHeap;
+    private int size = 0;
+
+    private IntBuffer names;
+    private IntBuffer years;
+    private LongBuffer dates;
+    private DoubleBuffer rebates;
+    private IntBuffer sales;
+
+    // first line of each model number, the lines of model n are modelStarts[n] ... modelStarts[n + 1] - 1
+    private int[] modelStarts = null;
+
+
+    public RebateColumns() {
+        this(1024);
+    }
+
+    public RebateColumns(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Creates an empty column store.
+     * @param capacity the initial number of lines
+     * @param offHeap true to keep the lines in direct buffers outside of the heap
+     */
+    public RebateColumns(int capacity, boolean offHeap) {
+        this.offHeap = offHeap;
+        allocate(Math.max(capacity, 16));
+    }
+
+    /**
+     * Creates a column store using the given arrays, all arrays need the same length.
+     */
+    public RebateColumns(int[] names, int[] years, long[] dates, double[] rebates, int[] sales) {
+        this(IntBuffer.wrap(names), IntBuffer.wrap(years), LongBuffer.wrap(dates), DoubleBuffer.wrap(rebates), IntBuffer.wrap(sales), false);
+    }
+
+    /**
+     * Creates a column store using the given buffers, e.g. memory-mapped columns of a snapshot.
+     * All buffers need the same capacity, which is the number of lines.
+     */
+    RebateColumns(IntBuffer names, IntBuffer years, LongBuffer dates, DoubleBuffer rebates, IntBuffer sales, boolean offHeap) {
+        this.offHeap = offHeap;
+        this.names = names;
+        this.years = years;
+        this.dates = dates;
+        this.rebates = rebates;
+        this.sales = sales;
+        this.size = names.capacity();
+    }
+
+    /**
+     * Checks the number of lines of a column store.
+     * @param lines the number of lines
+     * @return the number of lines as capacity
+     * @throws IllegalArgumentException if the columns can not hold that many lines (see MAX_CAPACITY)
+     */
+    public static int checkCapacity(long lines) {
+        if (lines < 0 || lines > MAX_CAPACITY) {
+            throw new IllegalArgumentException("Input data has too many lines for the columns: " + lines
+                + " (at most " + MAX_CAPACITY + "), split the input into several files or use the streaming iterator.");
+        }
+        return (int) lines;
+    }
+
+    /**
+     * Makes sure that the columns can hold the given number of lines without growing, e.g. if the catalog knows the lines.
+     * @param lines the number of lines
+     */
+    public void ensureCapacity(long lines) {
+        if (lines > names.capacity()) {
+            resize(checkCapacity(lines));
+        }
+    }
+
+    private void allocate(int capacity) {
+        checkCapacity(capacity);
+        if (offHeap) {
+            try {
+                // the columns are only replaced if all buffers could be allocated
+                IntBuffer newNames = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+                IntBuffer newYears = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+                LongBuffer newDates = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asLongBuffer();
+                DoubleBuffer newRebates = ByteBuffer.allocateDirect(capacity * 8).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                IntBuffer newSales = ByteBuffer.allocateDirect(capacity * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+                names = newNames;
+                years = newYears;
+                dates = newDates;
+                rebates = newRebates;
+                sales = newSales;
+            } catch (OutOfMemoryError e) {
+                // direct memory is limited by -XX:MaxDirectMemorySize (default is the maximum heap size)
+                throw new OutOfMemoryError("Not enough direct memory for " + capacity + " lines off-heap ("
+                    + (capacity * 28L >> 20) + " MB), increase -XX:MaxDirectMemorySize: " + e.getMessage());
+            }
+        } else {
+            names = IntBuffer.allocate(capacity);
+            years = IntBuffer.allocate(capacity);
+            dates = LongBuffer.allocate(capacity);
+            rebates = DoubleBuffer.allocate(capacity);
+            sales = IntBuffer.allocate(capacity);
+        }
+    }
+
+    /**
+     * Adds a line at the end of the columns.
+     */
+    public void add(int name, int year, long date, double rebate, int sales) {
+        if (size == names.capacity()) {
+            grow(size + 1);
+        }
+        this.names.put(size, name);
+        this.years.put(size, year);
+        this.dates.put(size, date);
+        this.rebates.put(size, rebate);
+        this.sales.put(size, sales);
+        size++;
+    }
+
+    /**
+     * Adds a line of another column store at the end of the columns.
+     */
+    public void add(RebateColumns other, int index) {
+        add(other.names.get(index), other.years.get(index), other.dates.get(index), other.rebates.get(index), other.sales.get(index));
+    }
+
+    /**
+     * Copies all lines of another column store to the end of this one.
+     * @param other the lines to be copied
+     * @param nameMapping maps the names of the other store to the names of this store, null to keep them
+     */
+    public void addAll(RebateColumns other, int[] nameMapping) {
+        if (size + other.size > names.capacity()) {
+            grow((long) size + other.size);
+        }
+        for (int i = 0; i < other.size; i++) {
+            names.put(size + i, (nameMapping == null) ? other.names.get(i) : nameMapping[other.names.get(i)]);
+        }
+        copy(other.years, 0, years, size, other.size);
+        copy(other.dates, 0, dates, size, other.size);
+        copy(other.rebates, 0, rebates, size, other.size);
+        copy(other.sales, 0, sales, size, other.size);
+        size += other.size;
+    }
+
+    /**
+     * Overwrites a line.
+     */
+    public void set(int index, int name, int year, long date, double rebate, int sales) {
+        this.names.put(index, name);
+        this.years.put(index, year);
+        this.dates.put(index, date);
+        this.rebates.put(index, rebate);
+        this.sales.put(index, sales);
+    }
+
+    /**
+     * Overwrites a line with a line of another column store (or another line of this store).
+     */
+    public void set(int index, RebateColumns other, int otherIndex) {
+        set(index, other.names.get(otherIndex), other.years.get(otherIndex), other.dates.get(otherIndex),
+            other.rebates.get(otherIndex), other.sales.get(otherIndex));
+    }
+
+    /**
+     * Changes the number of lines, new lines have undefined values and have to be set (see set).
+     * Allows to fill lines in any order or from several threads, each thread setting different lines.
+     */
+    public void setSize(int size) {
+        if (size > names.capacity()) {
+            grow(size);
+        }
+        this.size = size;
+    }
+
+    /**
+     * Removes the lines from ... to - 1, following lines are moved to the front.
+     */
+    public void removeRange(int from, int to) {
+        for (int i = to; i < size; i++) {
+            int target = i - (to - from);
+            names.put(target, names.get(i));
+            years.put(target, years.get(i));
+            dates.put(target, dates.get(i));
+            rebates.put(target, rebates.get(i));
+            sales.put(target, sales.get(i));
+        }
+        size -= to - from;
+    }
+
+    /**
+     * Copies the lines from ... to - 1 grouped by model number into a new column store (on- or off-heap like this store).
+     * The lines of each model keep their order, see getModelStart and getModelEnd.
+     * @param from the first line
+     * @param to the index after the last line
+     * @return the grouped lines
+     */
+    public RebateColumns groupByName(int from, int to) {
+        int maxName = -1;
+        for (int i = from; i < to; i++) {
+            maxName = Math.max(maxName, names.get(i));
+        }
+
+        // counting sort by model number
+        int[] starts = new int[maxName + 2];
+        for (int i = from; i < to; i++) {
+            starts[names.get(i) + 1]++;
+        }
+        for (int i = 1; i < starts.length; i++) {
+            starts[i] += starts[i - 1];
+        }
+        int[] positions = new int[maxName + 1];
+        System.arraycopy(starts, 0, positions, 0, positions.length);
+
+        RebateColumns grouped = new RebateColumns(to - from, offHeap);
+        for (int i = from; i < to; i++) {
+            int name = names.get(i);
+            int position = positions[name]++;
+            grouped.names.put(position, name);
+            grouped.years.put(position, years.get(i));
+            grouped.dates.put(position, dates.get(i));
+            grouped.rebates.put(position, rebates.get(i));
+            grouped.sales.put(position, sales.get(i));
+        }
+        grouped.size = to - from;
+        grouped.modelStarts = starts;
+        return grouped;
+    }
+
+    /**
+     * Returns the first line of a model, only available for stores created by groupByName.
+     */
+    public int getModelStart(int name) {
+        return (modelStarts == null || name < 0 || name + 1 >= modelStarts.length) ? 0 : modelStarts[name];
+    }
+
+    /**
+     * Returns the index after the last line of a model, only available for stores created by groupByName.
+     */
+    public int getModelEnd(int name) {
+        return (modelStarts == null || name < 0 || name + 1 >= modelStarts.length) ? 0 : modelStarts[name + 1];
+    }
+
+    /**
+     * Returns the model numbers with at least one line in ascending order, only available for stores created by groupByName.
+     */
+    public List<Integer> getModels() {
+        List<Integer> models = new ArrayList<>();
+        if (modelStarts != null) {
+            for (int name = 0; name + 1 < modelStarts.length; name++) {
+                if (modelStarts[name + 1] > modelStarts[name]) {
+                    models.add(name);
+                }
+            }
+        }
+        return models;
+    }
+
+    void setModelStarts(int[] modelStarts) {
+        this.modelStarts = modelStarts;
+    }
+
+    private void grow(long minCapacity) {
+        checkCapacity(minCapacity);
+        long capacity = Math.max(minCapacity, names.capacity() + (long) (names.capacity() >> 1));
+        resize((int) Math.min(capacity, MAX_CAPACITY));
+    }
+
+    private void resize(int capacity) {
+        IntBuffer oldNames = names;
+        IntBuffer oldYears = years;
+        LongBuffer oldDates = dates;
+        DoubleBuffer oldRebates = rebates;
+        IntBuffer oldSales = sales;
+        allocate(capacity);
+        copy(oldNames, 0, names, 0, size);
+        copy(oldYears, 0, years, 0, size);
+        copy(oldDates, 0, dates, 0, size);
+        copy(oldRebates, 0, rebates, 0, size);
+        copy(oldSales, 0, sales, 0, size);
+    }
+
+    private static void copy(IntBuffer source, int from, IntBuffer target, int to, int length) {
+        IntBuffer src = source.duplicate();
+        src.limit(from + length).position(from);
+        IntBuffer dst = target.duplicate();
+        dst.position(to);
+        dst.put(src);
+    }
+
+    private static void copy(LongBuffer source, int from, LongBuffer target, int to, int length) {
+        LongBuffer src = source.duplicate();
+        src.limit(from + length).position(from);
+        LongBuffer dst = target.duplicate();
+        dst.position(to);
+        dst.put(src);
+    }
+
+    private static void copy(DoubleBuffer source, int from, DoubleBuffer target, int to, int length) {
+        DoubleBuffer src = source.duplicate();
+        src.limit(from + length).position(from);
+        DoubleBuffer dst = target.duplicate();
+        dst.position(to);
+        dst.put(src);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Shrinks the buffers to the number of lines.
+     */
+    public void trimToSize() {
+        if (size < names.capacity()) {
+            resize(size);
+        }
+    }
+
+    // backing buffers for bulk access, only the first size() elements are valid (use absolute get and put)
+
+    IntBuffer nameColumn() {
+        return names;
+    }
+
+    IntBuffer yearColumn() {
+        return years;
+    }
+
+    LongBuffer dateColumn() {
+        return dates;
+    }
+
+    DoubleBuffer rebateColumn() {
+        return rebates;
+    }
+
+    IntBuffer salesColumn() {
+        return sales;
+    }
+
+    /**
+     * Creates a RebateData object of a line.
+     */
+    public RebateData toRebateData(int index) {
+        return new RebateData(names.get(index), years.get(index), dates.get(index), rebates.get(index), sales.get(index));
+    }
+
+
+    // getters and setters
+
+    public int getName(int index) {
+        return names.get(index);
+    }
+
+    public void setName(int index, int name) {
+        names.put(index, name);
+    }
+
+    public int getYear(int index) {
+        return years.get(index);
+    }
+
+    public void setYear(int index, int year) {
+        years.put(index, year);
+    }
+
+    public long getDate(int index) {
+        return dates.get(index);
+    }
+
+    public void setDate(int index, long date) {
+        dates.put(index, date);
+    }
+
+    public double getRebate(int index) {
+        return rebates.get(index);
+    }
+
+    public void setRebate(int index, double rebate) {
+        rebates.put(index, rebate);
+    }
+
+    public int getSales(int index) {
+        return sales.get(index);
+    }
+
+    public void setSales(int index, int sales) {
+        this.sales.put(index, sales);
+    }
+}
@@ -7,8 +7,11 @@ import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 /**
@@ -28,10 +31,12 @@ public abstract class RebateDataSetIterator implements DataSetIterator {
     protected static final int INDEX_REBATE = 3;
     protected static final int INDEX_SALES = 4;
 
-    // data lists
-    protected List<RebateData> allData;
-    protected  List<RebateData> trainDataList = new ArrayList<>();
-    protected  List<RebateData> testDataList = new ArrayList<>();
+    protected static final int UNIX_TIMESTAMP_DAY = 24*60*60; // 86400 sec.
+
+    // data columns
+    protected RebateColumns allData;
+    protected RebateColumns trainData;
+    protected RebateColumns testData;
 
     // dataset for training and testing
     protected List<Pair<INDArray, INDArray>> test;
@@ -49,6 +54,19 @@ public abstract class RebateDataSetIterator implements DataSetIterator {
 
     protected boolean average;
 
+    protected RebateReaderOptions options;
+
+    // replaces the model names with numbers, is created in readRebateDataFromFile
+    protected StringReplacer modelReplacer;
+
+    // settings of the input data, needed to append new data
+    protected String dataFilePath;
+    protected String delimiter;
+    protected int skipFirstLines;
+    protected String model;
+    protected double splitRatio;
+    protected boolean addMissingDays;
+
     /** minimal values of each feature in stock dataset */
     protected double[] minArray = new double[INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE];
     /** maximal values of each feature in stock dataset */
@@ -66,15 +84,42 @@ public abstract class RebateDataSetIterator implements DataSetIterator {
      * @param skipFirstLines the number of lines which have to be skipped at the beginning
      */
     public RebateDataSetIterator(String dataFilePath, String delimiter, int inputDays, double splitRatio, String model, boolean addMissingDays, int skipFirstLines, boolean average) {
+        this(dataFilePath, delimiter, inputDays, splitRatio, model, addMissingDays, skipFirstLines, average, new RebateReaderOptions());
+    }
+
+    /**
+     * Initialize new DataSetIterator object.
+     * Reads in data and prepares test and train data.
+     * @param dataFilePath the path to the data containing the data
+     * @param delimiter the delimiter used to separate columns in the data
+     * @param inputDays the number of days used to predict the next day
+     * @param splitRatio the percent of data used for training
+     * @param model the model we want to test
+     * @param addMissingDays if missing dates should be added with zeros
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @param options options on how the data is read in
+     */
+    public RebateDataSetIterator(String dataFilePath, String delimiter, int inputDays, double splitRatio, String model, boolean addMissingDays, int skipFirstLines, boolean average, RebateReaderOptions options) {
         Objects.requireNonNull(dataFilePath, "Path to data cannot be null!");
         Objects.requireNonNull(delimiter, "Delimiter cannot be null!");
         Objects.requireNonNull(model, "Model is null, you must select a model or class for testing!");
+        Objects.requireNonNull(options, "Reader options cannot be null!");
 
         this.inputDays = inputDays;
         this.average = average;
+        this.options = options;
+        this.dataFilePath = dataFilePath;
+        this.delimiter = delimiter;
+        this.skipFirstLines = skipFirstLines;
+        this.model = model;
+        this.splitRatio = splitRatio;
+        this.addMissingDays = addMissingDays;
+
+        trainData = createColumns();
+        testData = createColumns();
 
         // read all input data
-        allData = readRebateDataFromFile(dataFilePath, delimiter, model, addMissingDays, skipFirstLines);
+        allData = readRebateDataFromFile(prepareInputFile(dataFilePath), delimiter, model, addMissingDays, skipFirstLines);
 
         // split data in train and test data
         splitData(splitRatio);
@@ -94,6 +139,21 @@ public abstract class RebateDataSetIterator implements DataSetIterator {
      */
     abstract void initializeTraining();
 
+    /**
+     * Starts a new epoch with the first mini-batch, also before the end of the current epoch
+     * (reset only continues with the next model at a model boundary, see needsReset).
+     */
+    void restartEpoch() {
+        reset();
+    }
+
+    /**
+     * Releases the resources used for training (e.g. threads and temporary files), afterwards the iterator
+     * can not be used for training anymore. The test data stays available. Nothing to do by default.
+     */
+    public void close() {
+    }
+
     protected double[] getMaxArray() {
         double[] arr = new double[1];
         arr[0] = maxArray[INDEX_SALES];
@@ -144,10 +204,31 @@ public abstract class RebateDataSetIterator implements DataSetIterator {
         return needsReset;
     }
 
-    public List<RebateData> getAllData() {
+    public RebateColumns getAllData() {
         return allData;
     }
 
+    /**
+     * Returns the model names of the input data ordered by their number.
+     * @return the model names, the first name has the number 2
+     */
+    public List<String> getModelNames() {
+        return modelReplacer.getStrings(INDEX_MODEL);
+    }
+
+    /**
+     * Returns the number of a model without adding it to the model names (see StringReplacer.lookupString).
+     * @param model the model name as selected, surrounding spaces are ignored if there is no exact match
+     * @return the number of the model or -1 if the input data does not contain it
+     */
+    protected int findModel(String model) {
+        int id = modelReplacer.lookupString(INDEX_MODEL, model);
+        if (id < 0) {
+            System.err.println("Model " + model + " not found in the input data!");
+        }
+        return id;
+    }
+
     /**
      * Reads in all data and saves it in a list.
      * Also converts strings to numbers.
@@ -156,9 +237,205 @@ public abstract class RebateDataSetIterator implements DataSetIterator {
      * @param model  the model we want to test, saves the associated number in filterID
      * @param addMissingDays if missing dates should be added with zeros
      * @param skipFirstLines the number of lines which have to be skipped at the beginning
-     * @return all data as list
+     * @return all data as columns
+     */
+    abstract RebateColumns readRebateDataFromFile(String filename, String delimiter, String model, boolean addMissingDays, int skipFirstLines);
+
+    /**
+     * Sorts the input file if enabled in the reader options (see RebateFileSorter).
+     * The files of a directory or glob pattern are sorted separately while they are read (see createFileSet).
+     * @param filename the path to the input file
+     * @return the path to the sorted file, or the input file if it is not sorted
+     */
+    protected String prepareInputFile(String filename) {
+        if (!options.isExternalSort() || RebateFileSet.isFileSet(filename)) {
+            return filename;
+        }
+        try {
+            RebateFileSorter sorter = new RebateFileSorter(delimiter, skipFirstLines);
+            sorter.setMemoryBudget(options.getSortMemory());
+            sorter.setTempDirectory(options.getSortDirectory());
+            return sorter.sortCached(new File(filename)).getPath();
+        } catch (IOException e) {
+            // read the unsorted file instead
+            System.err.println("Could not sort " + filename + ": " + e.getMessage());
+            return filename;
+        }
+    }
+
+    /**
+     * Creates a reader for a directory or glob pattern, configured by the reader options.
+     */
+    protected RebateFileSet createFileSet() {
+        RebateFileSet fileSet = new RebateFileSet(delimiter, skipFirstLines, options.getThreads());
+        fileSet.setOffHeap(options.isOffHeap());
+        if (options.isExternalSort()) {
+            fileSet.setExternalSort(options.getSortMemory(), options.getSortDirectory());
+        }
+        return fileSet;
+    }
+
+    /**
+     * Creates an empty column store, on- or off-heap depending on the reader options.
+     */
+    protected RebateColumns createColumns() {
+        return createColumns(1024);
+    }
+
+    /**
+     * Creates an empty column store with the given capacity, on- or off-heap depending on the reader options.
+     */
+    protected RebateColumns createColumns(int capacity) {
+        return new RebateColumns(capacity, options.isOffHeap());
+    }
+
+    /**
+     * Appends new data, e.g. the sales of the last days, without reading in the whole history again.
+     * Only lines after the last known date of their model are added, so the file may also be the complete input file.
+     * A directory or glob pattern reads all matching files (see RebateFileSet).
+     * The model dictionary and the min and max values are updated, training and test data are extended in place.
+     * Has to be called between two epochs, afterwards the training starts at the beginning.
+     * @param filename the path to the file containing the new data, same format as the input file
+     * @return the number of added lines
+     */
+    public int appendRebateDataFromFile(String filename) {
+        // last known date of each model
+        Map<Integer, Long> lastDates = new HashMap<>();
+        for (int i = 0; i < allData.size(); i++) {
+            lastDates.merge(allData.getName(i), allData.getDate(i), Math::max);
+        }
+
+        RebateColumns newData = createColumns();
+        try {
+            long parseStart = System.nanoTime();
+            if (RebateFileSet.isFileSet(filename)) {
+                RebateFileSet fileSet = createFileSet();
+                RebateColumns lines = fileSet.parse(filename, modelReplacer); // new models get the next free number
+                for (int i = 0; i < lines.size(); i++) {
+                    Long lastDate = lastDates.get(lines.getName(i));
+                    if (lastDate == null || lines.getDate(i) > lastDate) {
+                        newData.add(lines, i);
+                    }
+                }
+                logParseThroughput("File set (" + fileSet.getFiles() + " files)", fileSet.getParsedBytes(), System.nanoTime() - parseStart);
+            } else {
+                MappedRebateParser parser = new MappedRebateParser(delimiter, skipFirstLines);
+                parser.parse(prepareInputFile(filename), (name, year, date, rebate, sales) -> {
+                    int id = modelReplacer.encodeString(INDEX_MODEL, name); // new models get the next free number
+                    Long lastDate = lastDates.get(id);
+                    if (lastDate == null || date > lastDate) {
+                        newData.add(id, year, date, rebate, sales);
+                    }
+                });
+                logParseThroughput("Memory-mapped parser", parser.getParsedBytes(), System.nanoTime() - parseStart);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+
+        int added = appendRebateData(options.isAggregate() ? RebateAggregator.aggregate(newData, options.isOffHeap()) : newData);
+        System.out.println("Appended " + added + " lines of " + filename + ".");
+        return added;
+    }
+
+    /**
+     * Adds new lines at the end of the data and extends training and test data.
+     * @param newData the new lines in file order, all lines are newer than the known lines of the same model
+     * @return the number of added lines
      */
-    abstract List<RebateData> readRebateDataFromFile(String filename, String delimiter, String model, boolean addMissingDays, int skipFirstLines);
+    abstract int appendRebateData(RebateColumns newData);
+
+    /**
+     * Logs how fast the input file was parsed.
+     * @param parser the name of the parser
+     * @param bytes the number of bytes parsed
+     * @param nanos the time needed in nanoseconds
+     */
+    protected void logParseThroughput(String parser, long bytes, long nanos) {
+        log.info(String.format("%s parsed %.1f MB in %d ms (%.1f MB/s)", parser, bytes / (1024.0 * 1024.0),
+            nanos / 1000000, toMegabytesPerSecond(bytes, nanos)));
+    }
+
+    static double toMegabytesPerSecond(long bytes, long nanos) {
+        if (nanos <= 0) {
+            return 0;
+        }
+        return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+
+    /**
+     * Updates min and max values with the lines from ... to - 1.
+     */
+    protected void updateMinMax(RebateColumns columns, int from, int to) {
+        for (int i = from; i < to; i++) {
+            double[] nums = {columns.getName(i), columns.getYear(i), columns.getDate(i), columns.getRebate(i), columns.getSales(i)};
+            for (int j = 0; j < nums.length; j++) {
+                if (nums[j] > maxArray[j]) maxArray[j] = nums[j];
+                if (nums[j] < minArray[j]) minArray[j] = nums[j];
+            }
+        }
+    }
+
+    /**
+     * Counts the lines fillMissingDays adds to the lines from ... to - 1 (lines of one model ordered by date).
+     * @param minDate the first day which has to exist
+     * @param maxDate lines are added after the last line until this day
+     * @return the number of missing days
+     */
+    static int countMissingDays(RebateColumns data, int from, int to, long minDate, long maxDate) {
+        long missing = 0;
+        long date = minDate;
+        for (int i = from; i < to; i++) {
+            long lineDate = data.getDate(i);
+            if (lineDate - date >= UNIX_TIMESTAMP_DAY) {
+                missing += (lineDate - date) / UNIX_TIMESTAMP_DAY;
+            }
+            date = lineDate + UNIX_TIMESTAMP_DAY;
+        }
+        if (to > from && maxDate - data.getDate(to - 1) >= UNIX_TIMESTAMP_DAY) {
+            missing += (maxDate - data.getDate(to - 1)) / UNIX_TIMESTAMP_DAY;
+        }
+        return Math.toIntExact(missing);
+    }
+
+    /**
+     * Copies the lines from ... to - 1 (lines of one model ordered by date) and adds lines with zero sales for missing days,
+     * a missing day uses model and year of the following line. The lines are written from the back in a single pass,
+     * so source and target can be the same columns as long as the target lines do not start before from.
+     * @param source the lines of one model
+     * @param target the columns the lines are written to, have to contain the lines up to targetEnd - 1 (see RebateColumns.setSize)
+     * @param targetEnd the index after the last written line, the first written line is targetEnd - (to - from) - countMissingDays(...)
+     * @param minDate the first day which has to exist
+     * @param maxDate lines are added after the last line until this day
+     */
+    static void fillMissingDays(RebateColumns source, int from, int to, RebateColumns target, int targetEnd, long minDate, long maxDate) {
+        if (to <= from) {
+            return;
+        }
+        int position = targetEnd;
+
+        // days after the last line
+        int name = source.getName(to - 1);
+        int year = source.getYear(to - 1);
+        long lastDate = source.getDate(to - 1);
+        for (long k = (maxDate - lastDate) / UNIX_TIMESTAMP_DAY; k >= 1; k--) {
+            target.set(--position, name, year, lastDate + k * UNIX_TIMESTAMP_DAY, 0, 0);
+        }
+
+        for (int i = to - 1; i >= from; i--) {
+            name = source.getName(i);
+            year = source.getYear(i);
+            long lineDate = source.getDate(i);
+            target.set(--position, source, i);
+
+            // days between the previous line (or minDate) and this line
+            long previous = (i > from) ? source.getDate(i - 1) + UNIX_TIMESTAMP_DAY : minDate;
+            for (long k = (lineDate - previous) / UNIX_TIMESTAMP_DAY - 1; k >= 0; k--) {
+                target.set(--position, name, year, previous + k * UNIX_TIMESTAMP_DAY, 0, 0);
+            }
+        }
+    }
 
 
     // ---------------------------------------------- Testing ---------------------------------------------------------
@@ -166,12 +443,23 @@ public abstract class RebateDataSetIterator implements DataSetIterator {
     abstract void testPrediction(MultiLayerNetwork net, boolean average, boolean showResult);
 
     public double[] predictFutureSales(MultiLayerNetwork net, INDArray[] rebates) {
-        INDArray[][] predicts = new INDArray[rebates.length][inputDays];
+        return predictFutureSales(net, rebates, inputDays, minArray[INDEX_SALES], maxArray[INDEX_SALES]);
+    }
 
-        INDArray min = Nd4j.create(getMinArray());
-        INDArray max = Nd4j.create(getMaxArray());
+    /**
+     * Predicts the sales for the given inputs.
+     * @param net the trained network
+     * @param rebates the normalized inputs
+     * @param inputDays the number of days used to predict the next day
+     * @param minSales the minimal sales used for normalization
+     * @param maxSales the maximal sales used for normalization
+     * @return the predicted sales of each input
+     */
+    static double[] predictFutureSales(MultiLayerNetwork net, INDArray[] rebates, int inputDays, double minSales, double maxSales) {
+        INDArray[][] predicts = new INDArray[rebates.length][inputDays];
 
-        CustomAverager avg = new CustomAverager(inputDays);
+        INDArray min = Nd4j.create(new double[]{minSales});
+        INDArray max = Nd4j.create(new double[]{maxSales});
 
         for (int i = 0; i < rebates.length; i++) {
             for (int j = 0; j < inputDays; j++) {
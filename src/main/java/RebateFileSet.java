@@ -0,0 +1,618 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reads several input files (e.g. one file per month and market) as one input.
+ * The input path is either a directory (all files in it) or a glob pattern like data/rebates-*.csv.gz.
+ * Each file is parsed on its own thread with the memory-mapped parser into columns and min and max values,
+ * afterwards the files are merged by date, so the lines are in the order the readers expect.
+ * Every file has to be sorted by date (see RebateFileSorter) and starts with the same number of header lines.
+ *
+ * @author Leo Knoll
+ */
+public class RebateFileSet {
+
+    // cache files created next to the input files, not part of the input
+    private static final String[] IGNORED_SUFFIXES = {RebateModelIndex.FILE_SUFFIX, RebateSnapshot.FILE_SUFFIX,
+        RebateFileSorter.FILE_SUFFIX, RebateFileSorter.INFO_SUFFIX, RebateStore.SEGMENT_SUFFIX, RebateStore.MODELS_FILE, RebateStore.LOCK_FILE, EpochCacheDataSetIterator.FILE_SUFFIX, ".tmp"};
+
+    // lines per block and blocks per file read ahead by stream
+    private static final int STREAM_BLOCK_LINES = 4096;
+    private static final int STREAM_QUEUE_BLOCKS = 2;
+
+    private final String delimiter;
+    private final int skipFirstLines;
+    private final int threads;
+
+    private String modelFilter = null;
+    private boolean offHeap = false;
+    private boolean externalSort = false;
+    private long sortMemory = 64L * 1024 * 1024;
+    private File sortDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+    // result of the last parse
+    private List<Part> parts = new ArrayList<>();
+    private long parsedBytes;
+    private long parsedLines;
+    private long parseTime;
+
+    /**
+     * Initializes RebateFileSet object.
+     * @param delimiter the delimiter used to separate columns, has to be a single character
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning of each file
+     * @param threads the number of files parsed at once
+     */
+    public RebateFileSet(String delimiter, int skipFirstLines, int threads) {
+        new MappedRebateParser(delimiter, skipFirstLines); // fail early on unsupported delimiters
+        this.delimiter = delimiter;
+        this.skipFirstLines = skipFirstLines;
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Returns true if the path is a directory or a glob pattern.
+     * @param path the input path
+     */
+    public static boolean isFileSet(String path) {
+        return new File(path).isDirectory() || (!new File(path).exists() && isPattern(new File(path).getName()));
+    }
+
+    /**
+     * Returns the files of an input path in name order, a single file if the path is neither a directory nor a pattern.
+     * @param path the input path
+     * @return the files
+     * @throws IOException if the directory can not be read or no file matches
+     */
+    public static List<File> resolve(String path) throws IOException {
+        File file = new File(path);
+        if (!isFileSet(path)) {
+            return Arrays.asList(file);
+        }
+        if (RebateStore.isStore(path)) {
+            throw new IOException(path + " is a rebate store, it can only be read by SingleDataSetIterator and DistributedDataSetIterator");
+        }
+        File directory = file.isDirectory() ? file : file.getAbsoluteFile().getParentFile();
+        PathMatcher matcher = file.isDirectory() ? null : FileSystems.getDefault().getPathMatcher("glob:" + file.getName());
+        File[] candidates = directory.listFiles();
+        if (candidates == null) {
+            throw new IOException("Can not read directory " + directory);
+        }
+        Arrays.sort(candidates);
+
+        List<File> files = new ArrayList<>();
+        for (File candidate : candidates) {
+            if (candidate.isFile() && !candidate.isHidden() && !isCacheFile(candidate.getName())
+                && (matcher == null || matcher.matches(Paths.get(candidate.getName())))) {
+                files.add(candidate);
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IOException("No input files found for " + path);
+        }
+        return files;
+    }
+
+    /**
+     * Returns the total size of the files of an input path, 0 if it can not be resolved.
+     */
+    public static long getLength(String path) {
+        long length = 0;
+        try {
+            for (File file : resolve(path)) {
+                length += file.length();
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+        return length;
+    }
+
+    /**
+     * Returns the last modification time of the files of an input path, 0 if it can not be resolved.
+     */
+    public static long getLastModified(String path) {
+        long lastModified = 0;
+        try {
+            for (File file : resolve(path)) {
+                lastModified = Math.max(lastModified, file.lastModified());
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+        return lastModified;
+    }
+
+    private static boolean isPattern(String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.indexOf('[') >= 0 || name.indexOf('{') >= 0;
+    }
+
+    private static boolean isCacheFile(String name) {
+        for (String suffix : IGNORED_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Only lines with exactly this model are kept.
+     * @param model the model name, null to disable the filter
+     */
+    public void setModelFilter(String model) {
+        modelFilter = model;
+    }
+
+    /**
+     * Selects where the parsed lines are kept.
+     * @param offHeap true to keep the lines in direct buffers outside of the heap
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Sorts each file before parsing (see RebateFileSorter), the files are sorted in parallel.
+     * @param sortMemory the memory used for sorting, shared by the threads
+     * @param sortDirectory the directory for the runs and the sorted files
+     */
+    public void setExternalSort(long sortMemory, File sortDirectory) {
+        this.externalSort = true;
+        this.sortMemory = sortMemory;
+        this.sortDirectory = sortDirectory;
+    }
+
+    /**
+     * Parses all files in parallel and merges them by date.
+     * @param path the directory or glob pattern
+     * @param modelReplacer replaces the model names (column 0) with numbers, numbers are assigned in merged order
+     * @return all lines of all files ordered by date, lines of the same date in file order
+     * @throws IOException if a file can not be read
+     */
+    public RebateColumns parse(String path, StringReplacer modelReplacer) throws IOException {
+        long start = System.nanoTime();
+        List<File> files = resolve(path);
+
+        // parse files in parallel
+        ForkJoinPool pool = new ForkJoinPool(Math.min(threads, files.size()));
+        parts = new ArrayList<>();
+        try {
+            List<Callable<Part>> tasks = new ArrayList<>();
+            for (File file : files) {
+                tasks.add(() -> parsePart(file));
+            }
+            for (Future<Part> future : pool.invokeAll(tasks)) {
+                parts.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Parsing of " + path + " was interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        RebateColumns merged = merge(modelReplacer);
+
+        parsedBytes = 0;
+        for (File file : files) {
+            parsedBytes += file.length();
+        }
+        parsedLines = 0;
+        for (Part part : parts) {
+            parsedLines += part.lines;
+        }
+        parseTime = System.nanoTime() - start;
+        System.out.println("Merged " + merged.size() + " lines of " + files.size() + " files.");
+        return merged;
+    }
+
+    /**
+     * Parses one file with its own parser and model dictionary.
+     */
+    private Part parsePart(File file) throws IOException {
+        String filename = prepare(file, threads);
+
+        Part part = new Part(new RebateColumns(1024, offHeap));
+        MappedRebateParser parser = new MappedRebateParser(delimiter, skipFirstLines);
+        parser.setModelFilter(modelFilter);
+        parser.setDecompressionThreads(1); // the files are already parsed in parallel
+
+        Map<String, Integer> dictionary = new HashMap<>();
+        String[] lastModel = new String[1];
+        int[] lastId = new int[1];
+        parser.parse(filename, (name, year, date, rebate, sales) -> {
+            // the parser returns the same string instance as long as the model does not change
+            if (name != lastModel[0]) {
+                Integer id = dictionary.get(name);
+                if (id == null) {
+                    id = part.models.size();
+                    dictionary.put(name, id);
+                    part.models.add(name);
+                }
+                lastModel[0] = name;
+                lastId[0] = id;
+            }
+            part.columns.add(lastId[0], year, date, rebate, sales);
+            part.update(year, date, rebate, sales);
+        });
+        part.lines = parser.getParsedLines();
+        return part;
+    }
+
+    /**
+     * Returns the path of the file to parse, the sorted file if external sort is enabled.
+     * @param sorters the number of files sorted at once, they share the sort memory
+     */
+    private String prepare(File file, int sorters) throws IOException {
+        if (!externalSort) {
+            return file.getPath();
+        }
+        RebateFileSorter sorter = new RebateFileSorter(delimiter, skipFirstLines);
+        sorter.setMemoryBudget(sortMemory / sorters);
+        sorter.setTempDirectory(sortDirectory);
+        return sorter.sortCached(file).getPath();
+    }
+
+    /**
+     * Parses all files at once and passes the lines merged by date to the handler, without keeping them in memory.
+     * Each file is parsed on its own thread into a small queue of line blocks, the handler is called on the calling thread.
+     * The model filter is applied, parse results (see updateMinMax) are not kept.
+     * @param path the directory or glob pattern
+     * @param handler receives all lines of all files ordered by date, lines of the same date in file order
+     * @throws IOException if a file can not be read
+     */
+    public void stream(String path, MappedRebateParser.RowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        List<File> files = resolve(path);
+        parts = new ArrayList<>();
+
+        List<Source> sources = new ArrayList<>();
+        PriorityQueue<Source> heap = new PriorityQueue<>();
+        try {
+            for (File file : files) {
+                Source source = new Source(sources.size(), file, files.size());
+                sources.add(source);
+                source.start();
+            }
+            for (Source source : sources) {
+                if (source.advance()) {
+                    heap.add(source);
+                }
+            }
+            while (!heap.isEmpty()) {
+                Source source = heap.poll();
+                Block block = source.block;
+                int row = source.row;
+                handler.handleRow(block.models[row], block.years[row], block.dates[row], block.rebates[row], block.sales[row]);
+                if (source.advance()) {
+                    heap.add(source);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Reading of " + path + " was interrupted", e);
+        } finally {
+            for (Source source : sources) {
+                source.interrupt();
+            }
+        }
+
+        parsedBytes = 0;
+        for (File file : files) {
+            parsedBytes += file.length();
+        }
+        parsedLines = 0;
+        for (Source source : sources) {
+            parsedLines += source.lines;
+        }
+        parseTime = System.nanoTime() - start;
+    }
+
+    /**
+     * Merges the files by date with a heap of the next line of each file, ties are resolved by file order.
+     * Model numbers are assigned in order of first appearance in the merged lines.
+     */
+    private RebateColumns merge(StringReplacer modelReplacer) {
+        long rows = 0;
+        for (Part part : parts) {
+            rows += part.columns.size();
+            part.mapping = new int[part.models.size()];
+            Arrays.fill(part.mapping, -1);
+        }
+        RebateColumns merged = new RebateColumns(RebateColumns.checkCapacity(rows), offHeap);
+
+        // heap of the parts which have lines left, ordered by the date of their next line
+        int[] heap = new int[parts.size()];
+        int[] next = new int[parts.size()];
+        int heapSize = 0;
+        for (int p = 0; p < parts.size(); p++) {
+            if (parts.get(p).columns.size() > 0) {
+                heap[heapSize++] = p;
+                siftUp(heap, heapSize - 1, next);
+            }
+        }
+
+        while (heapSize > 0) {
+            int p = heap[0];
+            Part part = parts.get(p);
+            int row = next[p];
+            int localId = part.columns.getName(row);
+            if (part.mapping[localId] < 0) {
+                part.mapping[localId] = modelReplacer.encodeString(RebateDataSetIterator.INDEX_MODEL, part.models.get(localId));
+            }
+            if (row == 0) {
+                part.firstRow = merged.size();
+            }
+            part.lastRow = merged.size();
+            merged.add(part.mapping[localId], part.columns.getYear(row), part.columns.getDate(row),
+                part.columns.getRebate(row), part.columns.getSales(row));
+
+            next[p]++;
+            if (next[p] == part.columns.size()) {
+                heap[0] = heap[--heapSize];
+                part.columns = null; // free memory of the part
+            }
+            siftDown(heap, heapSize, next);
+        }
+        return merged;
+    }
+
+    private boolean before(int a, int b, int[] next) {
+        long dateA = parts.get(a).columns.getDate(next[a]);
+        long dateB = parts.get(b).columns.getDate(next[b]);
+        return dateA < dateB || (dateA == dateB && a < b);
+    }
+
+    private void siftUp(int[] heap, int i, int[] next) {
+        while (i > 0 && before(heap[i], heap[(i - 1) / 2], next)) {
+            swap(heap, i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+    }
+
+    private void siftDown(int[] heap, int heapSize, int[] next) {
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && before(heap[left], heap[smallest], next)) smallest = left;
+            if (right < heapSize && before(heap[right], heap[smallest], next)) smallest = right;
+            if (smallest == i) {
+                return;
+            }
+            swap(heap, i, smallest);
+            i = smallest;
+        }
+    }
+
+    private static void swap(int[] heap, int i, int j) {
+        int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
+
+    /**
+     * Updates min and max values with all lines before endRow.
+     * Statistics of files which are completely before endRow are merged, the remaining lines are scanned.
+     * @param merged the columns returned by parse
+     * @param endRow the index after the last line to be included
+     * @param minArray min values, indexed by RebateDataSetIterator.INDEX_MODEL ... INDEX_SALES
+     * @param maxArray max values, indexed by RebateDataSetIterator.INDEX_MODEL ... INDEX_SALES
+     */
+    public void updateMinMax(RebateColumns merged, int endRow, double[] minArray, double[] maxArray) {
+        int scanFrom = endRow;
+        for (Part part : parts) {
+            if (part.rows == 0 || part.firstRow >= endRow) {
+                continue;
+            }
+            if (part.lastRow < endRow) {
+                // complete file, use its statistics
+                for (int id : part.mapping) {
+                    update(minArray, maxArray, RebateDataSetIterator.INDEX_MODEL, id);
+                }
+                for (int i = RebateDataSetIterator.INDEX_YEAR; i < minArray.length; i++) {
+                    update(minArray, maxArray, i, part.min[i]);
+                    update(minArray, maxArray, i, part.max[i]);
+                }
+            } else {
+                // file is split, its lines are scanned (lines of other files in between do not change min and max)
+                scanFrom = Math.min(scanFrom, part.firstRow);
+            }
+        }
+        for (int i = scanFrom; i < endRow; i++) {
+            update(minArray, maxArray, RebateDataSetIterator.INDEX_MODEL, merged.getName(i));
+            update(minArray, maxArray, RebateDataSetIterator.INDEX_YEAR, merged.getYear(i));
+            update(minArray, maxArray, RebateDataSetIterator.INDEX_DATE, merged.getDate(i));
+            update(minArray, maxArray, RebateDataSetIterator.INDEX_REBATE, merged.getRebate(i));
+            update(minArray, maxArray, RebateDataSetIterator.INDEX_SALES, merged.getSales(i));
+        }
+    }
+
+    private static void update(double[] minArray, double[] maxArray, int index, double value) {
+        if (value > maxArray[index]) maxArray[index] = value;
+        if (value < minArray[index]) minArray[index] = value;
+    }
+
+    /**
+     * Returns the number of files read by the last call of parse.
+     */
+    public int getFiles() {
+        return parts.size();
+    }
+
+    /**
+     * Returns the number of bytes read by the last call of parse.
+     */
+    public long getParsedBytes() {
+        return parsedBytes;
+    }
+
+    /**
+     * Returns the number of lines of all files read by the last call of parse or stream, including the skipped
+     * first lines of each file and lines with errors (see MappedRebateParser.getParsedLines).
+     */
+    public long getParsedLines() {
+        return parsedLines;
+    }
+
+    /**
+     * Returns the parse throughput of the last call of parse.
+     * @return the throughput in MB/s
+     */
+    public double getThroughput() {
+        return RebateDataSetIterator.toMegabytesPerSecond(parsedBytes, parseTime);
+    }
+
+    /**
+     * Parses one file on its own thread for stream, the lines are passed in blocks through a bounded queue.
+     */
+    private class Source extends Thread implements Comparable<Source> {
+        private final int index;
+        private final File file;
+        private final int sorters;
+        private final BlockingQueue<Block> queue = new ArrayBlockingQueue<>(STREAM_QUEUE_BLOCKS);
+
+        // block and line of the next line to be merged
+        private Block block;
+        private int row;
+        private long lines; // set before the end of the file is put into the queue
+
+        private Source(int index, File file, int sorters) {
+            super("File set reader " + file.getName());
+            this.index = index;
+            this.file = file;
+            this.sorters = sorters;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                MappedRebateParser parser = new MappedRebateParser(delimiter, skipFirstLines);
+                parser.setModelFilter(modelFilter);
+                parser.setDecompressionThreads(1); // the files are already parsed in parallel
+                Block[] current = {new Block()};
+                parser.parse(prepare(file, sorters), (name, year, date, rebate, sales) -> {
+                    Block full = current[0];
+                    if (full.size == STREAM_BLOCK_LINES) {
+                        put(full);
+                        current[0] = new Block();
+                        full = current[0];
+                    }
+                    full.add(name, year, date, rebate, sales);
+                });
+                if (current[0].size > 0) {
+                    put(current[0]);
+                }
+                lines = parser.getParsedLines();
+                put(new Block());
+            } catch (IOException | RuntimeException e) {
+                Block failed = new Block();
+                failed.error = (e instanceof IOException) ? (IOException) e : new IOException(e);
+                queue.clear();
+                queue.offer(failed);
+            }
+        }
+
+        private void put(Block full) {
+            try {
+                queue.put(full);
+            } catch (InterruptedException e) {
+                throw new RuntimeException("Reading of " + file + " was stopped", e);
+            }
+        }
+
+        /**
+         * Moves to the next line, returns false at the end of the file.
+         */
+        private boolean advance() throws IOException, InterruptedException {
+            row++;
+            if (block == null || row == block.size) {
+                block = queue.take();
+                row = 0;
+                if (block.error != null) {
+                    throw block.error;
+                }
+            }
+            return block.size > 0;
+        }
+
+        @Override
+        public int compareTo(Source other) {
+            int byDate = Long.compare(block.dates[row], other.block.dates[other.row]);
+            return (byDate != 0) ? byDate : Integer.compare(index, other.index);
+        }
+    }
+
+    /**
+     * Parsed lines of a file, an empty block marks the end of the file.
+     */
+    private static class Block {
+        private final String[] models = new String[STREAM_BLOCK_LINES];
+        private final int[] years = new int[STREAM_BLOCK_LINES];
+        private final long[] dates = new long[STREAM_BLOCK_LINES];
+        private final double[] rebates = new double[STREAM_BLOCK_LINES];
+        private final int[] sales = new int[STREAM_BLOCK_LINES];
+        private int size = 0;
+        private IOException error;
+
+        private void add(String model, int year, long date, double rebate, int sale) {
+            models[size] = model;
+            years[size] = year;
+            dates[size] = date;
+            rebates[size] = rebate;
+            sales[size] = sale;
+            size++;
+        }
+    }
+
+    /**
+     * Result of one parsed file.
+     */
+    private static class Part {
+        private RebateColumns columns;
+        private List<String> models = new ArrayList<>();    // local model number -> name
+        private int[] mapping;                              // local model number -> global model number
+        private int firstRow;                               // index of the first and last line in the merged columns
+        private int lastRow;
+        private int rows = 0;
+        private long lines;                                 // lines of the file including lines with errors
+
+        // min and max values without the model column (model numbers are not known yet)
+        private double[] min = {0, Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        private double[] max = {0, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+        private Part(RebateColumns columns) {
+            this.columns = columns;
+        }
+
+        private void update(int year, long date, double rebate, int sales) {
+            RebateFileSet.update(min, max, RebateDataSetIterator.INDEX_YEAR, year);
+            RebateFileSet.update(min, max, RebateDataSetIterator.INDEX_DATE, date);
+            RebateFileSet.update(min, max, RebateDataSetIterator.INDEX_REBATE, rebate);
+            RebateFileSet.update(min, max, RebateDataSetIterator.INDEX_SALES, sales);
+            rows++;
+        }
+    }
+}
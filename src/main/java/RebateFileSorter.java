@@ -0,0 +1,316 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External merge sort for input files which are not sorted or do not fit into memory.
+ * Lines are sorted by INVOICEDATE, MODEL and MODELYEAR, the order the readers expect (following lines of a day are merged,
+ * missing days are filled between following lines, the first lines are used for training).
+ * The file is read in chunks which fit into the memory budget, each chunk is sorted and spilled to the temp directory as run,
+ * afterwards the runs are merged into the sorted file. Files which fit into the memory budget are sorted without runs.
+ * The first lines (headers) are copied unchanged, lines with wrong format are kept at the end of the file.
+ * Gzip input files are decompressed while reading, the sorted file is not compressed.
+ *
+ * @author Leo Knoll
+ */
+public class RebateFileSorter {
+
+    public static final String FILE_SUFFIX = ".sorted";
+    public static final String INFO_SUFFIX = FILE_SUFFIX + ".info"; // source of a sorted file, see sortCached
+
+    private static final int COLUMNS = 5;
+    private static final int LINE_OVERHEAD = 96; // estimated bytes per line besides the characters (objects, references)
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final int MAX_MERGED_RUNS = 64; // number of runs which are open at once
+
+    private final String delimiter;
+    private final int skipFirstLines;
+
+    private long memoryBudget = 64L * 1024 * 1024;
+    private File tempDirectory = new File(System.getProperty("java.io.tmpdir"));
+
+    // parser for dates which are not UNIX timestamps
+    private DateParser dateParser = StringReplacer.getDateParser();
+
+    private int runs;
+    private long lines;
+
+    /**
+     * Initializes RebateFileSorter object.
+     * @param delimiter the delimiter used to separate columns in the data
+     * @param skipFirstLines the number of lines which are copied unchanged to the beginning of the sorted file
+     */
+    public RebateFileSorter(String delimiter, int skipFirstLines) {
+        this.delimiter = delimiter;
+        this.skipFirstLines = skipFirstLines;
+    }
+
+    /**
+     * Returns the sorted file of an input file in the temp directory, the file is only sorted again if the input file changed.
+     * Size, modification time and hash of the input file (see RebateSnapshot) and the sort settings are saved next to
+     * the sorted file, it is only used if all of them are the same.
+     * @param source the input file
+     * @return the sorted file
+     * @throws IOException if the input file can not be read or the sorted file can not be written
+     */
+    public File sortCached(File source) throws IOException {
+        String name = source.getName() + "." + Integer.toHexString(source.getAbsolutePath().hashCode());
+        File target = new File(tempDirectory, name + FILE_SUFFIX);
+        File info = new File(tempDirectory, name + INFO_SUFFIX);
+        byte[] sourceInfo = createSourceInfo(source);
+        if (target.isFile() && info.isFile() && Arrays.equals(Files.readAllBytes(info.toPath()), sourceInfo)) {
+            System.out.println("Using sorted file " + target + ".");
+            return target;
+        }
+        info.delete();
+        long start = System.nanoTime();
+        sort(source, target);
+        System.out.println("Sorted " + lines + " lines of " + source + " in " + (System.nanoTime() - start) / 1000000 + " ms ("
+            + runs + " runs).");
+        Files.write(info.toPath(), sourceInfo);
+        return target;
+    }
+
+    /**
+     * Everything the sorted file depends on, a sorted file with other source info is outdated.
+     */
+    private byte[] createSourceInfo(File source) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream info = new DataOutputStream(bytes);
+        info.writeLong(source.length());
+        info.writeLong(source.lastModified());
+        info.writeLong(RebateSnapshot.hash(source));
+        info.writeUTF(delimiter);
+        info.writeInt(skipFirstLines);
+        info.writeUTF(dateParser.getPattern());
+        info.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sorts an input file.
+     * @param source the input file
+     * @param target the sorted file, is first written to a temporary file and then moved
+     * @throws IOException if the input file can not be read or the sorted file can not be written
+     */
+    public void sort(File source, File target) throws IOException {
+        List<File> runFiles = new ArrayList<>();
+        List<File> allRunFiles = new ArrayList<>(); // deleted at the end, also if sorting fails
+        File tempFile = new File(target.getPath() + ".tmp");
+        runs = 0;
+        lines = 0;
+        try {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(ParallelGzipInputStream.open(source.getPath())));
+                 Writer writer = new BufferedWriter(new FileWriter(tempFile), WRITE_BUFFER_SIZE)) {
+                // headers
+                for (int i = 0; i < skipFirstLines; i++) {
+                    String line = reader.readLine();
+                    if (line == null) break;
+                    writer.write(line);
+                    writer.write('\n');
+                }
+
+                // sort chunks which fit into the memory budget
+                List<SortLine> chunk = new ArrayList<>();
+                long chunkBytes = 0;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    chunk.add(new SortLine(line, lines++));
+                    chunkBytes += line.length() * 2L + LINE_OVERHEAD;
+                    if (chunkBytes >= memoryBudget) {
+                        runFiles.add(writeRun(chunk));
+                        allRunFiles.add(runFiles.get(runFiles.size() - 1));
+                        chunk.clear();
+                        chunkBytes = 0;
+                    }
+                }
+
+                if (runFiles.isEmpty()) {
+                    // everything fits into memory
+                    Collections.sort(chunk, order);
+                    for (SortLine sortLine : chunk) {
+                        writer.write(sortLine.line);
+                        writer.write('\n');
+                    }
+                } else {
+                    if (!chunk.isEmpty()) {
+                        runFiles.add(writeRun(chunk));
+                        allRunFiles.add(runFiles.get(runFiles.size() - 1));
+                        chunk.clear();
+                    }
+                    // merge groups of following runs until all runs can be opened at once
+                    while (runFiles.size() > MAX_MERGED_RUNS) {
+                        List<File> merged = new ArrayList<>();
+                        for (int i = 0; i < runFiles.size(); i += MAX_MERGED_RUNS) {
+                            List<File> group = runFiles.subList(i, Math.min(i + MAX_MERGED_RUNS, runFiles.size()));
+                            File runFile = File.createTempFile("rebate-run-", ".tmp", tempDirectory);
+                            merged.add(runFile);
+                            allRunFiles.add(runFile);
+                            try (Writer runWriter = new BufferedWriter(new FileWriter(runFile), WRITE_BUFFER_SIZE)) {
+                                merge(group, runWriter);
+                            }
+                            for (File groupFile : group) {
+                                groupFile.delete();
+                            }
+                        }
+                        runFiles = merged;
+                    }
+                    merge(runFiles, writer);
+                }
+            }
+            Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            for (File runFile : allRunFiles) {
+                runFile.delete();
+            }
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Sorts a chunk and writes it to a new run in the temp directory.
+     */
+    private File writeRun(List<SortLine> chunk) throws IOException {
+        Collections.sort(chunk, order);
+        File runFile = File.createTempFile("rebate-run-", ".tmp", tempDirectory);
+        try (Writer writer = new BufferedWriter(new FileWriter(runFile), WRITE_BUFFER_SIZE)) {
+            for (SortLine sortLine : chunk) {
+                writer.write(sortLine.line);
+                writer.write('\n');
+            }
+        }
+        runs++;
+        return runFile;
+    }
+
+    /**
+     * Merges the sorted runs, the smallest line of all runs is written next.
+     */
+    private void merge(List<File> runFiles, Writer writer) throws IOException {
+        List<BufferedReader> readers = new ArrayList<>();
+        try {
+            // head of each run, ties are resolved by run number to keep the file order of equal lines
+            PriorityQueue<SortLine> heads = new PriorityQueue<>(runFiles.size(), order);
+            for (int r = 0; r < runFiles.size(); r++) {
+                BufferedReader reader = new BufferedReader(new FileReader(runFiles.get(r)), WRITE_BUFFER_SIZE);
+                readers.add(reader);
+                String line = reader.readLine();
+                if (line != null) {
+                    heads.add(new SortLine(line, r));
+                }
+            }
+            while (!heads.isEmpty()) {
+                SortLine head = heads.poll();
+                writer.write(head.line);
+                writer.write('\n');
+                String line = readers.get((int) head.position).readLine();
+                if (line != null) {
+                    heads.add(new SortLine(line, head.position));
+                }
+            }
+        } finally {
+            for (BufferedReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private final Comparator<SortLine> order = (a, b) -> {
+        if (a.valid != b.valid) return a.valid ? -1 : 1;
+        int c = Long.compare(a.date, b.date);
+        if (c == 0) c = a.model.compareTo(b.model);
+        if (c == 0) c = Long.compare(a.year, b.year);
+        if (c == 0) c = Long.compare(a.position, b.position);
+        return c;
+    };
+
+    /**
+     * A line with its sort key.
+     */
+    private class SortLine {
+        final String line;
+        final long position; // line number in chunks, run number while merging
+        String model = "";
+        long year;
+        long date;
+        boolean valid;
+
+        SortLine(String line, long position) {
+            this.line = line;
+            this.position = position;
+            String[] arr = line.split(delimiter, -1);
+            if (arr.length != COLUMNS) {
+                return;
+            }
+            try {
+                model = arr[0];
+                year = arr[1].trim().isEmpty() ? 0 : (long) Double.parseDouble(arr[1].trim());
+                date = parseDate(arr[2].trim());
+                valid = true;
+            } catch (RuntimeException e) {
+                // kept at the end, the readers report the line
+            }
+        }
+    }
+
+    /**
+     * Parses a date, either as UNIX timestamp in milliseconds or as date string, like the readers do.
+     * @return the UNIX timestamp in seconds
+     */
+    private long parseDate(String date) {
+        return dateParser.parseTimestamp(date);
+    }
+
+
+    // getters and setters
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the memory used for sorting, files which are larger are sorted in several runs.
+     * @param memoryBudget the memory budget in bytes
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = Math.max(1, memoryBudget);
+    }
+
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    /**
+     * Sets the directory for the runs and the sorted file, default is java.io.tmpdir.
+     * @param tempDirectory the directory
+     */
+    public void setTempDirectory(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    public void setDateParser(DateParser dateParser) {
+        this.dateParser = dateParser;
+    }
+
+    /**
+     * Returns the number of runs of the last sort, 0 if the file was sorted in memory.
+     */
+    public int getRuns() {
+        return runs;
+    }
+}
@@ -0,0 +1,189 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Catalog of the models in an input file with the number of lines and the first and last date of each model.
+ * The catalog is built once per file with the memory-mapped parser and kept in memory,
+ * it is built again if size or modification time of the file changed.
+ * For a directory or glob pattern the catalog contains the models of all files (see RebateFileSet).
+ * For a rebate store the catalog is read from the segment headers (see RebateStore) and not cached.
+ *
+ * @author Leo Knoll
+ */
+public class RebateModelCatalog {
+
+    /**
+     * Lines and date range of a model.
+     */
+    public static class ModelInfo {
+        private int rows = 0;
+        private long firstDate = Long.MAX_VALUE;
+        private long lastDate = Long.MIN_VALUE;
+
+        public int getRows() {
+            return rows;
+        }
+
+        /**
+         * Returns the first date as UNIX timestamp in seconds.
+         */
+        public long getFirstDate() {
+            return firstDate;
+        }
+
+        /**
+         * Returns the last date as UNIX timestamp in seconds.
+         */
+        public long getLastDate() {
+            return lastDate;
+        }
+    }
+
+    // catalogs by absolute path
+    private static final Map<String, RebateModelCatalog> cache = new ConcurrentHashMap<>();
+
+    private final long length;
+    private final long lastModified;
+    private final Map<String, ModelInfo> models;
+    private final List<String> modelNames;
+    private final long rows;
+
+    private RebateModelCatalog(long length, long lastModified, Map<String, ModelInfo> models, long rows) {
+        this.length = length;
+        this.lastModified = lastModified;
+        this.models = models;
+        this.rows = rows;
+        List<String> names = new ArrayList<>(models.keySet());
+        Collections.sort(names);
+        this.modelNames = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Returns the catalog of an input file, the file is only scanned if there is no catalog or the file changed.
+     * Scanning a large file takes a while, should not be called in the event dispatch thread (see getCached).
+     * @param filename the path to the input file
+     * @param delimiter the delimiter used to separate columns, has to be a single character
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @return the catalog
+     * @throws IOException if the input file can not be read
+     */
+    public static RebateModelCatalog get(String filename, String delimiter, int skipFirstLines) throws IOException {
+        if (RebateStore.isStore(filename)) {
+            return fromStore(filename);
+        }
+        RebateModelCatalog catalog = getCached(filename);
+        if (catalog != null) {
+            return catalog;
+        }
+        File file = new File(filename);
+        long start = System.nanoTime();
+        catalog = build(file, delimiter, skipFirstLines);
+        cache.put(file.getAbsolutePath(), catalog);
+        System.out.println("Cataloged " + catalog.modelNames.size() + " models of " + filename + " in "
+            + (System.nanoTime() - start) / 1000000 + " ms.");
+        return catalog;
+    }
+
+    /**
+     * Returns the catalog of an input file if it was already built and the file did not change.
+     * @param filename the path to the input file
+     * @return the catalog or null
+     */
+    public static RebateModelCatalog getCached(String filename) {
+        File file = new File(filename);
+        RebateModelCatalog catalog = cache.get(file.getAbsolutePath());
+        if (catalog == null || catalog.length != RebateFileSet.getLength(filename)
+            || catalog.lastModified != RebateFileSet.getLastModified(filename)) {
+            return null;
+        }
+        return catalog;
+    }
+
+    private static RebateModelCatalog build(File file, String delimiter, int skipFirstLines) throws IOException {
+        // size and modification time before scanning, a file changed while scanning is scanned again next time
+        long length = RebateFileSet.getLength(file.getPath());
+        long lastModified = RebateFileSet.getLastModified(file.getPath());
+
+        Map<String, ModelInfo> models = new HashMap<>();
+        long[] rows = {0};
+        MappedRebateParser parser = new MappedRebateParser(delimiter, skipFirstLines);
+        MappedRebateParser.RowHandler handler = new MappedRebateParser.RowHandler() {
+            // the parser returns the same string as long as the model does not change
+            private String lastModel = null;
+            private ModelInfo lastInfo = null;
+
+            @Override
+            public void handleRow(String model, int year, long date, double rebate, int sales) {
+                if (model != lastModel) {
+                    lastModel = model;
+                    lastInfo = models.computeIfAbsent(model, m -> new ModelInfo());
+                }
+                lastInfo.rows++;
+                lastInfo.firstDate = Math.min(lastInfo.firstDate, date);
+                lastInfo.lastDate = Math.max(lastInfo.lastDate, date);
+                rows[0]++;
+            }
+        };
+        for (File input : RebateFileSet.resolve(file.getPath())) {
+            parser.parse(input.getPath(), handler);
+        }
+        return new RebateModelCatalog(length, lastModified, models, rows[0]);
+    }
+
+    private static RebateModelCatalog fromStore(String directory) throws IOException {
+        Map<String, ModelInfo> models = new HashMap<>();
+        long rows = 0;
+        try (RebateStore store = new RebateStore(new File(directory), false)) {
+            for (String model : store.getModels()) {
+                long[] dates = store.getDateRange(model);
+                if (dates == null) {
+                    continue;
+                }
+                ModelInfo info = new ModelInfo();
+                info.rows = (int) Math.min(Integer.MAX_VALUE, store.getLines(model));
+                info.firstDate = dates[0];
+                info.lastDate = dates[1];
+                models.put(model, info);
+                rows += store.getLines(model);
+            }
+        }
+        return new RebateModelCatalog(0, 0, models, rows);
+    }
+
+    /**
+     * Returns the model names in ascending order.
+     */
+    public List<String> getModels() {
+        return modelNames;
+    }
+
+    /**
+     * Returns lines and date range of a model.
+     * @param model the model name
+     * @return the model info or null if the model does not exist
+     */
+    public ModelInfo getModelInfo(String model) {
+        return models.get(model);
+    }
+
+    /**
+     * Returns the number of lines of a model, 0 if the model does not exist.
+     */
+    public int getRows(String model) {
+        ModelInfo info = models.get(model);
+        return (info == null) ? 0 : info.rows;
+    }
+
+    /**
+     * Returns the number of lines of all models.
+     */
+    public long getRows() {
+        return rows;
+    }
+}
@@ -0,0 +1,369 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Index of the byte ranges of each model in an input file, saved next to the input file.
+ * Following lines with the same model form one range, so a reader which only needs one model
+ * can seek to its ranges and skip the lines of all other models.
+ * Ranges with a gap of less than MAX_GAP bytes are merged, so the ranges may contain lines of other models
+ * and readers have to filter by model. In files sorted by date the lines of the models are interleaved,
+ * without merging each line would be its own range (one seek per line and 16 bytes of index per line).
+ * The index is only used as long as size, modification time and hash of the input file did not change (see RebateSnapshot).
+ *
+ * File format: magic, version, source info, number of models, then for each model
+ * the name, the number of lines, the number of ranges and the start and end position of each range.
+ *
+ * @author Leo Knoll
+ */
+public class RebateModelIndex {
+
+    public static final String FILE_SUFFIX = ".index";
+
+    private static final long MAGIC = 0x4E4144494E494458L; // "NADINIDX"
+    private static final int VERSION = 2;  // version 1 did not merge ranges
+    private static final long MAX_REGION_SIZE = 1 << 28; // map at most 256 MB at once
+    private static final long MAX_GAP = 64 * 1024;       // smaller gaps are read instead of skipped
+
+    // start and end (exclusive) of each range of a model: {from0, to0, from1, to1, ...}
+    private final Map<String, long[]> ranges;
+    private final Map<String, Integer> rows;
+
+    private RebateModelIndex(Map<String, long[]> ranges, Map<String, Integer> rows) {
+        this.ranges = ranges;
+        this.rows = rows;
+    }
+
+    /**
+     * Loads the index of the input file, if there is no valid index the file is scanned and a new index is saved.
+     * @param filename the path to the input file
+     * @param delimiter the delimiter used to separate columns, has to be a single character
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @return the index
+     * @throws IOException if the input file can not be read
+     */
+    public static RebateModelIndex loadOrCreate(String filename, String delimiter, int skipFirstLines) throws IOException {
+        File source = new File(filename);
+        File indexFile = getIndexFile(source);
+
+        long start = System.nanoTime();
+        RebateModelIndex index = load(indexFile, source, delimiter, skipFirstLines);
+        if (index != null) {
+            System.out.println("Loaded model index " + indexFile + " with " + index.ranges.size() + " models in "
+                + (System.nanoTime() - start) / 1000000 + " ms.");
+            return index;
+        }
+
+        index = build(source, delimiter, skipFirstLines);
+        System.out.println("Indexed " + index.ranges.size() + " models of " + filename + " in " + (System.nanoTime() - start) / 1000000 + " ms.");
+        try {
+            index.write(indexFile, source, delimiter, skipFirstLines);
+            System.out.println("Saved model index " + indexFile + ".");
+        } catch (IOException e) {
+            // index is only a cache, continue without saving it
+            System.err.println("Could not save model index " + indexFile + ": " + e.getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Returns the location of the index of an input file.
+     */
+    public static File getIndexFile(File source) {
+        return new File(source.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Scans the input file and collects the ranges of each model, only the model column is read.
+     * @param source the input file
+     * @param delimiter the delimiter used to separate columns, has to be a single character
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @return the index
+     * @throws IOException if the input file can not be read or is compressed
+     */
+    public static RebateModelIndex build(File source, String delimiter, int skipFirstLines) throws IOException {
+        if (delimiter.length() != 1 || delimiter.charAt(0) > 127) {
+            throw new IllegalArgumentException("Model index only supports single ASCII character delimiters, got: " + delimiter);
+        }
+        if (ParallelGzipInputStream.isGzip(source.getPath())) {
+            throw new IOException("Model index can not be built for compressed file " + source);
+        }
+        Scanner scanner = new Scanner((byte) delimiter.charAt(0), skipFirstLines);
+
+        try (RandomAccessFile file = new RandomAccessFile(source, "r"); FileChannel channel = file.getChannel()) {
+            long end = channel.size();
+            long position = 0;
+            while (position < end) {
+                long length = Math.min(MAX_REGION_SIZE, end - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int consumed = scanner.scanRegion(buffer, position, position + length == end);
+                if (consumed == 0) {
+                    throw new IOException("Line " + (scanner.lineNumber + 1) + " is longer than " + MAX_REGION_SIZE + " bytes");
+                }
+                position += consumed;
+            }
+            scanner.closeRange(end);
+        }
+
+        Map<String, long[]> ranges = new HashMap<>();
+        for (Map.Entry<String, RangeList> entry : scanner.models.entrySet()) {
+            ranges.put(entry.getKey(), Arrays.copyOf(entry.getValue().ranges, entry.getValue().size));
+        }
+        return new RebateModelIndex(ranges, scanner.rows);
+    }
+
+    /**
+     * Loads an index.
+     * @param indexFile the index
+     * @param source the input file the index was created from
+     * @param delimiter the delimiter used to separate columns in the data
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @return the index or null if there is no index or it does not match the input file
+     */
+    public static RebateModelIndex load(File indexFile, File source, String delimiter, int skipFirstLines) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readLong() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+
+            // check if index belongs to the current input file
+            if (in.readLong() != source.length() || in.readLong() != source.lastModified()
+                || in.readLong() != RebateSnapshot.hash(source) || !in.readUTF().equals(delimiter) || in.readInt() != skipFirstLines) {
+                System.out.println("Model index " + indexFile + " is outdated.");
+                return null;
+            }
+
+            int modelCount = in.readInt();
+            Map<String, long[]> ranges = new HashMap<>();
+            Map<String, Integer> rows = new HashMap<>();
+            for (int i = 0; i < modelCount; i++) {
+                String model = in.readUTF();
+                rows.put(model, in.readInt());
+                long[] modelRanges = new long[in.readInt() * 2];
+                for (int r = 0; r < modelRanges.length; r++) {
+                    modelRanges[r] = in.readLong();
+                }
+                ranges.put(model, modelRanges);
+            }
+            return new RebateModelIndex(ranges, rows);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not load model index " + indexFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Saves the index, the file is first written to a temporary file and then moved.
+     * @param indexFile the location of the index
+     * @param source the input file the index was created from
+     * @param delimiter the delimiter used to separate columns in the data
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @throws IOException if the index can not be written
+     */
+    public void write(File indexFile, File source, String delimiter, int skipFirstLines) throws IOException {
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeLong(RebateSnapshot.hash(source));
+            out.writeUTF(delimiter);
+            out.writeInt(skipFirstLines);
+            out.writeInt(ranges.size());
+            for (Map.Entry<String, long[]> entry : ranges.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(rows.get(entry.getKey()));
+                out.writeInt(entry.getValue().length / 2);
+                for (long position : entry.getValue()) {
+                    out.writeLong(position);
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the ranges of a model.
+     * @param model the model name
+     * @return start and end position of each range: {from0, to0, from1, to1, ...}, empty if the model does not exist
+     */
+    public long[] getRanges(String model) {
+        long[] modelRanges = ranges.get(model);
+        return (modelRanges == null) ? new long[0] : modelRanges.clone();
+    }
+
+    /**
+     * Returns the number of lines of a model.
+     */
+    public int getRows(String model) {
+        Integer modelRows = rows.get(model);
+        return (modelRows == null) ? 0 : modelRows;
+    }
+
+    /**
+     * Returns the number of bytes of all ranges of a model.
+     */
+    public long getBytes(String model) {
+        long bytes = 0;
+        long[] modelRanges = ranges.get(model);
+        if (modelRanges != null) {
+            for (int r = 0; r < modelRanges.length; r += 2) {
+                bytes += modelRanges[r + 1] - modelRanges[r];
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the model names in ascending order.
+     */
+    public Set<String> getModels() {
+        return new TreeSet<>(ranges.keySet());
+    }
+
+
+    /**
+     * Growable list of ranges of one model.
+     */
+    private static class RangeList {
+        long[] ranges = new long[16];
+        int size = 0;
+
+        void add(long from, long to) {
+            if (size > 0 && from - ranges[size - 1] < MAX_GAP) {
+                ranges[size - 1] = to; // follows the last range, the lines in between are read and filtered
+                return;
+            }
+            if (size + 2 > ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[size++] = from;
+            ranges[size++] = to;
+        }
+    }
+
+    /**
+     * Scans the lines of the mapped regions and closes a range each time the model changes.
+     */
+    private static class Scanner {
+        private final byte delimiter;
+        private final int skipFirstLines;
+
+        private final Map<String, RangeList> models = new HashMap<>();
+        private final Map<String, Integer> rows = new HashMap<>();
+
+        // model of the current range
+        private byte[] modelBytes = new byte[64];
+        private int modelLength = -1;
+        private RangeList current = null;
+        private String currentModel = null;
+        private long currentStart;
+        private int currentRows;
+
+        private int lineNumber = 0;
+
+        Scanner(byte delimiter, int skipFirstLines) {
+            this.delimiter = delimiter;
+            this.skipFirstLines = skipFirstLines;
+        }
+
+        /**
+         * Scans all complete lines of a region.
+         * @return the number of bytes consumed, an incomplete last line is left for the next region
+         */
+        int scanRegion(MappedByteBuffer buffer, long offset, boolean lastRegion) {
+            int limit = buffer.limit();
+            int lineStart = 0;
+            while (lineStart < limit) {
+                // find end of the model column and end of line
+                int modelEnd = -1;
+                int lineEnd = lineStart;
+                while (lineEnd < limit) {
+                    byte b = buffer.get(lineEnd);
+                    if (b == '\n') {
+                        break;
+                    }
+                    if (b == delimiter && modelEnd < 0) {
+                        modelEnd = lineEnd;
+                    }
+                    lineEnd++;
+                }
+                if (lineEnd == limit && !lastRegion) {
+                    return lineStart; // line continues in next region
+                }
+
+                lineNumber++;
+                if (lineNumber > skipFirstLines && lineEnd > lineStart) {
+                    if (modelEnd < 0) {
+                        modelEnd = (buffer.get(lineEnd - 1) == '\r') ? lineEnd - 1 : lineEnd;
+                    }
+                    handleLine(buffer, offset, lineStart, modelEnd);
+                }
+                lineStart = lineEnd + 1;
+            }
+            return limit;
+        }
+
+        private void handleLine(MappedByteBuffer buffer, long offset, int lineStart, int modelEnd) {
+            int length = modelEnd - lineStart;
+            if (current == null || !sameModel(buffer, lineStart, length)) {
+                closeRange(offset + lineStart);
+                if (length > modelBytes.length) {
+                    modelBytes = new byte[length * 2];
+                }
+                for (int i = 0; i < length; i++) {
+                    modelBytes[i] = buffer.get(lineStart + i);
+                }
+                modelLength = length;
+                currentModel = new String(modelBytes, 0, length, StandardCharsets.UTF_8);
+                current = models.computeIfAbsent(currentModel, m -> new RangeList());
+                currentStart = offset + lineStart;
+                currentRows = 0;
+            }
+            currentRows++;
+        }
+
+        private boolean sameModel(MappedByteBuffer buffer, int start, int length) {
+            if (length != modelLength) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (buffer.get(start + i) != modelBytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Ends the range of the current model at the given position.
+         */
+        void closeRange(long end) {
+            if (current != null) {
+                current.add(currentStart, end);
+                rows.merge(currentModel, currentRows, Integer::sum);
+                current = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+import javafx.util.Pair;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Everything besides the network itself which is needed to predict with a trained network:
+ * the model dictionary, the min and max values used for normalization, the last known data point and the last
+ * normalized input window, which restores the state of the network before predicting (see primeNetwork).
+ * The metadata is saved as additional entry inside the zip file written by ModelSerializer,
+ * so predictions can be made from the model file alone without reading in the input data again.
+ *
+ * @author Leo Knoll
+ */
+public class RebateModelMetadata {
+
+    public static final String ZIP_ENTRY = "nadinMetadata.bin";
+
+    private static final int MAGIC = 0x4E41444D; // "NADM"
+    private static final int VERSION = 2; // 2: last input window
+
+    private static final int SECONDS_PER_DAY = 60 * 60 * 24;
+
+    private List<String> modelNames = new ArrayList<>();
+    private String model = "";
+    private int inputDays;
+    private boolean average;
+
+    private double[] minArray = new double[RebateDataSetIterator.INPUT_VECTOR_SIZE + RebateDataSetIterator.OUTPUT_VECTOR_SIZE];
+    private double[] maxArray = new double[RebateDataSetIterator.INPUT_VECTOR_SIZE + RebateDataSetIterator.OUTPUT_VECTOR_SIZE];
+
+    // last data point of the training data, predictions start at the following day
+    private int lastName;
+    private int lastYear;
+    private long lastDate;
+
+    // last test input of the iterator (normalized), one row of input features for each input day
+    private double[][] window = new double[0][];
+
+
+    public RebateModelMetadata() {
+
+    }
+
+    /**
+     * Collects the metadata of an iterator which was used to train a network.
+     * @param iterator the iterator
+     * @param model the selected model or class
+     * @return the metadata
+     */
+    public static RebateModelMetadata fromIterator(RebateDataSetIterator iterator, String model) {
+        RebateModelMetadata metadata = new RebateModelMetadata();
+        metadata.modelNames = new ArrayList<>(iterator.getModelNames());
+        metadata.model = model;
+        metadata.inputDays = iterator.getInputDays();
+        metadata.average = iterator.average;
+        metadata.minArray = iterator.minArray.clone();
+        metadata.maxArray = iterator.maxArray.clone();
+
+        RebateColumns allData = iterator.getAllData();
+        if (allData.size() > 0) {
+            int last = allData.size() - 1;
+            metadata.lastName = allData.getName(last);
+            metadata.lastYear = allData.getYear(last);
+            metadata.lastDate = allData.getDate(last);
+        }
+
+        List<Pair<INDArray, INDArray>> test = iterator.getTestDataSet();
+        if (test != null && !test.isEmpty()) {
+            // {rows, features} or {1, features, time steps}, the state of the network depends on the last time step
+            INDArray input = test.get(test.size() - 1).getKey();
+            int[] shape = input.shape();
+            metadata.window = new double[shape[0]][RebateDataSetIterator.INPUT_VECTOR_SIZE];
+            for (int i = 0; i < shape[0]; i++) {
+                for (int j = 0; j < RebateDataSetIterator.INPUT_VECTOR_SIZE; j++) {
+                    metadata.window[i][j] = (shape.length == 3) ? input.getDouble(i, j, shape[2] - 1) : input.getDouble(i, j);
+                }
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Adds the metadata to a zip file written by ModelSerializer, an existing entry is replaced.
+     * @param modelFile the zip file of the network
+     * @throws IOException if the zip file can not be written
+     */
+    public void save(File modelFile) throws IOException {
+        URI uri = URI.create("jar:" + modelFile.toURI());
+        try (FileSystem zip = FileSystems.newFileSystem(uri, Collections.<String, Object>emptyMap());
+             OutputStream out = Files.newOutputStream(zip.getPath(ZIP_ENTRY), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(new DataOutputStream(out));
+        }
+    }
+
+    /**
+     * Reads the metadata of a zip file written by ModelSerializer.
+     * @param modelFile the zip file of the network
+     * @return the metadata or null if the network was saved without metadata
+     * @throws IOException if the zip file can not be read
+     */
+    public static RebateModelMetadata load(File modelFile) throws IOException {
+        try (ZipFile zip = new ZipFile(modelFile)) {
+            ZipEntry entry = zip.getEntry(ZIP_ENTRY);
+            if (entry == null) {
+                return null;
+            }
+            try (InputStream in = zip.getInputStream(entry)) {
+                return read(new DataInputStream(in));
+            }
+        }
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(model);
+        out.writeInt(inputDays);
+        out.writeBoolean(average);
+        out.writeInt(minArray.length);
+        for (int i = 0; i < minArray.length; i++) {
+            out.writeDouble(minArray[i]);
+            out.writeDouble(maxArray[i]);
+        }
+        out.writeInt(lastName);
+        out.writeInt(lastYear);
+        out.writeLong(lastDate);
+        out.writeInt(modelNames.size());
+        for (String name : modelNames) {
+            out.writeUTF(name);
+        }
+        out.writeInt(window.length);
+        for (double[] row : window) {
+            for (double value : row) {
+                out.writeDouble(value);
+            }
+        }
+        out.flush();
+    }
+
+    private static RebateModelMetadata read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Invalid metadata in model file");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported metadata version " + version);
+        }
+        RebateModelMetadata metadata = new RebateModelMetadata();
+        metadata.model = in.readUTF();
+        metadata.inputDays = in.readInt();
+        metadata.average = in.readBoolean();
+        int features = in.readInt();
+        metadata.minArray = new double[features];
+        metadata.maxArray = new double[features];
+        for (int i = 0; i < features; i++) {
+            metadata.minArray[i] = in.readDouble();
+            metadata.maxArray[i] = in.readDouble();
+        }
+        metadata.lastName = in.readInt();
+        metadata.lastYear = in.readInt();
+        metadata.lastDate = in.readLong();
+        int names = in.readInt();
+        metadata.modelNames = new ArrayList<>(names);
+        for (int i = 0; i < names; i++) {
+            metadata.modelNames.add(in.readUTF());
+        }
+        if (version >= 2) {
+            metadata.window = new double[in.readInt()][RebateDataSetIterator.INPUT_VECTOR_SIZE];
+            for (double[] row : metadata.window) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] = in.readDouble();
+                }
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * Creates a string replacer which assigns the same numbers to the model names as during training.
+     * @return the string replacer, column 0 contains the model names
+     */
+    public StringReplacer createModelReplacer() {
+        StringReplacer replacer = new StringReplacer(RebateDataSetIterator.INPUT_VECTOR_SIZE + RebateDataSetIterator.OUTPUT_VECTOR_SIZE,
+            new int[] {StringReplacer.TYPE_STRING, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER});
+        replacer.addStrings(RebateDataSetIterator.INDEX_MODEL, modelNames);
+        return replacer;
+    }
+
+    /**
+     * Creates the normalized network input to predict the sales of a day after the last known data point.
+     * @param daysAhead the number of days after the last data point
+     * @param rebate the rebate in percent
+     * @return the input with one row for each input day
+     */
+    public INDArray createInput(int daysAhead, double rebate) {
+        INDArray input = Nd4j.create(new int[]{inputDays, RebateDataSetIterator.INPUT_VECTOR_SIZE}, 'f');
+        for (int j = 0; j < inputDays; j++) {
+            input.putScalar(new int[]{j, RebateDataSetIterator.INDEX_MODEL}, normalize(RebateDataSetIterator.INDEX_MODEL, lastName));
+            input.putScalar(new int[]{j, RebateDataSetIterator.INDEX_YEAR}, normalize(RebateDataSetIterator.INDEX_YEAR, lastYear));
+            input.putScalar(new int[]{j, RebateDataSetIterator.INDEX_DATE}, normalize(RebateDataSetIterator.INDEX_DATE, lastDate + (long) daysAhead * SECONDS_PER_DAY));
+            input.putScalar(new int[]{j, RebateDataSetIterator.INDEX_REBATE}, normalize(RebateDataSetIterator.INDEX_REBATE, rebate));
+        }
+        return input;
+    }
+
+    /**
+     * Clears the state of the network and passes the last input window through it inputDays times,
+     * like RebateDataSetIterator.testPrediction does with each test input before predicting.
+     * Metadata saved without window (version 1) only clears the state.
+     * @param net the trained network
+     */
+    public void primeNetwork(MultiLayerNetwork net) {
+        net.rnnClearPreviousState();
+        if (window.length == 0) {
+            return;
+        }
+        NDArrayBuffer buffer = new NDArrayBuffer().reset(window.length, RebateDataSetIterator.INPUT_VECTOR_SIZE);
+        for (int i = 0; i < window.length; i++) {
+            for (int j = 0; j < RebateDataSetIterator.INPUT_VECTOR_SIZE; j++) {
+                buffer.put(i, j, window[i][j]);
+            }
+        }
+        INDArray input = buffer.create();
+        for (int j = 0; j < inputDays; j++) {
+            net.rnnTimeStep(input);
+        }
+    }
+
+    /**
+     * Predicts the sales for the given inputs, see createInput and primeNetwork.
+     * @param net the trained network
+     * @param rebates the inputs
+     * @return the predicted sales of each input
+     */
+    public double[] predictFutureSales(MultiLayerNetwork net, INDArray[] rebates) {
+        return RebateDataSetIterator.predictFutureSales(net, rebates, inputDays,
+            minArray[RebateDataSetIterator.INDEX_SALES], maxArray[RebateDataSetIterator.INDEX_SALES]);
+    }
+
+    private double normalize(int index, double value) {
+        return (value - minArray[index]) / (maxArray[index] - minArray[index]);
+    }
+
+
+    // getters
+
+    public List<String> getModelNames() {
+        return Collections.unmodifiableList(modelNames);
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public int getInputDays() {
+        return inputDays;
+    }
+
+    public boolean isAverage() {
+        return average;
+    }
+
+    public double[] getMinArray() {
+        return minArray.clone();
+    }
+
+    public double[] getMaxArray() {
+        return maxArray.clone();
+    }
+
+    public long getLastDate() {
+        return lastDate;
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.File;
+
+/**
+ * Options which control how a RebateDataSetIterator reads in its input data.
+ * Default values keep the original behaviour (BufferedReader and String.split).
+ *
+ * @author Leo Knoll
+ */
+public class RebateReaderOptions {
+
+    // Parsers
+    public final static int PARSER_READER = 0;
+    public final static int PARSER_MAPPED = 1;
+    public final static int PARSER_PARALLEL = 2;
+
+    private int parser = PARSER_READER;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean snapshotCache = false;
+    private boolean offHeap = false;
+    private boolean modelIndex = false;
+    private boolean aggregate = false;
+    private boolean externalSort = false;
+    private long sortMemory = 64L * 1024 * 1024;
+    private File sortDirectory = new File(System.getProperty("java.io.tmpdir"));
+    private int prefetchBatches = 4;
+    private boolean prefetch = false;
+    private boolean shuffle = false;
+    private long shuffleSeed = 1234;
+    private boolean packedSequences = false;
+    private int sequenceLength = 64;
+    private boolean epochCache = false;
+
+
+    public RebateReaderOptions() {
+
+    }
+
+
+    // getters and setters
+
+    public int getParser() {
+        return parser;
+    }
+
+    /**
+     * Selects the parser used to read the input file.
+     * @param parser PARSER_READER (line based), PARSER_MAPPED (memory-mapped, byte based)
+     *               or PARSER_PARALLEL (memory-mapped, file split into chunks parsed on several threads)
+     */
+    public void setParser(int parser) {
+        this.parser = parser;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads used by PARSER_PARALLEL, default is the number of available processors.
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    public boolean isSnapshotCache() {
+        return snapshotCache;
+    }
+
+    /**
+     * If enabled the parsed input file is saved as binary snapshot next to the input file (see RebateSnapshot).
+     * Following runs load the snapshot instead of parsing the file again, as long as the file did not change.
+     * @param snapshotCache true to use snapshots
+     */
+    public void setSnapshotCache(boolean snapshotCache) {
+        this.snapshotCache = snapshotCache;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * If enabled the read data is kept outside of the heap in direct buffers (see RebateColumns),
+     * snapshots are memory-mapped instead of copied. Keeps the heap small for large input files.
+     * Direct buffers are limited by the JVM option -XX:MaxDirectMemorySize (default is the maximum heap size -Xmx),
+     * it has to be at least 28 bytes per input line plus the growth of the columns while reading,
+     * e.g. -XX:MaxDirectMemorySize=8g for 200 million lines. At most RebateColumns.MAX_CAPACITY lines are supported.
+     * @param offHeap true to keep the data off-heap
+     */
+    public void setOffHeap(boolean offHeap) {
+        this.offHeap = offHeap;
+    }
+
+    public boolean isModelIndex() {
+        return modelIndex;
+    }
+
+    /**
+     * If enabled the byte ranges of each model are saved as index next to the input file (see RebateModelIndex).
+     * Iterators which only need one model read the ranges of this model instead of the whole file.
+     * Only used by PARSER_READER and PARSER_MAPPED without snapshots, needs a single character delimiter.
+     * @param modelIndex true to use the model index
+     */
+    public void setModelIndex(boolean modelIndex) {
+        this.modelIndex = modelIndex;
+    }
+
+    public boolean isAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * If enabled all lines with the same model, model year and day are merged (see RebateAggregator),
+     * no matter where they are in the input file. The lines are ordered by date afterwards,
+     * so unsorted input files can be read directly. Otherwise only following lines of the same day are merged.
+     * @param aggregate true to aggregate the lines of each day
+     */
+    public void setAggregate(boolean aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    public boolean isExternalSort() {
+        return externalSort;
+    }
+
+    /**
+     * If enabled the input file is sorted by date, model and model year before it is read (see RebateFileSorter).
+     * The sorted file is saved in the sort directory and reused as long as the input file did not change.
+     * @param externalSort true to sort the input file
+     */
+    public void setExternalSort(boolean externalSort) {
+        this.externalSort = externalSort;
+    }
+
+    public long getSortMemory() {
+        return sortMemory;
+    }
+
+    /**
+     * Sets the memory used to sort the input file, larger files are sorted in several runs which are merged afterwards.
+     * @param sortMemory the memory budget in bytes, default is 64 MB
+     */
+    public void setSortMemory(long sortMemory) {
+        this.sortMemory = sortMemory;
+    }
+
+    public File getSortDirectory() {
+        return sortDirectory;
+    }
+
+    /**
+     * Sets the directory for temporary files: the sorted input file, the runs and the segments of StreamingDataSetIterator.
+     * @param sortDirectory the directory, default is java.io.tmpdir
+     */
+    public void setSortDirectory(File sortDirectory) {
+        this.sortDirectory = sortDirectory;
+    }
+
+    public int getPrefetchBatches() {
+        return prefetchBatches;
+    }
+
+    /**
+     * Sets the number of mini-batches StreamingDataSetIterator and PrefetchingDataSetIterator read ahead of the training.
+     * @param prefetchBatches the number of batches, default is 4
+     */
+    public void setPrefetchBatches(int prefetchBatches) {
+        this.prefetchBatches = prefetchBatches;
+    }
+
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Builds the mini-batches on a background thread while the network is trained (see PrefetchingDataSetIterator).
+     * Only useful with more than one core, StreamingDataSetIterator always reads ahead.
+     * @param prefetch true to build the mini-batches in the background
+     */
+    public void setPrefetch(boolean prefetch) {
+        this.prefetch = prefetch;
+    }
+
+    public boolean isShuffle() {
+        return shuffle;
+    }
+
+    /**
+     * If enabled SingleDataSetIterator trains the windows of each epoch in random order instead of in date order.
+     * @param shuffle true to shuffle the training windows
+     */
+    public void setShuffle(boolean shuffle) {
+        this.shuffle = shuffle;
+    }
+
+    public long getShuffleSeed() {
+        return shuffleSeed;
+    }
+
+    /**
+     * Sets the seed of the shuffle, the same seed gives the same order of windows in each run.
+     * @param shuffleSeed the seed, default is 1234
+     */
+    public void setShuffleSeed(long shuffleSeed) {
+        this.shuffleSeed = shuffleSeed;
+    }
+
+    public boolean isPackedSequences() {
+        return packedSequences;
+    }
+
+    /**
+     * If enabled SeparatedDataSetIterator packs the lines of all models into masked sequences, one mini-batch holds
+     * sequences of many models instead of single lines of one model (not supported by StreamingDataSetIterator).
+     * @param packedSequences true to train on packed sequences
+     */
+    public void setPackedSequences(boolean packedSequences) {
+        this.packedSequences = packedSequences;
+    }
+
+    public int getSequenceLength() {
+        return sequenceLength;
+    }
+
+    /**
+     * Sets the maximum number of days of a packed sequence, longer series of a model are split.
+     * @param sequenceLength the number of days, default is 64
+     */
+    public void setSequenceLength(int sequenceLength) {
+        this.sequenceLength = sequenceLength;
+    }
+
+    public boolean isEpochCache() {
+        return epochCache;
+    }
+
+    /**
+     * Saves the mini-batches of the first epoch in the sort directory and replays them in the following epochs
+     * (see EpochCacheDataSetIterator). The cache is kept for the next training run with the same input and parameters.
+     * @param epochCache true to cache the mini-batches
+     */
+    public void setEpochCache(boolean epochCache) {
+        this.epochCache = epochCache;
+    }
+}
@@ -0,0 +1,292 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Temporary on-disk store of parsed lines, grouped by model (see StreamingDataSetIterator).
+ * Lines are collected in a small buffer per model. When all buffers together exceed the memory budget,
+ * each buffer is written to the end of the spool file as one segment. The lines of a model are therefore
+ * spread over several segments, each segment contains following lines of one model in file order.
+ * Every segment knows the line numbers and min and max values of its lines, so min and max of
+ * the first lines of the file only need to read the segments which contain the border.
+ * Segments are read with positional reads, several threads can read at once.
+ *
+ * @author Leo Knoll
+ */
+public class RebateSegmentSpool implements Closeable {
+
+    // year (int), date (long), rebate (double), sales (int), line number (int)
+    public static final int LINE_BYTES = 4 + 8 + 8 + 4 + 4;
+
+    private static final int INITIAL_BUFFER_LINES = 64;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long memoryBudget;
+
+    // lines of each model which are not written yet, indexed by model number
+    private ByteBuffer[] buffers = new ByteBuffer[16];
+    private Segment[] open = new Segment[16];
+    private long buffered = 0;
+
+    // written segments of each model in file order, indexed by model number
+    private List<List<Segment>> segments = new ArrayList<>();
+    private long size = 0;
+    private int lines = 0;
+
+    /**
+     * Initializes RebateSegmentSpool object with a new temporary file, the file is deleted by close.
+     * @param directory the directory of the spool file
+     * @param memoryBudget the memory used to collect the lines before they are written
+     * @throws IOException if the spool file can not be created
+     */
+    public RebateSegmentSpool(File directory, long memoryBudget) throws IOException {
+        this.file = File.createTempFile("rebate-segments-", ".tmp", directory);
+        this.file.deleteOnExit();
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        this.memoryBudget = Math.max(LINE_BYTES, memoryBudget);
+    }
+
+    /**
+     * Adds a line, lines have to be added in file order.
+     * @param name the model number
+     * @param date the UNIX timestamp in seconds
+     * @throws IOException if the buffers can not be written
+     */
+    public void add(int name, int year, long date, double rebate, int sales) throws IOException {
+        if (name >= buffers.length) {
+            buffers = Arrays.copyOf(buffers, Math.max(name + 1, buffers.length * 2));
+            open = Arrays.copyOf(open, buffers.length);
+        }
+        ByteBuffer buffer = buffers[name];
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(INITIAL_BUFFER_LINES * LINE_BYTES);
+            buffers[name] = buffer;
+            open[name] = new Segment(lines);
+        } else if (!buffer.hasRemaining()) {
+            buffer.flip();
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+            buffers[name] = buffer;
+        }
+        buffer.putInt(year).putLong(date).putDouble(rebate).putInt(sales).putInt(lines);
+        open[name].update(lines, year, date, rebate, sales);
+        lines++;
+
+        buffered += LINE_BYTES;
+        if (buffered >= memoryBudget) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered lines of all models as new segments.
+     * @throws IOException if the spool file can not be written
+     */
+    public void flush() throws IOException {
+        for (int name = 0; name < buffers.length; name++) {
+            ByteBuffer buffer = buffers[name];
+            if (buffer == null) {
+                continue;
+            }
+            buffer.flip();
+            Segment segment = open[name];
+            segment.position = size;
+            while (buffer.hasRemaining()) {
+                size += channel.write(buffer, size);
+            }
+            while (segments.size() <= name) {
+                segments.add(new ArrayList<>());
+            }
+            segments.get(name).add(segment);
+            buffers[name] = null;
+            open[name] = null;
+        }
+        buffered = 0;
+    }
+
+    /**
+     * Returns the segments of a model in file order, flush has to be called after the last line.
+     * @param name the model number
+     */
+    public List<Segment> getSegments(int name) {
+        return (name < segments.size()) ? Collections.unmodifiableList(segments.get(name)) : Collections.<Segment>emptyList();
+    }
+
+    /**
+     * Returns the model numbers which have lines, in ascending order.
+     */
+    public List<Integer> getModels() {
+        List<Integer> models = new ArrayList<>();
+        for (int name = 0; name < segments.size(); name++) {
+            if (!segments.get(name).isEmpty()) {
+                models.add(name);
+            }
+        }
+        return models;
+    }
+
+    /**
+     * Returns the number of added lines.
+     */
+    public int getLines() {
+        return lines;
+    }
+
+    /**
+     * Returns the size of the spool file in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Reads lines of a segment, can be called by several threads at once.
+     * @param segment the segment
+     * @param firstLine the index of the first line in the segment
+     * @param target the buffer the lines are read to, is filled up to its limit or the end of the segment
+     * @return the number of lines read
+     * @throws IOException if the spool file can not be read
+     */
+    public int read(Segment segment, int firstLine, ByteBuffer target) throws IOException {
+        int count = Math.min(segment.lines - firstLine, target.remaining() / LINE_BYTES);
+        if (count <= 0) {
+            return 0;
+        }
+        int limit = target.limit();
+        target.limit(target.position() + count * LINE_BYTES);
+        long position = segment.position + (long) firstLine * LINE_BYTES;
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of spool file " + file);
+            }
+            position += read;
+        }
+        target.limit(limit);
+        return count;
+    }
+
+    /**
+     * Updates min and max values with all lines before endLine.
+     * Statistics of segments which are completely before endLine are merged, only the segments containing endLine are read.
+     * @param endLine the line number after the last line to be included
+     * @param minArray min values, indexed by RebateDataSetIterator.INDEX_MODEL ... INDEX_SALES
+     * @param maxArray max values, indexed by RebateDataSetIterator.INDEX_MODEL ... INDEX_SALES
+     * @throws IOException if the spool file can not be read
+     */
+    public void updateMinMax(int endLine, double[] minArray, double[] maxArray) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * LINE_BYTES);
+        for (int name = 0; name < segments.size(); name++) {
+            for (Segment segment : segments.get(name)) {
+                if (segment.firstLine >= endLine) {
+                    break;
+                }
+                update(minArray, maxArray, RebateDataSetIterator.INDEX_MODEL, name);
+                if (segment.lastLine < endLine) {
+                    // complete segment, use its statistics
+                    for (int i = RebateDataSetIterator.INDEX_YEAR; i < minArray.length; i++) {
+                        update(minArray, maxArray, i, segment.min[i]);
+                        update(minArray, maxArray, i, segment.max[i]);
+                    }
+                    continue;
+                }
+                // segment contains the border, read its lines
+                boolean border = false;
+                for (int first = 0; first < segment.lines && !border; ) {
+                    buffer.clear();
+                    int count = read(segment, first, buffer);
+                    buffer.flip();
+                    for (int i = 0; i < count; i++) {
+                        int year = buffer.getInt();
+                        long date = buffer.getLong();
+                        double rebate = buffer.getDouble();
+                        int sales = buffer.getInt();
+                        if (buffer.getInt() >= endLine) {
+                            border = true;
+                            break;
+                        }
+                        update(minArray, maxArray, RebateDataSetIterator.INDEX_YEAR, year);
+                        update(minArray, maxArray, RebateDataSetIterator.INDEX_DATE, date);
+                        update(minArray, maxArray, RebateDataSetIterator.INDEX_REBATE, rebate);
+                        update(minArray, maxArray, RebateDataSetIterator.INDEX_SALES, sales);
+                    }
+                    first += count;
+                }
+            }
+        }
+    }
+
+    private static void update(double[] minArray, double[] maxArray, int index, double value) {
+        if (value > maxArray[index]) maxArray[index] = value;
+        if (value < minArray[index]) minArray[index] = value;
+    }
+
+    /**
+     * Closes and deletes the spool file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            raf.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Position, line numbers and min and max values of following lines of one model.
+     */
+    public static class Segment {
+        private long position;
+        private int lines = 0;
+        private final int firstLine;
+        private int lastLine;
+
+        // min and max values without the model column (the model is the same for all lines)
+        private double[] min = {0, Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        private double[] max = {0, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+
+        private Segment(int firstLine) {
+            this.firstLine = firstLine;
+        }
+
+        private void update(int line, int year, long date, double rebate, int sales) {
+            RebateSegmentSpool.update(min, max, RebateDataSetIterator.INDEX_YEAR, year);
+            RebateSegmentSpool.update(min, max, RebateDataSetIterator.INDEX_DATE, date);
+            RebateSegmentSpool.update(min, max, RebateDataSetIterator.INDEX_REBATE, rebate);
+            RebateSegmentSpool.update(min, max, RebateDataSetIterator.INDEX_SALES, sales);
+            lastLine = line;
+            lines++;
+        }
+
+        /**
+         * Returns the number of lines.
+         */
+        public int getLines() {
+            return lines;
+        }
+
+        /**
+         * Returns the line number (position in the input file) of the first line.
+         */
+        public int getFirstLine() {
+            return firstLine;
+        }
+
+        /**
+         * Returns the line number (position in the input file) of the last line.
+         */
+        public int getLastLine() {
+            return lastLine;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a parsed input file, saved next to the input file.
+ * Contains the parsed columns, the model names and the min and max values of each column.
+ * The snapshot is only used as long as size, modification time and a hash of the input file did not change,
+ * the hash is calculated over the first and the last megabyte of the file.
+ *
+ * File format: magic, version, header length, header (source info, number of lines, models, min and max values),
+ * then the columns one after another (names, years, dates, rebates, sales).
+ * Off-heap snapshots keep the columns memory-mapped instead of copying them into the heap.
+ *
+ * @author Leo Knoll
+ */
+public class RebateSnapshot {
+
+    public static final String FILE_SUFFIX = ".snapshot";
+
+    private static final long MAGIC = 0x4E4144494E534E50L; // "NADINSNP"
+    private static final int VERSION = 2; // 2: number of input lines
+    private static final int HASHED_BYTES = 1 << 20;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    private final RebateColumns columns;
+    private final List<String> models;
+    private final double[] minArray;
+    private final double[] maxArray;
+    private long inputLines;
+
+    /**
+     * Initializes RebateSnapshot object.
+     * @param columns the parsed lines, model numbers as assigned by a StringReplacer
+     * @param models the model names ordered by their number (see StringReplacer.getStrings)
+     * @param minArray min value of each column
+     * @param maxArray max value of each column
+     */
+    public RebateSnapshot(RebateColumns columns, List<String> models, double[] minArray, double[] maxArray) {
+        this(columns, models, minArray, maxArray, columns.size());
+    }
+
+    /**
+     * Initializes RebateSnapshot object.
+     * @param columns the parsed lines, model numbers as assigned by a StringReplacer
+     * @param models the model names ordered by their number (see StringReplacer.getStrings)
+     * @param minArray min value of each column
+     * @param maxArray max value of each column
+     * @param inputLines the number of lines of the input file including skipped first lines and lines with errors
+     */
+    public RebateSnapshot(RebateColumns columns, List<String> models, double[] minArray, double[] maxArray, long inputLines) {
+        this.columns = columns;
+        this.models = models;
+        this.minArray = minArray;
+        this.maxArray = maxArray;
+        this.inputLines = inputLines;
+    }
+
+    /**
+     * Loads the snapshot of the input file, if there is no valid snapshot the file is parsed and a new snapshot is saved.
+     * @param filename the path to the input file
+     * @param delimiter the delimiter used to separate columns in the data
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @param threads the number of threads used to parse the file
+     * @return the snapshot
+     * @throws IOException if the input file can not be read
+     */
+    public static RebateSnapshot loadOrCreate(String filename, String delimiter, int skipFirstLines, int threads) throws IOException {
+        return loadOrCreate(filename, delimiter, skipFirstLines, threads, false);
+    }
+
+    /**
+     * Loads the snapshot of the input file, if there is no valid snapshot the file is parsed and a new snapshot is saved.
+     * @param filename the path to the input file
+     * @param delimiter the delimiter used to separate columns in the data
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @param threads the number of threads used to parse the file
+     * @param offHeap true to map the columns of the snapshot (or to parse into direct buffers) instead of using the heap
+     * @return the snapshot
+     * @throws IOException if the input file can not be read
+     */
+    public static RebateSnapshot loadOrCreate(String filename, String delimiter, int skipFirstLines, int threads, boolean offHeap) throws IOException {
+        File source = new File(filename);
+        File snapshotFile = getSnapshotFile(source);
+
+        long start = System.nanoTime();
+        RebateSnapshot snapshot = load(snapshotFile, source, delimiter, skipFirstLines, offHeap);
+        if (snapshot != null) {
+            System.out.println("Loaded snapshot " + snapshotFile + " with " + snapshot.getColumns().size() + " lines in "
+                + (System.nanoTime() - start) / 1000000 + " ms.");
+            return snapshot;
+        }
+
+        // parse input file
+        StringReplacer modelReplacer = new StringReplacer(RebateDataSetIterator.INPUT_VECTOR_SIZE + RebateDataSetIterator.OUTPUT_VECTOR_SIZE,
+            new int[] {StringReplacer.TYPE_STRING, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER});
+        ParallelRebateParser parser = new ParallelRebateParser(delimiter, skipFirstLines, threads);
+        parser.setOffHeap(offHeap);
+        RebateColumns columns = parser.parse(filename, modelReplacer);
+        columns.trimToSize();
+
+        double[] minArray = new double[RebateDataSetIterator.INPUT_VECTOR_SIZE + RebateDataSetIterator.OUTPUT_VECTOR_SIZE];
+        double[] maxArray = new double[RebateDataSetIterator.INPUT_VECTOR_SIZE + RebateDataSetIterator.OUTPUT_VECTOR_SIZE];
+        for (int i = 0; i < minArray.length; i++) {
+            minArray[i] = Double.MAX_VALUE;
+            maxArray[i] = -Double.MAX_VALUE;
+        }
+        parser.updateMinMax(columns, columns.size(), minArray, maxArray);
+
+        snapshot = new RebateSnapshot(columns, modelReplacer.getStrings(RebateDataSetIterator.INDEX_MODEL), minArray, maxArray, parser.getParsedLines());
+        try {
+            snapshot.write(snapshotFile, source, delimiter, skipFirstLines);
+            System.out.println("Saved snapshot " + snapshotFile + ".");
+        } catch (IOException e) {
+            // snapshot is only a cache, continue without it
+            System.err.println("Could not save snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the location of the snapshot of an input file.
+     */
+    public static File getSnapshotFile(File source) {
+        return new File(source.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Loads a snapshot.
+     * @param snapshotFile the snapshot
+     * @param source the input file the snapshot was created from
+     * @param delimiter the delimiter used to separate columns in the data
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @return the snapshot or null if there is no snapshot or it does not match the input file
+     */
+    public static RebateSnapshot load(File snapshotFile, File source, String delimiter, int skipFirstLines) {
+        return load(snapshotFile, source, delimiter, skipFirstLines, false);
+    }
+
+    /**
+     * Loads a snapshot.
+     * @param snapshotFile the snapshot
+     * @param source the input file the snapshot was created from
+     * @param delimiter the delimiter used to separate columns in the data
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @param mapped true to keep the columns memory-mapped (read-only, outside of the heap)
+     * @return the snapshot or null if there is no snapshot or it does not match the input file
+     */
+    public static RebateSnapshot load(File snapshotFile, File source, String delimiter, int skipFirstLines, boolean mapped) {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(snapshotFile, "r"); FileChannel channel = file.getChannel()) {
+            ByteBuffer prefix = ByteBuffer.allocate(16);
+            readFully(channel, prefix, 0);
+            if (prefix.getLong(0) != MAGIC || prefix.getInt(8) != VERSION) {
+                return null;
+            }
+            int headerLength = prefix.getInt(12);
+            ByteBuffer headerBuffer = ByteBuffer.allocate(headerLength);
+            readFully(channel, headerBuffer, 16);
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBuffer.array()));
+
+            // check if snapshot belongs to the current input file
+            if (header.readLong() != source.length() || header.readLong() != source.lastModified()
+                || header.readLong() != hash(source) || !header.readUTF().equals(delimiter) || header.readInt() != skipFirstLines) {
+                System.out.println("Snapshot " + snapshotFile + " is outdated.");
+                return null;
+            }
+
+            int rows = header.readInt();
+            long inputLines = header.readLong();
+            int modelCount = header.readInt();
+            List<String> models = new ArrayList<>(modelCount);
+            for (int i = 0; i < modelCount; i++) {
+                models.add(header.readUTF());
+            }
+            double[] minArray = new double[header.readInt()];
+            double[] maxArray = new double[minArray.length];
+            for (int i = 0; i < minArray.length; i++) {
+                minArray[i] = header.readDouble();
+                maxArray[i] = header.readDouble();
+            }
+
+            long position = 16 + headerLength;
+            if (mapped) {
+                // the mappings stay valid after the channel is closed
+                IntBuffer names = map(channel, position, rows * 4L).asIntBuffer();
+                position += rows * 4L;
+                IntBuffer years = map(channel, position, rows * 4L).asIntBuffer();
+                position += rows * 4L;
+                LongBuffer dates = map(channel, position, rows * 8L).asLongBuffer();
+                position += rows * 8L;
+                DoubleBuffer rebates = map(channel, position, rows * 8L).asDoubleBuffer();
+                position += rows * 8L;
+                IntBuffer sales = map(channel, position, rows * 4L).asIntBuffer();
+                return new RebateSnapshot(new RebateColumns(names, years, dates, rebates, sales, true), models, minArray, maxArray, inputLines);
+            }
+
+            // bulk read of the columns
+            int[] names = new int[rows];
+            map(channel, position, rows * 4L).asIntBuffer().get(names);
+            position += rows * 4L;
+            int[] years = new int[rows];
+            map(channel, position, rows * 4L).asIntBuffer().get(years);
+            position += rows * 4L;
+            long[] dates = new long[rows];
+            map(channel, position, rows * 8L).asLongBuffer().get(dates);
+            position += rows * 8L;
+            double[] rebates = new double[rows];
+            map(channel, position, rows * 8L).asDoubleBuffer().get(rebates);
+            position += rows * 8L;
+            int[] sales = new int[rows];
+            map(channel, position, rows * 4L).asIntBuffer().get(sales);
+
+            return new RebateSnapshot(new RebateColumns(names, years, dates, rebates, sales), models, minArray, maxArray, inputLines);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not load snapshot " + snapshotFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Saves the snapshot, the file is first written to a temporary file and then moved.
+     * @param snapshotFile the location of the snapshot
+     * @param source the input file the snapshot was created from
+     * @param delimiter the delimiter used to separate columns in the data
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning
+     * @throws IOException if the snapshot can not be written
+     */
+    public void write(File snapshotFile, File source, String delimiter, int skipFirstLines) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeLong(source.length());
+        header.writeLong(source.lastModified());
+        header.writeLong(hash(source));
+        header.writeUTF(delimiter);
+        header.writeInt(skipFirstLines);
+        header.writeInt(columns.size());
+        header.writeLong(inputLines);
+        header.writeInt(models.size());
+        for (String model : models) {
+            header.writeUTF(model);
+        }
+        header.writeInt(minArray.length);
+        for (int i = 0; i < minArray.length; i++) {
+            header.writeDouble(minArray[i]);
+            header.writeDouble(maxArray[i]);
+        }
+        header.flush();
+
+        File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(tempFile, "rw"); FileChannel channel = file.getChannel()) {
+            file.setLength(0);
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            buffer.putLong(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(headerBytes.size());
+            flush(channel, buffer);
+            channel.write(ByteBuffer.wrap(headerBytes.toByteArray()));
+
+            int rows = columns.size();
+            IntBuffer[] intColumns = {columns.nameColumn(), columns.yearColumn()};
+            for (IntBuffer column : intColumns) {
+                for (int i = 0; i < rows; i += WRITE_BUFFER_SIZE / 4) {
+                    int length = Math.min(WRITE_BUFFER_SIZE / 4, rows - i);
+                    IntBuffer part = column.duplicate();
+                    part.limit(i + length).position(i);
+                    buffer.asIntBuffer().put(part);
+                    buffer.position(length * 4);
+                    flush(channel, buffer);
+                }
+            }
+            for (int i = 0; i < rows; i += WRITE_BUFFER_SIZE / 8) {
+                int length = Math.min(WRITE_BUFFER_SIZE / 8, rows - i);
+                LongBuffer part = columns.dateColumn().duplicate();
+                part.limit(i + length).position(i);
+                buffer.asLongBuffer().put(part);
+                buffer.position(length * 8);
+                flush(channel, buffer);
+            }
+            for (int i = 0; i < rows; i += WRITE_BUFFER_SIZE / 8) {
+                int length = Math.min(WRITE_BUFFER_SIZE / 8, rows - i);
+                DoubleBuffer part = columns.rebateColumn().duplicate();
+                part.limit(i + length).position(i);
+                buffer.asDoubleBuffer().put(part);
+                buffer.position(length * 8);
+                flush(channel, buffer);
+            }
+            for (int i = 0; i < rows; i += WRITE_BUFFER_SIZE / 4) {
+                int length = Math.min(WRITE_BUFFER_SIZE / 4, rows - i);
+                IntBuffer part = columns.salesColumn().duplicate();
+                part.limit(i + length).position(i);
+                buffer.asIntBuffer().put(part);
+                buffer.position(length * 4);
+                flush(channel, buffer);
+            }
+        }
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Hashes the first and the last megabyte of a file.
+     */
+    static long hash(File source) throws IOException {
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile file = new RandomAccessFile(source, "r"); FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(HASHED_BYTES, size));
+            readFully(channel, buffer, 0);
+            crc.update(buffer.array(), 0, buffer.limit());
+            if (size > HASHED_BYTES) {
+                buffer.clear();
+                readFully(channel, buffer, size - buffer.capacity());
+                crc.update(buffer.array(), 0, buffer.limit());
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Adds the model names to a StringReplacer, so that it uses the same numbers as the snapshot.
+     * @param modelReplacer a new StringReplacer
+     * @param column the model column
+     */
+    public void restoreReplacer(StringReplacer modelReplacer, int column) {
+        modelReplacer.addStrings(column, models);
+    }
+
+    public RebateColumns getColumns() {
+        return columns;
+    }
+
+    public List<String> getModels() {
+        return models;
+    }
+
+    public double[] getMinArray() {
+        return minArray;
+    }
+
+    public double[] getMaxArray() {
+        return maxArray;
+    }
+
+    /**
+     * Returns the number of lines of the input file including skipped first lines and lines with errors.
+     */
+    public long getInputLines() {
+        return inputLines;
+    }
+}
@@ -0,0 +1,674 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Persistent local store of rebate lines in a directory, so the input does not have to be parsed again for every query.
+ * Lines are appended in batches, each batch becomes a new segment file which is never changed afterwards.
+ * In a segment the lines are grouped by model and ordered by date. Every model has a sparse index with the date
+ * of every INDEX_INTERVAL-th line, so range scans like "model X between dates A and B" only read the lines they return
+ * (and at most INDEX_INTERVAL lines before them). Model names are kept in an append-only dictionary file.
+ *
+ * One writer and any number of readers: the writer holds a file lock on the store and writes each segment
+ * to a temporary file which is renamed once it is complete. All reads go through one immutable state
+ * (models and segments) which the writer replaces after each append, so readers never lock.
+ * Readers of the same RebateStore object see a segment as soon as append returns, readers in other processes call refresh.
+ *
+ * A store directory can be used as input path of SingleDataSetIterator and DistributedDataSetIterator, the lines of the
+ * selected model are read with a range scan instead of parsing the input (the model catalog is read from the segments).
+ *
+ * Segment file format: magic, version, header length, header (number of models, then for each model its number,
+ * number of lines, first and last date and the sparse index), then the lines (year, date, rebate, sales)
+ * of one model after another.
+ *
+ * @author Leo Knoll
+ */
+public class RebateStore implements Closeable {
+
+    public static final String SEGMENT_SUFFIX = ".segment";
+    public static final String MODELS_FILE = "rebates.models";
+    public static final String LOCK_FILE = "rebates.lock";
+
+    // year (int), date (long), rebate (double), sales (int), the model is the same for all lines of a range
+    public static final int LINE_BYTES = 4 + 8 + 8 + 4;
+    public static final int INDEX_INTERVAL = 128;
+
+    private static final long MAGIC = 0x4E4144494E535447L; // "NADINSTG"
+    private static final int VERSION = 1;
+    private static final int READ_LINES = 4096;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    private static final int IMPORT_SEGMENT_LINES = 1 << 20;
+
+    private final File directory;
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+
+    // everything readers need, replaced as a whole (never changed) after each append or refresh
+    private volatile State state = new State(Collections.<String>emptyList(), Collections.<String, Integer>emptyMap(), Collections.<Segment>emptyList());
+
+    private int nextSegment = 1;
+
+    /**
+     * Opens a store, the directory is created if it does not exist.
+     * @param directory the directory of the store
+     * @param writable true to open the store for appending, only one writer is allowed at a time
+     * @throws IOException if the store can not be read or another writer has opened it
+     */
+    public RebateStore(File directory, boolean writable) throws IOException {
+        this.directory = directory;
+        if (writable) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create store directory " + directory);
+            }
+            lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+            FileLock acquired;
+            try {
+                acquired = lockFile.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                acquired = null;
+            }
+            if (acquired == null) {
+                lockFile.close();
+                throw new IOException("Store " + directory + " is already opened for writing");
+            }
+            lock = acquired;
+        } else {
+            if (!directory.isDirectory()) {
+                throw new IOException("Store " + directory + " does not exist");
+            }
+            lockFile = null;
+            lock = null;
+        }
+        refresh();
+    }
+
+    /**
+     * Returns true if the path is the directory of a store.
+     * @param path the input path
+     */
+    public static boolean isStore(String path) {
+        return new File(path, MODELS_FILE).isFile();
+    }
+
+    /**
+     * Loads segments written by another process since the last refresh.
+     * @throws IOException if the store can not be read
+     */
+    public synchronized void refresh() throws IOException {
+        State current = state;
+
+        // segments first: the writer saves the model names before it renames a segment
+        String[] names = directory.list((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (names == null) {
+            throw new IOException("Could not list store directory " + directory);
+        }
+        Arrays.sort(names);
+        List<Segment> segments = new ArrayList<>(current.segments);
+        for (String name : names) {
+            int number = Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            if (number >= nextSegment) {
+                segments.add(Segment.open(new File(directory, name)));
+                nextSegment = number + 1;
+            }
+        }
+
+        List<String> models = readModels();
+        Map<String, Integer> ids = new HashMap<>();
+        for (int i = 0; i < models.size(); i++) {
+            ids.put(models.get(i), i);
+        }
+        state = new State(models, ids, segments);
+    }
+
+    private List<String> readModels() throws IOException {
+        List<String> models = new ArrayList<>();
+        File file = new File(directory, MODELS_FILE);
+        if (!file.isFile()) {
+            return models;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())))) {
+            while (true) {
+                models.add(in.readUTF());
+            }
+        } catch (EOFException e) {
+            // end of the dictionary, a name which is written at the moment is ignored
+        }
+        return models;
+    }
+
+    /**
+     * Appends lines as a new segment.
+     * @param lines the lines, in any order
+     * @param modelReplacer the replacer which assigned the model numbers of the lines
+     * @throws IOException if the store is read-only or the segment can not be written
+     */
+    public void append(RebateColumns lines, StringReplacer modelReplacer) throws IOException {
+        // the first model has the number 2, 0 and 1 are reserved
+        append(lines, modelReplacer.getStrings(RebateDataSetIterator.INDEX_MODEL), 2);
+    }
+
+    /**
+     * Appends lines as a new segment.
+     * @param lines the lines, in any order
+     * @param names the model names of the lines ordered by their number, the first name has the number 0
+     * @throws IOException if the store is read-only or the segment can not be written
+     */
+    public void append(RebateColumns lines, List<String> names) throws IOException {
+        append(lines, names, 0);
+    }
+
+    private synchronized void append(RebateColumns lines, List<String> names, int firstNumber) throws IOException {
+        if (lock == null) {
+            throw new IOException("Store " + directory + " is opened read-only");
+        }
+        if (lines.size() == 0) {
+            return;
+        }
+        State current = state;
+
+        // model numbers of the store, new models are added to the dictionary before the segment is visible
+        List<String> models = new ArrayList<>(current.models);
+        Map<String, Integer> ids = new HashMap<>(current.ids);
+        int[] mapping = new int[firstNumber + names.size()];
+        Arrays.fill(mapping, -1);
+        int[] counts = new int[models.size() + names.size()];
+        ByteArrayOutputStream added = new ByteArrayOutputStream();
+        DataOutputStream addedNames = new DataOutputStream(added);
+        for (int i = 0; i < lines.size(); i++) {
+            int local = lines.getName(i);
+            if (mapping[local] < 0) {
+                String name = names.get(local - firstNumber);
+                Integer id = ids.get(name);
+                if (id == null) {
+                    id = models.size();
+                    models.add(name);
+                    ids.put(name, id);
+                    addedNames.writeUTF(name);
+                }
+                mapping[local] = id;
+            }
+            counts[mapping[local]]++;
+        }
+        if (added.size() > 0) {
+            try (FileOutputStream out = new FileOutputStream(new File(directory, MODELS_FILE), true)) {
+                added.writeTo(out);
+                out.getFD().sync();
+            }
+        }
+
+        // group lines by model, each model ordered by date
+        int[] starts = new int[models.size() + 1];
+        for (int m = 0; m < models.size(); m++) {
+            starts[m + 1] = starts[m] + counts[m];
+        }
+        int[] order = new int[lines.size()];
+        int[] fill = Arrays.copyOf(starts, models.size());
+        for (int i = 0; i < lines.size(); i++) {
+            order[fill[mapping[lines.getName(i)]]++] = i;
+        }
+        for (int m = 0; m < models.size(); m++) {
+            sortByDate(lines, order, starts[m], starts[m + 1]);
+        }
+
+        File file = new File(directory, String.format("%08d", nextSegment) + SEGMENT_SUFFIX);
+        write(file, lines, order, starts);
+        nextSegment++;
+
+        List<Segment> segments = new ArrayList<>(current.segments);
+        segments.add(Segment.open(file));
+        state = new State(models, ids, segments);
+    }
+
+    /**
+     * Sorts the line indexes from ... to - 1 by date, lines of the same date stay in their order.
+     */
+    private static void sortByDate(RebateColumns lines, int[] order, int from, int to) {
+        boolean sorted = true;
+        for (int i = from + 1; i < to && sorted; i++) {
+            sorted = lines.getDate(order[i - 1]) <= lines.getDate(order[i]);
+        }
+        if (sorted) {
+            return; // usual case, lines are appended in date order
+        }
+        Integer[] range = new Integer[to - from];
+        for (int i = from; i < to; i++) {
+            range[i - from] = order[i];
+        }
+        Arrays.sort(range, (a, b) -> Long.compare(lines.getDate(a), lines.getDate(b)));
+        for (int i = from; i < to; i++) {
+            order[i] = range[i - from];
+        }
+    }
+
+    /**
+     * Writes a segment to a temporary file, which is renamed once it is complete.
+     */
+    private static void write(File segmentFile, RebateColumns lines, int[] order, int[] starts) throws IOException {
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        int modelCount = 0;
+        for (int m = 0; m + 1 < starts.length; m++) {
+            if (starts[m + 1] > starts[m]) {
+                modelCount++;
+            }
+        }
+        header.writeInt(modelCount);
+        for (int m = 0; m + 1 < starts.length; m++) {
+            int from = starts[m];
+            int to = starts[m + 1];
+            if (to == from) {
+                continue;
+            }
+            header.writeInt(m);
+            header.writeInt(to - from);
+            header.writeLong(lines.getDate(order[from]));
+            header.writeLong(lines.getDate(order[to - 1]));
+            header.writeInt((to - from + INDEX_INTERVAL - 1) / INDEX_INTERVAL);
+            for (int i = from; i < to; i += INDEX_INTERVAL) {
+                header.writeLong(lines.getDate(order[i]));
+            }
+        }
+        header.flush();
+
+        File tempFile = new File(segmentFile.getPath() + ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(tempFile, "rw"); FileChannel channel = file.getChannel()) {
+            file.setLength(0);
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+            buffer.putLong(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(headerBytes.size());
+            flush(channel, buffer);
+            channel.write(ByteBuffer.wrap(headerBytes.toByteArray()));
+
+            for (int index : order) {
+                if (buffer.remaining() < LINE_BYTES) {
+                    flush(channel, buffer);
+                }
+                buffer.putInt(lines.getYear(index)).putLong(lines.getDate(index)).putDouble(lines.getRebate(index)).putInt(lines.getSales(index));
+            }
+            flush(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), segmentFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Appends all lines of an input file, a directory or a glob pattern (see RebateFileSet).
+     * Large inputs are split into several segments, so they do not have to fit into memory.
+     * @param filename the input path
+     * @param delimiter the delimiter used to separate columns, has to be a single character
+     * @param skipFirstLines the number of lines which have to be skipped at the beginning of each file
+     * @param threads the number of threads used to read the input
+     * @return the number of appended lines
+     * @throws IOException if the input can not be read or the store can not be written
+     */
+    public int importFile(String filename, String delimiter, int skipFirstLines, int threads) throws IOException {
+        long start = System.nanoTime();
+        RebateColumns batch = new RebateColumns(1024);
+        List<String> names = new ArrayList<>();
+        Map<String, Integer> dictionary = new HashMap<>();
+        int[] imported = new int[1];
+
+        MappedRebateParser.RowHandler handler = (name, year, date, rebate, sales) -> {
+            Integer id = dictionary.get(name);
+            if (id == null) {
+                id = names.size();
+                dictionary.put(name, id);
+                names.add(name);
+            }
+            batch.add(id, year, date, rebate, sales);
+            if (batch.size() == IMPORT_SEGMENT_LINES) {
+                try {
+                    append(batch, names);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                imported[0] += batch.size();
+                batch.setSize(0);
+            }
+        };
+        try {
+            if (RebateFileSet.isFileSet(filename)) {
+                new RebateFileSet(delimiter, skipFirstLines, threads).stream(filename, handler);
+            } else {
+                MappedRebateParser parser = new MappedRebateParser(delimiter, skipFirstLines);
+                parser.setDecompressionThreads(threads);
+                parser.parse(filename, handler);
+            }
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+        append(batch, names);
+        imported[0] += batch.size();
+
+        System.out.println("Imported " + imported[0] + " lines of " + filename + " into store " + directory + " in "
+            + (System.nanoTime() - start) / 1000000 + " ms.");
+        return imported[0];
+    }
+
+    /**
+     * Passes the lines of a model between two dates (both included) ordered by date to the handler,
+     * lines of the same date in the order they were appended.
+     * @param model the model name
+     * @param from the first date (UNIX timestamp in seconds)
+     * @param to the last date (UNIX timestamp in seconds)
+     * @param handler receives the lines
+     * @throws IOException if a segment can not be read
+     */
+    public void scan(String model, long from, long to, MappedRebateParser.RowHandler handler) throws IOException {
+        State current = state;
+        Integer id = current.ids.get(model);
+        if (id == null || from > to) {
+            return;
+        }
+
+        // one cursor for each segment which contains lines of the model in the date range
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+        for (int s = 0; s < current.segments.size(); s++) {
+            Segment segment = current.segments.get(s);
+            Range range = segment.ranges.get(id);
+            if (range == null || range.lastDate < from || range.firstDate > to) {
+                continue;
+            }
+            Cursor cursor = new Cursor(s, segment, range, range.findStart(from), to);
+            if (cursor.advance(from)) {
+                cursors.add(cursor);
+            }
+        }
+
+        while (!cursors.isEmpty()) {
+            Cursor cursor = cursors.poll();
+            handler.handleRow(model, cursor.year, cursor.date, cursor.rebate, cursor.sales);
+            if (cursor.advance(from)) {
+                cursors.add(cursor);
+            }
+        }
+    }
+
+    /**
+     * Returns the lines of a model between two dates (both included) ordered by date.
+     * @param model the model name
+     * @param from the first date (UNIX timestamp in seconds)
+     * @param to the last date (UNIX timestamp in seconds)
+     * @return the lines, the model number is the number of the model in the store (see getModels)
+     * @throws IOException if a segment can not be read
+     */
+    public RebateColumns scan(String model, long from, long to) throws IOException {
+        RebateColumns lines = new RebateColumns(RebateColumns.checkCapacity(getLines(model)));
+        Integer id = state.ids.get(model);
+        if (id != null) {
+            scan(model, from, to, (name, year, date, rebate, sales) -> lines.add(id, year, date, rebate, sales));
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the model names of the store ordered by their number.
+     */
+    public List<String> getModels() {
+        return state.models;
+    }
+
+    /**
+     * Returns the number of lines of a model.
+     * @param model the model name
+     */
+    public long getLines(String model) {
+        State current = state;
+        Integer id = current.ids.get(model);
+        long lines = 0;
+        if (id != null) {
+            for (Segment segment : current.segments) {
+                Range range = segment.ranges.get(id);
+                lines += (range != null) ? range.lines : 0;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the first and the last date of a model, or null if the store has no lines of the model.
+     * @param model the model name
+     * @return {first date, last date}
+     */
+    public long[] getDateRange(String model) {
+        State current = state;
+        Integer id = current.ids.get(model);
+        long[] dates = null;
+        if (id != null) {
+            for (Segment segment : current.segments) {
+                Range range = segment.ranges.get(id);
+                if (range == null) {
+                    continue;
+                }
+                if (dates == null) {
+                    dates = new long[] {range.firstDate, range.lastDate};
+                } else {
+                    dates[0] = Math.min(dates[0], range.firstDate);
+                    dates[1] = Math.max(dates[1], range.lastDate);
+                }
+            }
+        }
+        return dates;
+    }
+
+    /**
+     * Returns the number of segment files.
+     */
+    public int getSegments() {
+        return state.segments.size();
+    }
+
+    /**
+     * Closes the segment files and releases the write lock, scans must have finished.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : state.segments) {
+            segment.channel.close();
+        }
+        if (lock != null) {
+            lock.release();
+            lockFile.close();
+        }
+    }
+
+    /**
+     * Models and segments seen by readers, never changed after construction.
+     */
+    private static class State {
+        private final List<String> models;
+        private final Map<String, Integer> ids;
+        private final List<Segment> segments;
+
+        private State(List<String> models, Map<String, Integer> ids, List<Segment> segments) {
+            this.models = Collections.unmodifiableList(models);
+            this.ids = Collections.unmodifiableMap(ids);
+            this.segments = Collections.unmodifiableList(segments);
+        }
+    }
+
+    /**
+     * An open segment file and the ranges of its models.
+     */
+    private static class Segment {
+        private final FileChannel channel;
+        private final Map<Integer, Range> ranges;
+
+        private Segment(FileChannel channel, Map<Integer, Range> ranges) {
+            this.channel = channel;
+            this.ranges = ranges;
+        }
+
+        private static Segment open(File file) throws IOException {
+            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+            try {
+                ByteBuffer prefix = ByteBuffer.allocate(16);
+                readFully(channel, prefix, 0);
+                if (prefix.getLong(0) != MAGIC || prefix.getInt(8) != VERSION) {
+                    throw new IOException("Segment " + file + " has an unknown format");
+                }
+                int headerLength = prefix.getInt(12);
+                ByteBuffer headerBuffer = ByteBuffer.allocate(headerLength);
+                readFully(channel, headerBuffer, 16);
+                DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBuffer.array()));
+
+                Map<Integer, Range> ranges = new HashMap<>();
+                long position = 16 + headerLength;
+                int modelCount = header.readInt();
+                for (int i = 0; i < modelCount; i++) {
+                    int id = header.readInt();
+                    int lines = header.readInt();
+                    long firstDate = header.readLong();
+                    long lastDate = header.readLong();
+                    long[] index = new long[header.readInt()];
+                    for (int k = 0; k < index.length; k++) {
+                        index[k] = header.readLong();
+                    }
+                    ranges.put(id, new Range(position, lines, firstDate, lastDate, index));
+                    position += (long) lines * LINE_BYTES;
+                }
+                return new Segment(channel, ranges);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Position, number of lines, first and last date and sparse index of the lines of one model in a segment.
+     */
+    private static class Range {
+        private final long position;
+        private final int lines;
+        private final long firstDate;
+        private final long lastDate;
+        private final long[] index; // date of every INDEX_INTERVAL-th line
+
+        private Range(long position, int lines, long firstDate, long lastDate, long[] index) {
+            this.position = position;
+            this.lines = lines;
+            this.firstDate = firstDate;
+            this.lastDate = lastDate;
+            this.index = index;
+        }
+
+        /**
+         * Returns a line before the first line at or after the date, at most INDEX_INTERVAL lines before it.
+         */
+        private int findStart(long date) {
+            // last index entry before the date
+            int low = 0;
+            int high = index.length - 1;
+            int found = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (index[middle] < date) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found * INDEX_INTERVAL;
+        }
+    }
+
+    /**
+     * Reads the lines of a range in blocks, from a start line up to the last line before a date.
+     */
+    private static class Cursor implements Comparable<Cursor> {
+        private final int order;
+        private final Segment segment;
+        private final Range range;
+        private final long to;
+        private final ByteBuffer buffer = ByteBuffer.allocate(READ_LINES * LINE_BYTES);
+        private int next;
+
+        // current line
+        private int year;
+        private long date;
+        private double rebate;
+        private int sales;
+
+        private Cursor(int order, Segment segment, Range range, int start, long to) {
+            this.order = order;
+            this.segment = segment;
+            this.range = range;
+            this.to = to;
+            this.next = start;
+            buffer.limit(0);
+        }
+
+        /**
+         * Moves to the next line at or after from, returns false after the last line before or at to.
+         */
+        private boolean advance(long from) throws IOException {
+            do {
+                if (!buffer.hasRemaining()) {
+                    int count = Math.min(READ_LINES, range.lines - next);
+                    if (count <= 0) {
+                        return false;
+                    }
+                    buffer.clear().limit(count * LINE_BYTES);
+                    readFully(segment.channel, buffer, range.position + (long) next * LINE_BYTES);
+                    next += count;
+                }
+                year = buffer.getInt();
+                date = buffer.getLong();
+                rebate = buffer.getDouble();
+                sales = buffer.getInt();
+            } while (date < from);
+            return date <= to;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int byDate = Long.compare(date, other.date);
+            return (byDate != 0) ? byDate : Integer.compare(order, other.order);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+}
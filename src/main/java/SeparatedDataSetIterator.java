@@ -3,41 +3,68 @@ import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
-import org.nd4j.linalg.factory.Nd4j;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.InputStreamReader;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * This DataSetIterator trains all models on the network.
+ * By default each mini-batch holds lines of one model as series of length 1 and needsReset is true after
+ * the last mini-batch of a model. With packed sequences (see RebateReaderOptions) the lines of each model are
+ * split into sequences of up to sequenceLength days, one mini-batch holds the sequences of many models,
+ * padded to the longest one with feature and label masks.
  *
  * @author Leo Knoll
  */
 public class SeparatedDataSetIterator extends RebateDataSetIterator {
 
-    private List<Integer> trainingMiniBatchSizes = new ArrayList<>();
-    private int currentIterationElement = 0;
-    private int currentIterationIndex = 0;
-    private int currentListIndex = 0;
-
-    private Map<Integer, List<RebateData>> separatedData = new HashMap<>();
-    private List<Integer> modelList = new ArrayList<>();
+    // no field initializers: the super constructor already fills these fields (in readRebateDataFromFile
+    // and initializeTraining) and initializers would only run afterwards and overwrite them
+    private List<Integer> trainingMiniBatchSizes;
+    private int currentIterationElement;
+    private int currentIterationIndex;
+    private int currentListIndex;
+
+    // training lines are kept in trainData grouped by model, see RebateColumns.groupByName
+    private List<Integer> modelList;
+    private int trainingRows; // lines of allData used for training
+    private long inputLines;  // lines of the input including skipped first lines and lines with errors
+
+    // packed sequences: first line (in trainData) and length of each sequence, created in initializeTraining
+    private int[] sequenceStarts;
+    private int[] sequenceLengths;
+    private int sequenceCount;
+    private int sequenceCursor;
+
+    // reused for each mini-batch and test line, created on first use
+    private NDArrayBuffer inputBuffer;
+    private NDArrayBuffer labelBuffer;
+    private NDArrayBuffer maskBuffer;
 
     public SeparatedDataSetIterator(String dataFilePath, String delimiter, double splitRatio, String model, boolean addMissingDays, int skipFirstLines, boolean average) {
         super(dataFilePath, delimiter, 1, splitRatio, model, addMissingDays, skipFirstLines, average);
     }
 
+    public SeparatedDataSetIterator(String dataFilePath, String delimiter, double splitRatio, String model, boolean addMissingDays, int skipFirstLines, boolean average, RebateReaderOptions options) {
+        super(dataFilePath, delimiter, 1, splitRatio, model, addMissingDays, skipFirstLines, average, options);
+    }
+
     @Override
     void splitData(double splitRatio) {
         // already happened in readRebateDataFromFile
         // may be optimized here
 
-        test = generateTestDataSet(testDataList);
+        test = generateTestDataSet(testData);
     }
 
     /**
@@ -45,11 +72,18 @@ public class SeparatedDataSetIterator extends RebateDataSetIterator {
      */
     @Override
     void initializeTraining() {
+        if (options.isPackedSequences()) {
+            initializeSequences();
+            return;
+        }
+        if (trainingMiniBatchSizes == null) {
+            trainingMiniBatchSizes = new ArrayList<>();
+        }
         trainingMiniBatchSizes.clear();
         int model = modelList.get(currentListIndex);
-        List<RebateData>  dataList = separatedData.get(model);
-        int fullBatches = dataList.size() / MINI_BATCH_SIZE;
-        int rest = dataList.size() % MINI_BATCH_SIZE;
+        int lines = trainData.getModelEnd(model) - trainData.getModelStart(model);
+        int fullBatches = lines / MINI_BATCH_SIZE;
+        int rest = lines % MINI_BATCH_SIZE;
 
         for (int i = 0; i < fullBatches; i++) {
             trainingMiniBatchSizes.add(MINI_BATCH_SIZE);
@@ -60,6 +94,52 @@ public class SeparatedDataSetIterator extends RebateDataSetIterator {
         }
     }
 
+    /**
+     * Splits the lines of each model into sequences of up to sequenceLength days for the whole epoch.
+     * The full sequences come first in model order, the shorter last sequences of the models follow sorted
+     * by length, so the sequences of a mini-batch have about the same length and need little padding.
+     */
+    private void initializeSequences() {
+        int length = Math.max(1, options.getSequenceLength());
+        int count = 0;
+        for (int model : modelList) {
+            int lines = trainData.getModelEnd(model) - trainData.getModelStart(model);
+            count += (lines + length - 1) / length;
+        }
+        if (sequenceStarts == null || sequenceStarts.length != count) {
+            sequenceStarts = new int[count];
+            sequenceLengths = new int[count];
+        }
+
+        sequenceCount = 0;
+        long[] rests = new long[modelList.size()]; // length in the upper and first line in the lower 32 bits
+        int restCount = 0;
+        for (int model : modelList) {
+            int start = trainData.getModelStart(model);
+            int end = trainData.getModelEnd(model);
+            for (int line = start; line + length <= end; line += length) {
+                addSequence(line, length);
+            }
+            int rest = (end - start) % length;
+            if (rest > 0) {
+                rests[restCount++] = ((long) rest << 32) | (end - rest);
+            }
+        }
+        Arrays.sort(rests, 0, restCount);
+        for (int i = restCount - 1; i >= 0; i--) {
+            addSequence((int) rests[i], (int) (rests[i] >>> 32));
+        }
+
+        sequenceCursor = 0;
+        finished = sequenceCount == 0;
+    }
+
+    private void addSequence(int start, int length) {
+        sequenceStarts[sequenceCount] = start;
+        sequenceLengths[sequenceCount] = length;
+        sequenceCount++;
+    }
+
     /**
      * Returns the generated test data.
      * @return the data for testing.
@@ -79,32 +159,44 @@ public class SeparatedDataSetIterator extends RebateDataSetIterator {
 
     @Override
     public DataSet next(int actualMiniBatchSize) {
+        if (options.isPackedSequences()) {
+            return nextSequences(actualMiniBatchSize);
+        }
         int model = modelList.get(currentListIndex);
-        List<RebateData>  dataList = separatedData.get(model);
+        int start = trainData.getModelStart(model);
+        int lines = trainData.getModelEnd(model) - start;
 
-        // Nd4j.create(new int[] {MINI-BATCH SIZE, INPUTS, TIME SERIES}, 'f')
-        INDArray input = Nd4j.create(new int[] {actualMiniBatchSize, INPUT_VECTOR_SIZE, 1}, 'f');
-        INDArray label = Nd4j.create(new int[] {actualMiniBatchSize, OUTPUT_VECTOR_SIZE, 1}, 'f');
+        // read the columns directly, the lines of a model are next to each other
+        IntBuffer names = trainData.nameColumn();
+        IntBuffer years = trainData.yearColumn();
+        LongBuffer dates = trainData.dateColumn();
+        DoubleBuffer rebates = trainData.rebateColumn();
+        IntBuffer sales = trainData.salesColumn();
+
+        // {MINI-BATCH SIZE, INPUTS, TIME SERIES} in 'f' order, copied into the INDArrays at once
+        createBuffers();
+        NDArrayBuffer input = inputBuffer.reset(actualMiniBatchSize, INPUT_VECTOR_SIZE, 1);
+        NDArrayBuffer label = labelBuffer.reset(actualMiniBatchSize, OUTPUT_VECTOR_SIZE, 1);
 
         //System.out.println("Training " + actualMiniBatchSize + " of " + model);
 
         // for all train data in mini-batch size
         for (int i = 0; i < actualMiniBatchSize; i++) {
-            RebateData curData = dataList.get(currentIterationElement + i);
+            int line = start + currentIterationElement + i;
 
             // input (features) //TODO: or {i, 0, i} ???
-            input.putScalar(new int[] {i, 0, 0}, (curData.getName() - minArray[0]) / (maxArray[0] - minArray[0]));
-            input.putScalar(new int[] {i, 1, 0}, (curData.getYear() - minArray[1]) / (maxArray[1] - minArray[1]));
-            input.putScalar(new int[] {i, 2, 0}, (curData.getDate() - minArray[2]) / (maxArray[2] - minArray[2]));
-            input.putScalar(new int[] {i, 3, 0}, (curData.getRebate() - minArray[3]) / (maxArray[3] - minArray[3]));
+            input.put(i, 0, 0, (names.get(line) - minArray[0]) / (maxArray[0] - minArray[0]));
+            input.put(i, 1, 0, (years.get(line) - minArray[1]) / (maxArray[1] - minArray[1]));
+            input.put(i, 2, 0, (dates.get(line) - minArray[2]) / (maxArray[2] - minArray[2]));
+            input.put(i, 3, 0, (rebates.get(line) - minArray[3]) / (maxArray[3] - minArray[3]));
 
             // output (labels)
-            label.putScalar(new int[] {i, 0, 0}, (curData.getSales() - minArray[4]) / (maxArray[4] - minArray[4]));
+            label.put(i, 0, 0, (sales.get(line) - minArray[4]) / (maxArray[4] - minArray[4]));
         }
 
         currentIterationElement += actualMiniBatchSize;
 
-        if (currentIterationElement == dataList.size()) {
+        if (currentIterationElement == lines) {
             needsReset = true;
             currentListIndex++;
             if (currentListIndex == modelList.size()) {
@@ -116,10 +208,90 @@ public class SeparatedDataSetIterator extends RebateDataSetIterator {
 
         //System.out.println("Labels: " + Arrays.toString(new DataSet(input, label).getLabels().shape()));
         //System.out.println("Features: " + Arrays.toString(new DataSet(input, label).getFeatures().shape()));
-        return new DataSet(input, label);
+        return new DataSet(input.create(), label.create());
     }
 
+    /**
+     * Returns the next sequences as {SEQUENCES, INPUTS, DAYS} with masks {SEQUENCES, DAYS},
+     * the days after the end of a shorter sequence are masked out.
+     * @param sequences the maximum number of sequences in the mini-batch
+     */
+    private DataSet nextSequences(int sequences) {
+        int examples = Math.min(sequences, sequenceCount - sequenceCursor);
+        int days = 0;
+        for (int i = 0; i < examples; i++) {
+            days = Math.max(days, sequenceLengths[sequenceCursor + i]);
+        }
+
+        IntBuffer names = trainData.nameColumn();
+        IntBuffer years = trainData.yearColumn();
+        LongBuffer dates = trainData.dateColumn();
+        DoubleBuffer rebates = trainData.rebateColumn();
+        IntBuffer sales = trainData.salesColumn();
+
+        // 'f' order, copied into the INDArrays at once; padding has to be written too, the buffers are reused
+        createBuffers();
+        NDArrayBuffer input = inputBuffer.reset(examples, INPUT_VECTOR_SIZE, days);
+        NDArrayBuffer label = labelBuffer.reset(examples, OUTPUT_VECTOR_SIZE, days);
+        NDArrayBuffer mask = maskBuffer.reset(examples, days);
+
+        for (int i = 0; i < examples; i++) {
+            int first = sequenceStarts[sequenceCursor + i];
+            int length = sequenceLengths[sequenceCursor + i];
+            for (int t = 0; t < days; t++) {
+                if (t < length) {
+                    int line = first + t;
+                    input.put(i, 0, t, (names.get(line) - minArray[0]) / (maxArray[0] - minArray[0]));
+                    input.put(i, 1, t, (years.get(line) - minArray[1]) / (maxArray[1] - minArray[1]));
+                    input.put(i, 2, t, (dates.get(line) - minArray[2]) / (maxArray[2] - minArray[2]));
+                    input.put(i, 3, t, (rebates.get(line) - minArray[3]) / (maxArray[3] - minArray[3]));
+                    label.put(i, 0, t, (sales.get(line) - minArray[4]) / (maxArray[4] - minArray[4]));
+                    mask.put(i, t, 1);
+                } else {
+                    for (int j = 0; j < INPUT_VECTOR_SIZE; j++) {
+                        input.put(i, j, t, 0);
+                    }
+                    label.put(i, 0, t, 0);
+                    mask.put(i, t, 0);
+                }
+            }
+        }
+
+        sequenceCursor += examples;
+        if (sequenceCursor == sequenceCount) {
+            currentListIndex = modelList.size(); // reset starts the next epoch
+            finished = true;
+        }
+
+        return new DataSet(input.create(), label.create(), mask.create(), mask.create());
+    }
+
+    /**
+     * Returns the number of lines used for training, the lines before 80% of the input.
+     * The same rule is used when reading the input and after appending, so both split the same lines.
+     * @param inputLines the number of lines of the input including the skipped first lines and lines with errors
+     * @param rows the number of parsed lines
+     */
+    static int getTrainingRows(long inputLines, int rows) {
+        long separationLine = (long) (0.8 * inputLines);
+        return (int) Math.max(0, Math.min(rows, separationLine - 2));
+    }
+
+    private void createBuffers() {
+        if (inputBuffer == null) {
+            inputBuffer = new NDArrayBuffer();
+            labelBuffer = new NDArrayBuffer();
+            maskBuffer = new NDArrayBuffer();
+        }
+    }
+
+    /**
+     * Returns the number of training examples of an epoch, with packed sequences each sequence is one example.
+     */
     @Override public int totalExamples() {
+        if (options.isPackedSequences()) {
+            return sequenceCount;
+        }
         int cnt = 0;
         for (int n : trainingMiniBatchSizes) {
             cnt += n;
@@ -148,7 +320,13 @@ public class SeparatedDataSetIterator extends RebateDataSetIterator {
         }
     }
 
-    @Override public int batch() { return separatedData.keySet().size(); }
+    @Override
+    void restartEpoch() {
+        currentListIndex = modelList.size();
+        reset();
+    }
+
+    @Override public int batch() { return modelList.size(); }
 
     @Override public int cursor() { return totalExamples();}
 
@@ -164,7 +342,9 @@ public class SeparatedDataSetIterator extends RebateDataSetIterator {
 
     @Override public boolean hasNext() { return finished == false; }
 
-    @Override public DataSet next() { return next(getCurrentMiniBatchSize()); }
+    @Override public DataSet next() {
+        return next(options.isPackedSequences() ? MINI_BATCH_SIZE : getCurrentMiniBatchSize());
+    }
 
     public boolean needsReset() {
         return needsReset;
@@ -172,169 +352,319 @@ public class SeparatedDataSetIterator extends RebateDataSetIterator {
 
     /**
      * Generates the test data set.
-     * @param rebateDataList data list containing the data
+     * @param rebateData columns containing the data
      * @return list of test data
      */
-    private List<Pair<INDArray, INDArray>> generateTestDataSet (List<RebateData> rebateDataList) {
+    private List<Pair<INDArray, INDArray>> generateTestDataSet (RebateColumns rebateData) {
         List<Pair<INDArray, INDArray>> test = new ArrayList<>();
 
-        System.out.println("Test data size: " + rebateDataList.size());
+        System.out.println("Test data size: " + rebateData.size());
 
         // for all test data
-        for (int i = 0; i < rebateDataList.size(); i++) {
-            INDArray input = Nd4j.create(new int[] {1, INPUT_VECTOR_SIZE, 1}, 'f');
-            INDArray label = Nd4j.create(new int[] {1, OUTPUT_VECTOR_SIZE, 1}, 'f');
+        for (int i = 0; i < rebateData.size(); i++) {
+            test.add(createTestData(rebateData, i));
+        }
+        return test;
+    }
 
-            RebateData rebateData = rebateDataList.get(i);
+    /**
+     * Creates the normalized test input and the sales as label of one line.
+     */
+    private Pair<INDArray, INDArray> createTestData(RebateColumns rebateData, int i) {
+        createBuffers();
+        NDArrayBuffer input = inputBuffer.reset(1, INPUT_VECTOR_SIZE, 1);
+        NDArrayBuffer label = labelBuffer.reset(1, OUTPUT_VECTOR_SIZE, 1);
 
-            // input (features)
-            input.putScalar(new int[] {0, 0, 0}, (rebateData.getName() - minArray[0]) / (maxArray[0] - minArray[0]));
-            input.putScalar(new int[] {0, 1, 0}, (rebateData.getYear() - minArray[1]) / (maxArray[1] - minArray[1]));
-            input.putScalar(new int[] {0, 2, 0}, (rebateData.getDate() - minArray[2]) / (maxArray[2] - minArray[2]));
-            input.putScalar(new int[] {0, 3, 0}, (rebateData.getRebate() - minArray[3]) / (maxArray[3] - minArray[3]));
+        // input (features)
+        input.put(0, 0, 0, (rebateData.getName(i) - minArray[0]) / (maxArray[0] - minArray[0]));
+        input.put(0, 1, 0, (rebateData.getYear(i) - minArray[1]) / (maxArray[1] - minArray[1]));
+        input.put(0, 2, 0, (rebateData.getDate(i) - minArray[2]) / (maxArray[2] - minArray[2]));
+        input.put(0, 3, 0, (rebateData.getRebate(i) - minArray[3]) / (maxArray[3] - minArray[3]));
 
-            // output (labels)
-            label.putScalar(new int[] {0, 0, 0}, rebateData.getSales()); //save in {0, 0, 0} for easy recovery
+        // output (labels)
+        label.put(0, 0, 0, rebateData.getSales(i)); //save in {0, 0, 0} for easy recovery
 
-            test.add(new Pair<>(input, label));
-        }
-        return test;
+        return new Pair<>(input.create(), label.create());
     }
 
     /**
-     * Reads in all data and saves it in a list.
+     * Reads in all data and saves it in columns.
      * Also converts strings to numbers.
      * @param filename the path to the file containing the data
      * @param delimiter the delimiter used to separate columns in the data
      * @param model (optional) the model we want to test, saves the associated number in filterID
-     * @return all data as list
+     * @return all data as columns
      */
     @Override
-    List<RebateData> readRebateDataFromFile(String filename, String delimiter, String model, boolean addMissingDays, int skipFirstLines) {
-        List<RebateData> allDataList = new ArrayList<>();
-
-        //Read file into list
+    RebateColumns readRebateDataFromFile(String filename, String delimiter, String model, boolean addMissingDays, int skipFirstLines) {
+        // the model catalog (e.g. built for the GUI) knows the number of lines in advance
+        RebateModelCatalog catalog = RebateModelCatalog.getCached(filename);
+        RebateColumns columns = (catalog != null) ? createColumns(RebateColumns.checkCapacity(catalog.getRows())) : createColumns();
+        modelList = new ArrayList<>();
+        trainingRows = 0;
+
+        //Read file into columns
         try {
-            long separationLine = (long) (0.8 * Files.lines(Paths.get(filename)).count());
-
             for (int i = 0; i < maxArray.length; i++) { // initialize max and min arrays
                 maxArray[i] = Double.MIN_VALUE;
                 minArray[i] = Double.MAX_VALUE;
             }
 
             // String replacer replaces each string with a unique number
-            StringReplacer modelReplacer = new StringReplacer(INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE,
-                new int[] {StringReplacer.TYPE_STRING, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER});
-
-            List<String[]> list = new ArrayList<>();
-            BufferedReader reader = new BufferedReader(new FileReader(new File(filename)));
-            String line;
+            // the date column is converted by the date parser like in the other readers (UTC day or timestamp)
+            modelReplacer = new StringReplacer(INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE,
+                new int[] {StringReplacer.TYPE_STRING, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_IGNORE, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER});
+
+            // lines of the input including the skipped first lines and lines with errors, every parser counts the same lines
+            long parseStart = System.nanoTime();
+            ParallelRebateParser parser = null;
+            RebateFileSet fileSet = null;
+
+            if (RebateFileSet.isFileSet(filename)) {
+                // parse the files of a directory or pattern in parallel and merge them by date, min and max are merged from the file statistics
+                fileSet = createFileSet();
+                columns = fileSet.parse(filename, modelReplacer);
+                logParseThroughput("File set (" + fileSet.getFiles() + " files)", fileSet.getParsedBytes(), System.nanoTime() - parseStart);
+                inputLines = fileSet.getParsedLines();
+            } else if (options.isSnapshotCache() || options.getParser() == RebateReaderOptions.PARSER_PARALLEL) {
+                if (options.isSnapshotCache()) {
+                    // parsed columns of the whole file, only parsed again if the file changed
+                    RebateSnapshot snapshot = RebateSnapshot.loadOrCreate(filename, delimiter, skipFirstLines, options.getThreads(), options.isOffHeap());
+                    snapshot.restoreReplacer(modelReplacer, INDEX_MODEL);
+                    columns = snapshot.getColumns();
+                    inputLines = snapshot.getInputLines();
+                } else {
+                    // parse chunks of the file on all cores, min and max are merged from the chunk statistics
+                    parser = new ParallelRebateParser(delimiter, skipFirstLines, options.getThreads());
+                    parser.setOffHeap(options.isOffHeap());
+                    columns = parser.parse(filename, modelReplacer);
+                    logParseThroughput("Parallel parser (" + options.getThreads() + " threads)", parser.getParsedBytes(), System.nanoTime() - parseStart);
+                    inputLines = parser.getParsedLines();
+                }
+            } else if (options.getParser() == RebateReaderOptions.PARSER_MAPPED) {
+                // scan the mapped file byte by byte into primitive fields
+                RebateColumns lines = columns;
+                MappedRebateParser mappedParser = new MappedRebateParser(delimiter, skipFirstLines);
+                mappedParser.parse(filename, (name, year, date, rebate, sales) -> {
+                    lines.add(modelReplacer.encodeString(INDEX_MODEL, name), year, date, rebate, sales);
+                });
+                logParseThroughput("Memory-mapped parser", mappedParser.getParsedBytes(), System.nanoTime() - parseStart);
+
+                // all lines are known now, no need to count them in advance
+                inputLines = mappedParser.getParsedLines();
+            } else {
+                // gzip files are decompressed ahead of the reader
+                try (BufferedReader counter = new BufferedReader(new InputStreamReader(
+                        ParallelGzipInputStream.open(filename, options.getThreads())))) {
+                    inputLines = counter.lines().count();
+                }
 
-            //skip first lines
-            for (int i = 0; i < skipFirstLines; i++) {
-                reader.readLine();
-            }
-            int lineNumber = skipFirstLines;
+                BufferedReader reader = new BufferedReader(new InputStreamReader(ParallelGzipInputStream.open(filename, options.getThreads())));
+                String line;
 
-            while ((line = reader.readLine()) != null) {
-                lineNumber++;
-                String[] dataSplit = line.split(delimiter, -1); //limit = -1 so that it does not leave out empty elements
-                if (dataSplit.length == INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE) {
+                //skip first lines
+                for (int i = 0; i < skipFirstLines; i++) {
+                    reader.readLine();
+                }
+                int lineNumber = skipFirstLines;
+                double[] nums = new double[INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE];
+                DateParser dateParser = StringReplacer.getDateParser();
 
-                    String[] replacedData = modelReplacer.replace(dataSplit);   // replace Strings
-                    replacedData = modelReplacer.fillNullOrEmpty(replacedData, "0", true); //replace empty number fields
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    String[] dataSplit = line.split(delimiter, -1); //limit = -1 so that it does not leave out empty elements
+                    if (dataSplit.length == INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE) {
 
-                    list.add(replacedData);
-                    if (model != null && filterID == null && model.trim().equals(dataSplit[0].trim())) {
-                        filterID = Integer.valueOf(replacedData[0]);
-                        System.out.println("Filter for Modell " + model + " represented by " + filterID + ".");
+                        // replace strings and parse numbers, empty number fields are 0
+                        modelReplacer.encode(dataSplit, nums);
+                        columns.add((int) nums[INDEX_MODEL], (int) nums[INDEX_YEAR],
+                            dateParser.parseTimestamp(dataSplit[INDEX_DATE]), nums[INDEX_REBATE], (int) nums[INDEX_SALES]);
+                    } else {
+                        // Print Error
+                        System.err.println("Wrong number of columns in line " + lineNumber + ": " + line);
                     }
-                } else {
-                    // Print Error
-                    System.err.println("Wrong number of columns in line " + lineNumber + ": " + line);
                 }
+                reader.close();
+                logParseThroughput("Line reader", new File(filename).length(), System.nanoTime() - parseStart);
             }
-            reader.close();
-
-            lineNumber = 1;
-            for (String[] arr : list) {
-                lineNumber++;
-                if (lineNumber >= separationLine) {
-                    RebateData data = new RebateData(Integer.valueOf(arr[0]), Integer.valueOf(arr[1]), Long.valueOf(arr[2])/1000, Double.valueOf(arr[3]), Integer.valueOf(arr[4]));
-                    if (data.getName() == filterID) {
-                        testDataList.add(data);
-                    }
-                    allDataList.add(data);
-                    continue;
-                }
-                double[] nums = new double[INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE];
-                for (int i = 0; i < arr.length; i++) {
-                    nums[i] = Double.valueOf(arr[i]);
-                    if (i == INDEX_DATE) {
-                        nums[i] /= 1000; //because of unix timestamp conversion
-                    }
-                    if (nums[i] > maxArray[i]) maxArray[i] = nums[i];
-                    if (nums[i] < minArray[i]) minArray[i] = nums[i];
-                }
 
-                RebateData data = new RebateData(Integer.valueOf(arr[0]), Integer.valueOf(arr[1]), Long.valueOf(arr[2])/1000, Double.valueOf(arr[3]), Integer.valueOf(arr[4]));
+            if (options.isAggregate()) {
+                // one line per model, year and day ordered by date, the separation line is based on the aggregated lines
+                int lines = columns.size();
+                columns = RebateAggregator.aggregate(columns, options.isOffHeap());
+                inputLines = columns.size() + skipFirstLines;
+                parser = null; // chunk statistics of the parser belong to the lines before aggregation
+                fileSet = null;
+                System.out.println("Aggregated " + lines + " lines to " + columns.size() + " days.");
+            }
 
-                // add to map
-                if (separatedData.get(data.getName()) == null) {
-                    separatedData.put(data.getName(), new ArrayList<RebateData>());
-                    modelList.add(data.getName());
-                }
-                separatedData.get(data.getName()).add(data);
+            if (model != null) {
+                filterID = findModel(model);
+                System.out.println("Filter for Modell " + model + " represented by " + filterID + ".");
+            }
 
-                allDataList.add(data);
+            // lines before the separation line are used for training, min and max only use training data
+            trainingRows = getTrainingRows(inputLines, columns.size());
+            if (parser != null) {
+                parser.updateMinMax(columns, trainingRows, minArray, maxArray);
+            } else if (fileSet != null) {
+                fileSet.updateMinMax(columns, trainingRows, minArray, maxArray);
+            } else {
+                updateMinMax(columns, 0, trainingRows);
+            }
+            for (int i = trainingRows; i < columns.size(); i++) {
+                if (filterID != null && columns.getName(i) == filterID) {
+                    testData.add(columns, i);
+                }
             }
 
+            // group training lines by model
+            trainData = columns.groupByName(0, trainingRows);
+            modelList = trainData.getModels();
+
             if (addMissingDays) {
-                List<RebateData> missingDates = new ArrayList<>();
-                for (Integer m : modelList) {
-                    int minDate = (int) minArray[2];
-                    int maxDate = (int) maxArray[2];
-                    List<RebateData> dateList = separatedData.get(m);
-                    if (m != null) {
-                        for (RebateData data : dateList) {
-                            while (minDate + 24*60*60 <= data.getDate()) {
-                                missingDates.add(new RebateData(data.getName(), data.getYear(), minDate, 0, 0));
-                                minArray[3] = 0;
-                                minArray[4] = 0;
-                                minArray[5] = 0;
-                                minDate += 24*60*60;
-                            }
-                        }
-                        RebateData data = dateList.get(dateList.size()-1);
-                        while (data.getDate() + 24*60*60 <= maxDate) {
-                            data = new RebateData(data.getName(), data.getYear(), data.getDate() + 24*60*60, 0, 0);
-                            missingDates.add(data);
-                        }
-                        dateList.addAll(missingDates);
-                        missingDates.clear();
-                        Collections.sort(dateList, new Comparator<RebateData>() {
-                            public int compare(RebateData d1, RebateData d2) {
-                                return (int) (d1.getDate() - d2.getDate());
-                            }
-                        });
-                    } else {
-                        // should not happen
-                        System.err.println("Model " + m + " defined but no data found");
-                    }
+                addMissingDays();
+            }
 
+            avoidDivisionByZero();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return columns;
+    }
+
+    /**
+     * Adds lines with zero sales for the missing days of each model, from the first to the last date of the training data.
+     */
+    private void addMissingDays() {
+        long minDate = (long) minArray[INDEX_DATE];
+        long maxDate = (long) maxArray[INDEX_DATE];
+        RebateColumns source = trainData;
+
+        // final range of each model, the models are filled independently of each other
+        int maxModel = modelList.isEmpty() ? -1 : modelList.get(modelList.size() - 1);
+        int[] modelStarts = new int[maxModel + 2];
+        for (int m = 0; m <= maxModel; m++) {
+            int start = source.getModelStart(m);
+            int end = source.getModelEnd(m);
+            int lines = (start == end) ? 0 : end - start + countMissingDays(source, start, end, minDate, maxDate);
+            modelStarts[m + 1] = Math.addExact(modelStarts[m], lines);
+        }
+        RebateColumns filled = new RebateColumns(modelStarts[maxModel + 1], options.isOffHeap());
+        filled.setSize(modelStarts[maxModel + 1]);
+
+        // lines of a model are ordered by date, missing days are added in between (each model writes its own range)
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int m : modelList) {
+            int start = source.getModelStart(m);
+            int end = source.getModelEnd(m);
+            int targetEnd = modelStarts[m + 1];
+            tasks.add(() -> {
+                fillMissingDays(source, start, end, filled, targetEnd, minDate, maxDate);
+                return null;
+            });
+        }
+        if (tasks.size() > 1 && options.getThreads() > 1) {
+            ForkJoinPool pool = new ForkJoinPool(Math.min(options.getThreads(), tasks.size()));
+            try {
+                for (Future<Void> future : pool.invokeAll(tasks)) {
+                    future.get();
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Adding missing days was interrupted", e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                pool.shutdown();
             }
-
-            // important otherwise training impossible because of division by zero
-            for (int i = 0; i < minArray.length; i++) {
-                if (minArray[i] == maxArray[i]) {
-                    minArray[i] = 0;
+        } else {
+            for (Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return allDataList;
+
+        if (filled.size() > source.size()) {
+            minArray[INDEX_REBATE] = 0;
+            minArray[INDEX_SALES] = 0;
+        }
+        filled.setModelStarts(modelStarts);
+        trainData = filled;
+    }
+
+    /**
+     * Sets the minimum of features with only one value to 0 (StreamingDataSetIterator uses the same normalization).
+     */
+    void avoidDivisionByZero() {
+        // important otherwise training impossible because of division by zero
+        for (int i = 0; i < minArray.length; i++) {
+            if (minArray[i] == maxArray[i]) {
+                minArray[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * New lines are added to the test data. The separation line is moved so that 80 percent of all lines
+     * are used for training, lines which are now before the separation line move from test to training data.
+     */
+    @Override
+    int appendRebateData(RebateColumns newData) {
+        double[] oldMin = minArray.clone();
+        double[] oldMax = maxArray.clone();
+        int oldSize = allData.size();
+        int oldTestSize = testData.size();
+
+        allData.addAll(newData, null);
+        inputLines += newData.size();
+        int newTrainingRows = Math.max(trainingRows, getTrainingRows(inputLines, allData.size()));
+
+        // move lines before the new separation line to the training data (min and max only use training data)
+        int movedTestData = 0;
+        for (int i = trainingRows; i < Math.min(newTrainingRows, oldSize); i++) {
+            if (filterID != null && allData.getName(i) == filterID) {
+                movedTestData++;
+            }
+        }
+        updateMinMax(allData, trainingRows, newTrainingRows);
+        testData.removeRange(0, Math.min(movedTestData, testData.size()));
+        for (int i = Math.max(newTrainingRows, oldSize); i < allData.size(); i++) {
+            if (filterID != null && allData.getName(i) == filterID) {
+                testData.add(allData, i);
+            }
+        }
+        trainingRows = newTrainingRows;
+
+        // group the training lines by model again, new models are added at the end of the model list
+        trainData = allData.groupByName(0, trainingRows);
+        modelList = trainData.getModels();
+        if (addMissingDays) {
+            addMissingDays();
+        }
+        avoidDivisionByZero();
+
+        // normalized test data has to be created again if min or max values changed
+        if (!Arrays.equals(oldMin, minArray) || !Arrays.equals(oldMax, maxArray) || movedTestData > test.size()) {
+            test = generateTestDataSet(testData);
+        } else {
+            test.subList(0, movedTestData).clear();
+            for (int i = oldTestSize - movedTestData; i < testData.size(); i++) {
+                test.add(createTestData(testData, i));
+            }
+        }
+
+        // start training at the beginning
+        currentIterationElement = 0;
+        currentIterationIndex = 0;
+        currentListIndex = 0;
+        finished = false;
+        needsReset = false;
+        initializeTraining();
+        return newData.size();
     }
 
 
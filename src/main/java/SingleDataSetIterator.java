@@ -1,13 +1,18 @@
 import com.google.common.collect.EvictingQueue;
-import com.opencsv.CSVReader;
+import com.google.common.io.ByteStreams;
 import javafx.util.Pair;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.factory.Nd4j;
 
-import java.io.FileReader;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -16,13 +21,32 @@ import java.util.*;
  */
 public class SingleDataSetIterator extends RebateDataSetIterator{
 
-    // mini-batch-size offsets
-    private LinkedList<Integer> exampleStartOffsets = new LinkedList<>();
+    // start line of each training window in training order, the windows before offsetCursor are done
+    // (no initializers, see SeparatedDataSetIterator: initializeTraining already runs in the super constructor)
+    private int[] exampleStartOffsets;
+    private int offsetCount;
+    private int offsetCursor;
+    private Random shuffleRandom;
+
+    // number of training lines at the beginning of trainData
+    protected int trainSize;
+
+    // reused for each mini-batch, created on first use (no initializer, see SeparatedDataSetIterator)
+    private NDArrayBuffer inputBuffer;
+    private NDArrayBuffer labelBuffer;
+
+    // lines normalized once, mini-batches and test windows read from them (see normalize)
+    private NormalizedSeries normalizedTrainData;
+    private NormalizedSeries normalizedTestData;
 
     public SingleDataSetIterator(String dataFilePath, String delimiter, int inputDays, double splitRatio, String model, boolean addMissingDays, int skipFirstLines, boolean average) {
         super(dataFilePath, delimiter, inputDays, splitRatio, model, addMissingDays, skipFirstLines, average);
     }
 
+    public SingleDataSetIterator(String dataFilePath, String delimiter, int inputDays, double splitRatio, String model, boolean addMissingDays, int skipFirstLines, boolean average, RebateReaderOptions options) {
+        super(dataFilePath, delimiter, inputDays, splitRatio, model, addMissingDays, skipFirstLines, average, options);
+    }
+
     @Override
     void splitData(double splitRatio) {
         // Check if data-size is big enough
@@ -33,59 +57,111 @@ public class SingleDataSetIterator extends RebateDataSetIterator{
 
         // split into train and test data
         int split = (int) Math.round(allData.size() * splitRatio);
-        trainDataList = allData.subList(0, split);
-        test = generateTestDataSet(allData.subList(split - (inputDays-1), allData.size()));
+        trainData = allData; // training lines are the first lines of all data
+        trainSize = split;
+        test = generateTestDataSet(allData, split - (inputDays-1), allData.size());
         System.out.println("Test data set size: " + test.size());
-        System.out.println("Training data set size: " + trainDataList.size());
+        System.out.println("Training data set size: " + trainSize);
     }
 
+    /**
+     * Starts a new epoch. The offsets are only created again if the number of training lines changed,
+     * otherwise the cursor is set back (and the windows are shuffled again, see RebateReaderOptions.setShuffle).
+     */
     @Override
     void initializeTraining () {
-        // initialize the mini-batch-size offsets
-        exampleStartOffsets = new LinkedList<>();
         int window = inputDays + 1;
-        for (int i = 0; i < trainDataList.size() - window; i++) { exampleStartOffsets.add(i); }
+        int count = Math.max(0, trainSize - window);
+        if (exampleStartOffsets == null || count != offsetCount) {
+            if (exampleStartOffsets == null || count > exampleStartOffsets.length) {
+                exampleStartOffsets = new int[count];
+            }
+            for (int i = 0; i < count; i++) {
+                exampleStartOffsets[i] = i;
+            }
+            offsetCount = count;
+        }
+        if (options.isShuffle()) {
+            if (shuffleRandom == null) {
+                shuffleRandom = new Random(options.getShuffleSeed());
+            }
+            // Fisher-Yates shuffle in place
+            for (int i = offsetCount - 1; i > 0; i--) {
+                int j = shuffleRandom.nextInt(i + 1);
+                int tmp = exampleStartOffsets[i];
+                exampleStartOffsets[i] = exampleStartOffsets[j];
+                exampleStartOffsets[j] = tmp;
+            }
+        }
+        offsetCursor = 0;
     }
 
     public List<Pair<INDArray, INDArray>> getTestDataSet() { return test; }
 
     @Override
     public DataSet next(int miniBatchSize) {
-        if (exampleStartOffsets.size() == 0) throw new NoSuchElementException();
-        int actualMiniBatchSize = Math.min(miniBatchSize, exampleStartOffsets.size());
-        INDArray input = Nd4j.create(new int[] {actualMiniBatchSize, INPUT_VECTOR_SIZE, inputDays}, 'f');
-        INDArray label = Nd4j.create(new int[] {actualMiniBatchSize, OUTPUT_VECTOR_SIZE, inputDays}, 'f');
+        if (offsetCursor >= offsetCount) throw new NoSuchElementException();
+        int actualMiniBatchSize = Math.min(miniBatchSize, offsetCount - offsetCursor);
+        createBuffers();
+        // {MINI-BATCH SIZE, INPUTS, TIME SERIES} in 'f' order, copied into the INDArrays at once
+        NDArrayBuffer input = inputBuffer.reset(actualMiniBatchSize, INPUT_VECTOR_SIZE, inputDays);
+        NDArrayBuffer label = labelBuffer.reset(actualMiniBatchSize, OUTPUT_VECTOR_SIZE, inputDays);
+
+        // the lines of a window are next to each other, each line is only normalized once for all windows
+        NormalizedSeries series = normalize(trainData);
 
         for (int index = 0; index < actualMiniBatchSize; index++) {
-            int startIdx = exampleStartOffsets.removeFirst();
+            int startIdx = exampleStartOffsets[offsetCursor++];
             int endIdx = startIdx + inputDays;
-            RebateData curData = trainDataList.get(startIdx);
 
             for (int i = startIdx; i < endIdx; i++) {
                 int c = i - startIdx;
-                input.putScalar(new int[] {index, 0, c}, (curData.getName() - minArray[0]) / (maxArray[0] - minArray[0]));
-                input.putScalar(new int[] {index, 1, c}, (curData.getYear() - minArray[1]) / (maxArray[1] - minArray[1]));
-                input.putScalar(new int[] {index, 2, c}, (curData.getDate() - minArray[2]) / (maxArray[2] - minArray[2]));
-                input.putScalar(new int[] {index, 3, c}, (curData.getRebate() - minArray[3]) / (maxArray[3] - minArray[3]));
-
-                curData = trainDataList.get(i + 1);
+                for (int feature = 0; feature < INPUT_VECTOR_SIZE; feature++) {
+                    input.put(index, feature, c, series.getFeature(i, feature));
+                }
 
-                label.putScalar(new int[] {index, 0, c}, (curData.getSales() - minArray[4]) / (maxArray[4] - minArray[4]));
+                // sales of the next day
+                label.put(index, 0, c, series.getSales(i + 1));
             }
+        }
+        return new DataSet(input.create(), label.create());
+    }
+
+    private void createBuffers() {
+        if (inputBuffer == null) {
+            inputBuffer = new NDArrayBuffer();
+            labelBuffer = new NDArrayBuffer();
+        }
+    }
 
-            if (exampleStartOffsets.size() == 0) break;
+    /**
+     * Returns the normalized lines of the columns, they are only normalized again if lines or min and max values changed.
+     * One series is kept for the training lines and one for the test lines (the same columns in this iterator).
+     */
+    private NormalizedSeries normalize(RebateColumns columns) {
+        if (normalizedTrainData != null && normalizedTrainData.matches(columns, minArray, maxArray)) {
+            return normalizedTrainData;
+        }
+        if (normalizedTestData != null && normalizedTestData.matches(columns, minArray, maxArray)) {
+            return normalizedTestData;
         }
-        return new DataSet(input, label);
+        NormalizedSeries series = new NormalizedSeries(columns, minArray, maxArray);
+        if (columns == trainData) {
+            normalizedTrainData = series;
+        } else {
+            normalizedTestData = series;
+        }
+        return series;
     }
 
 
-    @Override public boolean hasNext() { return exampleStartOffsets.size() > 0; }
+    @Override public boolean hasNext() { return offsetCursor < offsetCount; }
 
     @Override public DataSet next() { return next(MINI_BATCH_SIZE); }
 
     @Override
     public int totalExamples() {
-        return trainDataList.size();
+        return trainSize;
     }
 
     @Override
@@ -98,35 +174,39 @@ public class SingleDataSetIterator extends RebateDataSetIterator{
         return MINI_BATCH_SIZE;
     }
 
-    protected List<Pair<INDArray, INDArray>> generateTestDataSet (List<RebateData> stockDataList) {
+    /**
+     * Creates the test windows of the lines from ... to - 1.
+     */
+    protected List<Pair<INDArray, INDArray>> generateTestDataSet (RebateColumns stockData, int from, int to) {
     	int window = inputDays + 1;
     	List<Pair<INDArray, INDArray>> test = new ArrayList<>();
 
         //EvictingQueue<Double> averages = EvictingQueue.create(inputDays);
 
-        for (int i = 0; i < stockDataList.size() - window; i++) {
-    		INDArray input = Nd4j.create(new int[] {inputDays, INPUT_VECTOR_SIZE}, 'f');
-    		for (int j = i; j < i + inputDays; j++) {
-    			RebateData stock = stockDataList.get(j);
-    			input.putScalar(new int[] {j - i, 0}, (stock.getName() - minArray[0]) / (maxArray[0] - minArray[0]));
-    			input.putScalar(new int[] {j - i, 1}, (stock.getYear() - minArray[1]) / (maxArray[1] - minArray[1]));
-    			input.putScalar(new int[] {j - i, 2}, (stock.getDate() - minArray[2]) / (maxArray[2] - minArray[2]));
-    			input.putScalar(new int[] {j - i, 3}, (stock.getRebate() - minArray[3]) / (maxArray[3] - minArray[3]));
-    		}
-            RebateData stock = stockDataList.get(i + inputDays);
-            INDArray label;
-            label = Nd4j.create(new int[]{OUTPUT_VECTOR_SIZE}, 'f'); // ordering is set as 'f', faster construct
-            label.putScalar(new int[] {0}, stock.getSales());
-
-    		test.add(new Pair<>(input, label));
+        for (int i = from; i < to - window; i++) {
+    		test.add(createTestWindow(stockData, i));
     	}
     	return test;
     }
 
+    /**
+     * Creates the test input of inputDays days starting at line i and the sales of the following day as label.
+     * Both are views of the normalized lines (see NormalizedSeries), nothing is copied.
+     */
+    protected Pair<INDArray, INDArray> createTestWindow(RebateColumns stockData, int i) {
+        NormalizedSeries series = normalize(stockData);
+        return new Pair<>(series.getWindow(i, inputDays), series.getActualSales(i + inputDays));
+    }
+
     @Override
-    List<RebateData> readRebateDataFromFile(String filename, String delimiter, String model, boolean addMissingDays, int skipFirstLines) {
+    RebateColumns readRebateDataFromFile(String filename, String delimiter, String model, boolean addMissingDays, int skipFirstLines) {
 
-        List<RebateData> rebateDataList = new ArrayList<>();
+        // the model catalog (e.g. built for the GUI) knows the number of lines in advance
+        RebateModelCatalog catalog = RebateModelCatalog.getCached(filename);
+        if (catalog != null && catalog.getRows(model) == 0) {
+            System.err.println("Model " + model + " not found in " + filename + "!");
+        }
+        RebateColumns rebateData = (catalog != null) ? createColumns(catalog.getRows(model)) : createColumns();
         try {
             for (int i = 0; i < maxArray.length; i++) { // initialize max and min arrays
                 maxArray[i] = Double.MIN_VALUE;
@@ -134,88 +214,278 @@ public class SingleDataSetIterator extends RebateDataSetIterator{
             }
 
             // String replacer replaces each string with a unique number
-            StringReplacer modelReplacer = new StringReplacer(INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE,
-                new int[] {StringReplacer.TYPE_STRING, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER});
-
-            List<String[]> list = new CSVReader(new FileReader(filename), ';').readAll(); // load all elements in a list
-            RebateData lastData = null;
-            for (String[] arr : list) {
-                if (!arr[INDEX_MODEL].equals(model)) continue;
-
-                String[] replacedData = modelReplacer.replace(arr);   // replace Strings
-                replacedData = modelReplacer.fillNullOrEmpty(replacedData, "0", true); //replace empty number fields
-
-                double[] nums = new double[INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE];
-                for (int i = 0; i < replacedData.length; i++) {
-                    nums[i] = Double.valueOf(replacedData[i]);
-                    if (i == INDEX_DATE) {
-                        nums[i] /= 1000;
-                    }
-                    if (nums[i] > maxArray[i]) maxArray[i] = nums[i];
-                    if (nums[i] < minArray[i]) minArray[i] = nums[i];
-                }
+            // the date column is converted by the date parser like in the other readers (UTC day or timestamp)
+            modelReplacer = new StringReplacer(INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE,
+                new int[] {StringReplacer.TYPE_STRING, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_IGNORE, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER});
 
-                if (lastData != null) {
-                    // if there are two rebates in one day
-                    if (lastData.getName() == Integer.valueOf(replacedData[INDEX_MODEL]) && lastData.getDate() == Long.valueOf(replacedData[INDEX_DATE])/1000) {
-                        lastData.setRebate((lastData.getRebate() + Double.valueOf(replacedData[INDEX_REBATE])) / 2);    // average
-                        lastData.setSales(lastData.getSales() + Integer.valueOf(replacedData[INDEX_SALES]));            // add sales
-                        continue;
-                    }
-                }
+            double[] nums = new double[INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE];
+            long parseStart = System.nanoTime();
 
-                lastData = new RebateData(Integer.valueOf(replacedData[INDEX_MODEL]), Integer.valueOf(replacedData[INDEX_YEAR]), Long.valueOf(replacedData[INDEX_DATE])/1000,
-                    Double.valueOf(replacedData[INDEX_REBATE]), Integer.valueOf(replacedData[INDEX_SALES]));
+            // merges the lines of each day independent of their order, otherwise only following lines are merged
+            RebateAggregator aggregator = options.isAggregate() ? new RebateAggregator() : null;
 
-                rebateDataList.add(lastData);
+            // byte ranges of a gzip file can not be read directly, the whole file is decompressed instead
+            boolean modelIndex = options.isModelIndex();
+            if (modelIndex && ParallelGzipInputStream.isGzip(filename)) {
+                System.out.println("Model index is not used for compressed file " + filename + ".");
+                modelIndex = false;
             }
 
-            if (addMissingDays) {
-                int missedDates = 0;
-                List<RebateData> missingDates = new ArrayList<>();
-                long minDate = (long) minArray[2 - 1];
-                long maxDate = (long) maxArray[2 - 1];
-                final int UNIX_TIMESTAMP_DAY = 24*60*60; // 86400 sec.
-                for (RebateData data : rebateDataList) {
-                    while (minDate + UNIX_TIMESTAMP_DAY <= data.getDate()) {
-                        missingDates.add(new RebateData(data.getName(), data.getYear(), minDate, 0, 0));
-                        minArray[INDEX_SALES] = 0;
-                        minDate += UNIX_TIMESTAMP_DAY;
-                        missedDates++;
+            if (RebateStore.isStore(filename)) {
+                // range scan of the selected model in the segments of the store, ordered by date
+                try (RebateStore store = new RebateStore(new File(filename), false)) {
+                    rebateData.ensureCapacity(store.getLines(model)); // the store knows the lines of the model from its segments
+                    store.scan(model, Long.MIN_VALUE, Long.MAX_VALUE, (name, year, date, rebate, sales) -> {
+                        nums[INDEX_MODEL] = modelReplacer.encodeString(INDEX_MODEL, name);
+                        nums[INDEX_YEAR] = year;
+                        nums[INDEX_DATE] = date;
+                        nums[INDEX_REBATE] = rebate;
+                        nums[INDEX_SALES] = sales;
+                        addRebateData(rebateData, aggregator, nums);
+                    });
+                    if (store.getLines(model) == 0) {
+                        System.err.println("Model " + model + " not found in store " + filename + "!");
                     }
-                    minDate = data.getDate() + UNIX_TIMESTAMP_DAY;
+                    logParseThroughput("Rebate store (" + store.getSegments() + " segments)",
+                        store.getLines(model) * RebateStore.LINE_BYTES, System.nanoTime() - parseStart);
+                }
+            } else if (RebateFileSet.isFileSet(filename) || options.isSnapshotCache() || options.getParser() == RebateReaderOptions.PARSER_PARALLEL) {
+                RebateColumns columns;
+                int filter = -1;
+                if (RebateFileSet.isFileSet(filename)) {
+                    // parse the files of a directory or pattern in parallel and merge them by date
+                    RebateFileSet fileSet = createFileSet();
+                    fileSet.setModelFilter(model);
+                    columns = fileSet.parse(filename, modelReplacer);
+                    logParseThroughput("File set (" + fileSet.getFiles() + " files)", fileSet.getParsedBytes(), System.nanoTime() - parseStart);
+                } else if (options.isSnapshotCache()) {
+                    // parsed columns of the whole file, only parsed again if the file changed
+                    RebateSnapshot snapshot = RebateSnapshot.loadOrCreate(filename, delimiter, skipFirstLines, options.getThreads(), options.isOffHeap());
+                    snapshot.restoreReplacer(modelReplacer, INDEX_MODEL);
+                    filter = findModel(model);
+                    columns = (filter >= 0) ? snapshot.getColumns() : createColumns();
+                } else {
+                    // parse chunks of the file on all cores
+                    ParallelRebateParser parser = new ParallelRebateParser(delimiter, skipFirstLines, options.getThreads());
+                    parser.setModelFilter(model);
+                    columns = parser.parse(filename, modelReplacer);
+                    logParseThroughput("Parallel parser (" + options.getThreads() + " threads)", parser.getParsedBytes(), System.nanoTime() - parseStart);
+                }
+
+                // merge same-day rebates in file order
+                for (int i = 0; i < columns.size(); i++) {
+                    if (filter >= 0 && columns.getName(i) != filter) continue;
+                    nums[INDEX_MODEL] = columns.getName(i);
+                    nums[INDEX_YEAR] = columns.getYear(i);
+                    nums[INDEX_DATE] = columns.getDate(i);
+                    nums[INDEX_REBATE] = columns.getRebate(i);
+                    nums[INDEX_SALES] = columns.getSales(i);
+                    addRebateData(rebateData, aggregator, nums);
+                }
+            } else if (options.getParser() == RebateReaderOptions.PARSER_MAPPED) {
+                // scan the mapped file byte by byte, other models are skipped without decoding
+                MappedRebateParser parser = new MappedRebateParser(delimiter, skipFirstLines);
+                parser.setModelFilter(model);
+                MappedRebateParser.RowHandler handler = (name, year, date, rebate, sales) -> {
+                    nums[INDEX_MODEL] = modelReplacer.encodeString(INDEX_MODEL, name);
+                    nums[INDEX_YEAR] = year;
+                    nums[INDEX_DATE] = date;
+                    nums[INDEX_REBATE] = rebate;
+                    nums[INDEX_SALES] = sales;
+                    addRebateData(rebateData, aggregator, nums);
+                };
+                if (modelIndex) {
+                    // only the ranges of the selected model are mapped
+                    RebateModelIndex index = RebateModelIndex.loadOrCreate(filename, delimiter, skipFirstLines);
+                    parser.parse(filename, index.getRanges(model), handler);
+                } else {
+                    parser.parse(filename, handler);
                 }
-                RebateData data = rebateDataList.get(rebateDataList.size()-1);
-                while (data.getDate() + UNIX_TIMESTAMP_DAY <= maxDate) {
-                    data = new RebateData(data.getName(), data.getYear(), data.getDate() + UNIX_TIMESTAMP_DAY, 0, 0);
-                    missingDates.add(data);
-                    missedDates++;
+                logParseThroughput("Memory-mapped parser", parser.getParsedBytes(), System.nanoTime() - parseStart);
+            } else if (modelIndex) {
+                // read only the ranges of the selected model line by line, lines of other models in between are filtered
+                RebateModelIndex index = RebateModelIndex.loadOrCreate(filename, delimiter, skipFirstLines);
+                long[] ranges = index.getRanges(model);
+                try (RandomAccessFile file = new RandomAccessFile(filename, "r"); FileChannel channel = file.getChannel()) {
+                    for (int r = 0; r < ranges.length; r += 2) {
+                        channel.position(ranges[r]);
+                        // the reader is not closed, it would close the channel
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                            ByteStreams.limit(Channels.newInputStream(channel), ranges[r + 1] - ranges[r])));
+                        readLines(reader, delimiter, model, rebateData, aggregator, nums, ranges[r], 0);
+                    }
                 }
-                // add and sort
-                rebateDataList.addAll(missingDates);
-                missingDates.clear();
-                Collections.sort(rebateDataList, new Comparator<RebateData>() {
-                    public int compare(RebateData d1, RebateData d2) {
-                        return (int) (d1.getDate() - d2.getDate());
+                logParseThroughput("Line reader (model index)", index.getBytes(model), System.nanoTime() - parseStart);
+            } else {
+                // stream the file line by line, only rows of the selected model are kept in memory
+                // gzip files are decompressed ahead of the reader
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        ParallelGzipInputStream.open(filename, options.getThreads())))) {
+                    //skip first lines
+                    for (int i = 0; i < skipFirstLines; i++) {
+                        reader.readLine();
                     }
-                });
+                    readLines(reader, delimiter, model, rebateData, aggregator, nums, 0, skipFirstLines);
+                }
+                logParseThroughput("Line reader", new File(filename).length(), System.nanoTime() - parseStart);
+            }
 
-                System.out.println("Added " + missedDates + " missed dates!");
+            if (aggregator != null) {
+                // one line per year and day ordered by date, min and max use the aggregated values
+                aggregator.writeTo(rebateData);
+                updateMinMax(rebateData, 0, rebateData.size());
+                System.out.println("Aggregated " + aggregator.getLines() + " lines to " + aggregator.size() + " days.");
+            }
 
+            if (addMissingDays && rebateData.size() > 0) {
+                addMissingDays(rebateData, 0, (long) minArray[INDEX_DATE], (long) maxArray[INDEX_DATE]);
             }
 
         } catch (IOException e) {
             e.printStackTrace();
         }
 
+        avoidDivisionByZero();
+
+        return rebateData;
+    }
+
+    /**
+     * Reads the lines of the reader and adds the lines of the model to the rebate data.
+     * @param rangeStart the byte position the reader starts at, only used for error messages
+     * @param lineNumber the number of lines before the first line of the reader
+     */
+    private void readLines(BufferedReader reader, String delimiter, String model, RebateColumns rebateData, RebateAggregator aggregator,
+                           double[] nums, long rangeStart, int lineNumber) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            String[] arr = line.split(delimiter, -1); //limit = -1 so that it does not leave out empty elements
+            if (arr.length != INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE) {
+                String position = (rangeStart > 0) ? lineNumber + " after byte " + rangeStart : String.valueOf(lineNumber);
+                System.err.println("Wrong number of columns in line " + position + ": " + line);
+                continue;
+            }
+            if (!arr[INDEX_MODEL].equals(model)) continue;
+
+            // replace strings and parse each field only once, empty number fields are 0
+            modelReplacer.encode(arr, nums);
+            nums[INDEX_DATE] = StringReplacer.getDateParser().parseTimestamp(arr[INDEX_DATE]);
+            addRebateData(rebateData, aggregator, nums);
+        }
+    }
+
+    private void avoidDivisionByZero() {
         // important otherwise training impossible because of division by zero
         for (int i = 0; i < minArray.length; i++) {
             if (minArray[i] == maxArray[i]) {
                 maxArray[i] = 0;    // also possible minArray[i] = 0
             }
         }
+    }
+
+    @Override
+    int appendRebateData(RebateColumns newData) {
+        int filter = findModel(model);
+        int oldSize = allData.size();
+
+        double[] nums = new double[INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE];
+        for (int i = 0; i < newData.size(); i++) {
+            if (newData.getName(i) != filter) continue;
+            nums[INDEX_MODEL] = newData.getName(i);
+            nums[INDEX_YEAR] = newData.getYear(i);
+            nums[INDEX_DATE] = newData.getDate(i);
+            nums[INDEX_REBATE] = newData.getRebate(i);
+            nums[INDEX_SALES] = newData.getSales(i);
+            addRebateData(allData, nums);
+        }
+        if (addMissingDays && allData.size() > oldSize) {
+            // the day after the last known line is the first day which has to exist
+            long minDate = (oldSize > 0) ? allData.getDate(oldSize - 1) + UNIX_TIMESTAMP_DAY : allData.getDate(0);
+            addMissingDays(allData, oldSize, minDate, allData.getDate(allData.size() - 1));
+        }
+        avoidDivisionByZero();
+
+        // the last line may have changed in place (see addRebateData), the lines are normalized again
+        normalizedTrainData = null;
+        normalizedTestData = null;
+
+        int added = allData.size() - oldSize;
+        if (added > 0) {
+            extendData();
+        }
+        initializeTraining();
+        return added;
+    }
+
+    /**
+     * Adds lines with zero sales for missing days.
+     * @param data the lines ordered by date
+     * @param from the first line to be checked, lines before are not changed
+     * @param minDate the first day which has to exist
+     * @param maxDate lines are added after the last line until this day
+     */
+    private void addMissingDays(RebateColumns data, int from, long minDate, long maxDate) {
+        // lines are already ordered by date, they are moved to their final position in one pass
+        // from the back and the missing days are written in between
+        int to = data.size();
+        int missedDates = countMissingDays(data, from, to, minDate, maxDate);
+        data.setSize(to + missedDates);
+        fillMissingDays(data, from, to, data, to + missedDates, minDate, maxDate);
+
+        if (missedDates > 0) {
+            minArray[INDEX_REBATE] = 0;
+            minArray[INDEX_SALES] = 0;
+        }
+        System.out.println("Added " + missedDates + " missed dates!");
+    }
+
+    /**
+     * Moves the split to keep the split ratio and creates the test windows again.
+     * Test windows are views of the normalized lines, so creating all of them again is cheap.
+     */
+    void extendData() {
+        int split = (int) Math.round(allData.size() * splitRatio);
+        trainSize = split;
+        test = generateTestDataSet(allData, split - (inputDays-1), allData.size());
+        System.out.println("Test data set size: " + test.size());
+        System.out.println("Training data set size: " + trainSize);
+    }
+
+    /**
+     * Adds the parsed line to the aggregator, or to the columns if there is no aggregator (see addRebateData).
+     */
+    private void addRebateData(RebateColumns rebateData, RebateAggregator aggregator, double[] nums) {
+        if (aggregator != null) {
+            aggregator.add((int) nums[INDEX_MODEL], (int) nums[INDEX_YEAR], (long) nums[INDEX_DATE], nums[INDEX_REBATE], (int) nums[INDEX_SALES]);
+        } else {
+            addRebateData(rebateData, nums);
+        }
+    }
+
+    /**
+     * Updates min and max values and adds the parsed line to the columns.
+     * If the last line has the same model and date both rebates are merged.
+     * @param rebateData the columns of all read data
+     * @param nums the values of the line, indexed by INDEX_MODEL ... INDEX_SALES
+     */
+    private void addRebateData(RebateColumns rebateData, double[] nums) {
+        for (int i = 0; i < nums.length; i++) {
+            if (nums[i] > maxArray[i]) maxArray[i] = nums[i];
+            if (nums[i] < minArray[i]) minArray[i] = nums[i];
+        }
+        int name = (int) nums[INDEX_MODEL];
+        long date = (long) nums[INDEX_DATE];
+
+        int last = rebateData.size() - 1;
+        // if there are two rebates in one day
+        if (last >= 0 && rebateData.getName(last) == name && rebateData.getDate(last) == date) {
+            rebateData.setRebate(last, (rebateData.getRebate(last) + nums[INDEX_REBATE]) / 2);    // average
+            rebateData.setSales(last, rebateData.getSales(last) + (int) nums[INDEX_SALES]);       // add sales
+            return;
+        }
 
-        return rebateDataList;
+        rebateData.add(name, (int) nums[INDEX_YEAR], date, nums[INDEX_REBATE], (int) nums[INDEX_SALES]);
     }
 
     @Override
@@ -0,0 +1,429 @@
+import org.nd4j.linalg.dataset.DataSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This DataSetIterator trains all models on the network like SeparatedDataSetIterator, without keeping the
+ * training data in memory. The input file is parsed once and the training lines are written to a temporary
+ * segment file grouped by model (see RebateSegmentSpool). While training, a read-ahead thread reads the segments
+ * of one model after the other and builds the mini-batches into a bounded queue, missing days are added on the fly.
+ * Memory use depends on the mini-batch size and the number of prefetched batches (see RebateReaderOptions),
+ * not on the size of the input file. Only the test lines of the selected model are kept in memory.
+ * The files of a directory or glob pattern are merged by date while they are read (see RebateFileSet.stream).
+ * If lines are aggregated (see RebateReaderOptions.setAggregate) the days are collected in memory and written to
+ * the segment file after reading, the memory use then depends on the number of days of all models.
+ *
+ * @author Leo Knoll
+ */
+public class StreamingDataSetIterator extends SeparatedDataSetIterator {
+
+    private static final long SPOOL_MEMORY = 16L * 1024 * 1024; // lines collected before they are written as segments
+    private static final int READ_LINES = 4096;                 // lines read from a segment at once
+
+    // no field initializers: the super constructor already fills these fields (in readRebateDataFromFile
+    // and initializeTraining) and initializers would only run afterwards and overwrite them
+    private RebateSegmentSpool spool;
+    private List<Integer> models;
+    private int trainingLines;
+    private long minDate;
+    private long maxDate;
+
+    // read-ahead of the current epoch, null until the first batch is needed
+    private MiniBatchQueue queue;
+
+    public StreamingDataSetIterator(String dataFilePath, String delimiter, double splitRatio, String model, boolean addMissingDays, int skipFirstLines, boolean average) {
+        super(dataFilePath, delimiter, splitRatio, model, addMissingDays, skipFirstLines, average);
+    }
+
+    public StreamingDataSetIterator(String dataFilePath, String delimiter, double splitRatio, String model, boolean addMissingDays, int skipFirstLines, boolean average, RebateReaderOptions options) {
+        super(dataFilePath, delimiter, splitRatio, model, addMissingDays, skipFirstLines, average, options);
+    }
+
+    /**
+     * Parses the input file into the segment file, min and max values are computed from the segments.
+     * @return the last line of the input (needed for the model metadata), the other lines stay on disk
+     */
+    @Override
+    RebateColumns readRebateDataFromFile(String filename, String delimiter, String model, boolean addMissingDays, int skipFirstLines) {
+        RebateColumns lastLine = createColumns(1);
+        models = new ArrayList<>();
+        trainingLines = 0;
+        try {
+            for (int i = 0; i < maxArray.length; i++) { // initialize max and min arrays
+                maxArray[i] = Double.MIN_VALUE;
+                minArray[i] = Double.MAX_VALUE;
+            }
+
+            // String replacer replaces each string with a unique number
+            modelReplacer = new StringReplacer(INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE,
+                new int[] {StringReplacer.TYPE_STRING, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER, StringReplacer.TYPE_NUMBER});
+
+            // write all lines to the segment file, the lines of each model are collected in small buffers
+            long parseStart = System.nanoTime();
+            long parsedBytes;
+            long inputLines; // lines of the input including skipped first lines and lines with errors
+            spool = new RebateSegmentSpool(options.getSortDirectory(), SPOOL_MEMORY);
+            MappedRebateParser parser = new MappedRebateParser(delimiter, skipFirstLines);
+            parser.setDecompressionThreads(options.getThreads());
+            double[] last = new double[INPUT_VECTOR_SIZE + OUTPUT_VECTOR_SIZE];
+            // only the aggregated days are kept in memory, they are written to the segments after reading
+            RebateAggregator aggregator = options.isAggregate() ? new RebateAggregator() : null;
+            MappedRebateParser.RowHandler handler = (name, year, date, rebate, sales) -> {
+                int id = modelReplacer.encodeString(INDEX_MODEL, name);
+                if (aggregator != null) {
+                    aggregator.add(id, year, date, rebate, sales);
+                    return;
+                }
+                try {
+                    spool.add(id, year, date, rebate, sales);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+                last[INDEX_MODEL] = id;
+                last[INDEX_YEAR] = year;
+                last[INDEX_DATE] = date;
+                last[INDEX_REBATE] = rebate;
+                last[INDEX_SALES] = sales;
+            };
+            if (RebateFileSet.isFileSet(filename)) {
+                // files are merged by date while they are read
+                RebateFileSet fileSet = createFileSet();
+                fileSet.stream(filename, handler);
+                parsedBytes = fileSet.getParsedBytes();
+                inputLines = fileSet.getParsedLines();
+            } else {
+                parser.parse(filename, handler);
+                parsedBytes = parser.getParsedBytes();
+                inputLines = parser.getParsedLines();
+            }
+            if (aggregator != null) {
+                // one line per model, year and day ordered by date, the separation line is based on the aggregated lines
+                RebateColumns aggregated = new RebateColumns(aggregator.size(), options.isOffHeap());
+                aggregator.writeTo(aggregated);
+                for (int i = 0; i < aggregated.size(); i++) {
+                    spool.add(aggregated.getName(i), aggregated.getYear(i), aggregated.getDate(i), aggregated.getRebate(i), aggregated.getSales(i));
+                }
+                if (aggregated.size() > 0) {
+                    int i = aggregated.size() - 1;
+                    last[INDEX_MODEL] = aggregated.getName(i);
+                    last[INDEX_YEAR] = aggregated.getYear(i);
+                    last[INDEX_DATE] = aggregated.getDate(i);
+                    last[INDEX_REBATE] = aggregated.getRebate(i);
+                    last[INDEX_SALES] = aggregated.getSales(i);
+                }
+                inputLines = aggregated.size() + skipFirstLines;
+                System.out.println("Aggregated " + aggregator.getLines() + " lines to " + aggregated.size() + " days.");
+            }
+            spool.flush();
+            logParseThroughput("Segment spool", parsedBytes, System.nanoTime() - parseStart);
+            System.out.println("Wrote " + spool.getLines() + " lines to segments (" + spool.getSize() / (1024 * 1024) + " MB).");
+            if (spool.getLines() > 0) {
+                lastLine.add((int) last[INDEX_MODEL], (int) last[INDEX_YEAR], (long) last[INDEX_DATE], last[INDEX_REBATE], (int) last[INDEX_SALES]);
+            }
+
+            if (model != null) {
+                filterID = findModel(model);
+                System.out.println("Filter for Modell " + model + " represented by " + filterID + ".");
+            }
+
+            // lines before the separation line are used for training, min and max only use training data
+            trainingLines = getTrainingRows(inputLines, spool.getLines());
+            spool.updateMinMax(trainingLines, minArray, maxArray);
+            for (int m : spool.getModels()) {
+                if (spool.getSegments(m).get(0).getFirstLine() < trainingLines) {
+                    models.add(m);
+                }
+            }
+            if (filterID != null) {
+                readTestData(filterID);
+            }
+
+            minDate = (long) minArray[INDEX_DATE];
+            maxDate = (long) maxArray[INDEX_DATE];
+            if (addMissingDays && (minArray[INDEX_REBATE] > 0 || minArray[INDEX_SALES] > 0) && hasMissingDays()) {
+                // added days have zero rebate and sales
+                minArray[INDEX_REBATE] = 0;
+                minArray[INDEX_SALES] = 0;
+            }
+
+            avoidDivisionByZero();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return lastLine;
+    }
+
+    /**
+     * Reads the test lines (lines after the separation line) of a model.
+     */
+    private void readTestData(int filter) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_LINES * RebateSegmentSpool.LINE_BYTES);
+        for (RebateSegmentSpool.Segment segment : spool.getSegments(filter)) {
+            if (segment.getLastLine() < trainingLines) {
+                continue;
+            }
+            for (int first = 0; first < segment.getLines(); ) {
+                buffer.clear();
+                int count = spool.read(segment, first, buffer);
+                buffer.flip();
+                for (int i = 0; i < count; i++) {
+                    int year = buffer.getInt();
+                    long date = buffer.getLong();
+                    double rebate = buffer.getDouble();
+                    int sales = buffer.getInt();
+                    if (buffer.getInt() >= trainingLines) {
+                        testData.add(filter, year, date, rebate, sales);
+                    }
+                }
+                first += count;
+            }
+        }
+    }
+
+    /**
+     * Returns true if a model misses a day between the first and the last date of the training lines.
+     */
+    private boolean hasMissingDays() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_LINES * RebateSegmentSpool.LINE_BYTES);
+        for (int m : models) {
+            long previous = minDate;
+            long date = minDate;
+            for (RebateSegmentSpool.Segment segment : spool.getSegments(m)) {
+                if (segment.getFirstLine() >= trainingLines) {
+                    break;
+                }
+                for (int first = 0; first < segment.getLines(); ) {
+                    buffer.clear();
+                    int count = spool.read(segment, first, buffer);
+                    buffer.flip();
+                    for (int i = 0; i < count; i++) {
+                        buffer.getInt();
+                        long lineDate = buffer.getLong();
+                        buffer.getDouble();
+                        buffer.getInt();
+                        if (buffer.getInt() >= trainingLines) {
+                            break;
+                        }
+                        if (lineDate - previous >= UNIX_TIMESTAMP_DAY) {
+                            return true;
+                        }
+                        previous = lineDate + UNIX_TIMESTAMP_DAY;
+                        date = lineDate;
+                    }
+                    first += count;
+                }
+            }
+            if (maxDate - date >= UNIX_TIMESTAMP_DAY) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Starts a new epoch with the first model, the read-ahead starts when the first batch is needed.
+     */
+    @Override
+    void initializeTraining() {
+        stopProducer();
+        finished = false;
+        needsReset = false;
+    }
+
+    /**
+     * Returns the batches of the epoch, starts the read-ahead thread which reads the segments if needed.
+     */
+    private MiniBatchQueue queue() {
+        if (queue == null) {
+            if (spool == null) {
+                throw new IllegalStateException("StreamingDataSetIterator was closed, read in the input file again!");
+            }
+            queue = new MiniBatchQueue(options.getPrefetchBatches(), "Streaming read-ahead", this::produceEpoch);
+        }
+        return queue;
+    }
+
+    private void stopProducer() {
+        if (queue != null) {
+            queue.stop();
+            queue = null;
+        }
+    }
+
+    /**
+     * Builds the mini-batches of all models in model order, missing days are added between the lines of a model.
+     */
+    private void produceEpoch(MiniBatchQueue target) throws IOException, InterruptedException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_LINES * RebateSegmentSpool.LINE_BYTES);
+        BatchBuilder batch = new BatchBuilder(target);
+        for (int m : models) {
+            long previous = minDate;
+            int year = 0;
+            long date = minDate;
+            boolean hasLines = false;
+            segments:
+            for (RebateSegmentSpool.Segment segment : spool.getSegments(m)) {
+                if (segment.getFirstLine() >= trainingLines) {
+                    break;
+                }
+                for (int first = 0; first < segment.getLines(); ) {
+                    buffer.clear();
+                    int count = spool.read(segment, first, buffer);
+                    buffer.flip();
+                    for (int i = 0; i < count; i++) {
+                        int lineYear = buffer.getInt();
+                        long lineDate = buffer.getLong();
+                        double rebate = buffer.getDouble();
+                        int sales = buffer.getInt();
+                        if (buffer.getInt() >= trainingLines) {
+                            break segments;
+                        }
+                        year = lineYear;
+                        date = lineDate;
+                        if (addMissingDays) {
+                            // days between the previous line (or minDate) and this line
+                            for (long day = previous; date - day >= UNIX_TIMESTAMP_DAY; day += UNIX_TIMESTAMP_DAY) {
+                                batch.add(m, year, day, 0, 0);
+                            }
+                            previous = date + UNIX_TIMESTAMP_DAY;
+                        }
+                        batch.add(m, year, date, rebate, sales);
+                        hasLines = true;
+                    }
+                    first += count;
+                }
+            }
+            if (addMissingDays && hasLines) {
+                // days after the last line
+                for (long day = date + UNIX_TIMESTAMP_DAY; day <= maxDate; day += UNIX_TIMESTAMP_DAY) {
+                    batch.add(m, year, day, 0, 0);
+                }
+            }
+            batch.endModel();
+        }
+    }
+
+    @Override
+    public DataSet next(int miniBatchSize) {
+        MiniBatchQueue.Batch batch = queue().next();
+        needsReset = batch.lastOfModel;
+        return batch.data;
+    }
+
+    @Override public DataSet next() { return next(MINI_BATCH_SIZE); }
+
+    @Override
+    public boolean hasNext() {
+        finished = !queue().hasNext();
+        return !finished;
+    }
+
+    /**
+     * Continues with the next model after a model boundary (see needsReset), otherwise starts a new epoch.
+     */
+    @Override
+    public void reset() {
+        if (needsReset && queue().hasNext()) {
+            needsReset = false;
+            return;
+        }
+        initializeTraining();
+    }
+
+    @Override
+    void restartEpoch() {
+        initializeTraining();
+    }
+
+    /**
+     * Returns the number of training lines without added missing days.
+     */
+    @Override public int totalExamples() { return trainingLines; }
+
+    @Override public int batch() { return MINI_BATCH_SIZE; }
+
+    @Override public boolean asyncSupported() { return false; }
+
+    /**
+     * Appending is not supported, the segments only contain the lines of the input file.
+     */
+    @Override
+    int appendRebateData(RebateColumns newData) {
+        System.err.println("StreamingDataSetIterator can not append data, read in the input file again!");
+        return 0;
+    }
+
+    /**
+     * Stops the read-ahead and deletes the segment file, the test data stays available.
+     */
+    @Override
+    public void close() {
+        stopProducer();
+        try {
+            if (spool != null) {
+                spool.close();
+                spool = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Collects the lines of a mini-batch and puts the finished batches into the queue.
+     */
+    private class BatchBuilder {
+        private final MiniBatchQueue target;
+        private final int[] names = new int[MINI_BATCH_SIZE];
+        private final int[] years = new int[MINI_BATCH_SIZE];
+        private final long[] dates = new long[MINI_BATCH_SIZE];
+        private final double[] rebates = new double[MINI_BATCH_SIZE];
+        private final int[] sales = new int[MINI_BATCH_SIZE];
+        private int size = 0;
+        private final NDArrayBuffer input = new NDArrayBuffer();
+        private final NDArrayBuffer label = new NDArrayBuffer();
+
+        private BatchBuilder(MiniBatchQueue target) {
+            this.target = target;
+        }
+
+        private void add(int name, int year, long date, double rebate, int sale) throws InterruptedException {
+            if (size == MINI_BATCH_SIZE) {
+                put(false);
+            }
+            names[size] = name;
+            years[size] = year;
+            dates[size] = date;
+            rebates[size] = rebate;
+            sales[size] = sale;
+            size++;
+        }
+
+        /**
+         * Puts the last batch of a model into the queue.
+         */
+        private void endModel() throws InterruptedException {
+            if (size > 0) {
+                put(true);
+            }
+        }
+
+        private void put(boolean lastOfModel) throws InterruptedException {
+            // {MINI-BATCH SIZE, INPUTS, TIME SERIES} in 'f' order, copied into the INDArrays at once
+            input.reset(size, INPUT_VECTOR_SIZE, 1);
+            label.reset(size, OUTPUT_VECTOR_SIZE, 1);
+            for (int i = 0; i < size; i++) {
+                input.put(i, 0, 0, (names[i] - minArray[0]) / (maxArray[0] - minArray[0]));
+                input.put(i, 1, 0, (years[i] - minArray[1]) / (maxArray[1] - minArray[1]));
+                input.put(i, 2, 0, (dates[i] - minArray[2]) / (maxArray[2] - minArray[2]));
+                input.put(i, 3, 0, (rebates[i] - minArray[3]) / (maxArray[3] - minArray[3]));
+                label.put(i, 0, 0, (sales[i] - minArray[4]) / (maxArray[4] - minArray[4]));
+            }
+            target.put(new DataSet(input.create(), label.create()), lastOfModel);
+            size = 0;
+        }
+    }
+}
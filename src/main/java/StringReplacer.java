@@ -1,15 +1,14 @@
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Class to replace strings and dates with unique numbers (same strings and dates get the same number).
  * Also provides methods to convert them back.
  * Default Date format is yyyy-MM-dd and can be changed by using setDateFormat.
  *
+ * Besides the String based methods (replace, convertBack) there is a typed API (encode...) which writes
+ * dictionary numbers, epoch days and numbers directly into primitive values without creating new strings.
+ *
  * @author Leo Knoll
  */
 public class StringReplacer {
@@ -25,10 +24,13 @@ public class StringReplacer {
     //Replacers for each column
     private ItemReplacer[] replacers;
 
-    //Date format parser
-    private static final SimpleDateFormat dateParser = new SimpleDateFormat("yyyy-MM-dd");
+    //Date format parser (thread-safe, caches parsed dates)
+    private static volatile DateParser dateParser = new DateParser(DateParser.DEFAULT_PATTERN);
     public static void setDateFormat(String pattern) {
-        new SimpleDateFormat(pattern);
+        dateParser = new DateParser(pattern);
+    }
+    public static DateParser getDateParser() {
+        return dateParser;
     }
 
 
@@ -61,16 +63,95 @@ public class StringReplacer {
             if (types[i] == TYPE_STRING) {
                 replacementArray[i] = replacers[i].replace(replacementArray[i]);
             } else if (types[i] == TYPE_DATE) {
-                try {
-                    replacementArray[i] = String.valueOf(dateParser.parse(replacementArray[i]).getTime());
-                } catch (ParseException e) {
-                    throw new RuntimeException("Date format is not " + dateParser.toPattern());
-                }
+                replacementArray[i] = String.valueOf(dateParser.parseMillis(replacementArray[i]));
             }
         }
         return replacementArray;
     }
 
+    /**
+     * Encodes all columns of a line directly into a primitive buffer, no strings are created.
+     * String columns are encoded as their number, dates as days since 1970-01-01 and numbers as their value
+     * (null or empty numbers are 0). Ignored columns are not written.
+     * @param strings The array of strings to be processed.
+     * @param target The buffer, needs at least one element per column.
+     */
+    public void encode(String[] strings, double[] target) {
+        for (int i = 0; i < strings.length; i++) {
+            if (types[i] == TYPE_STRING) {
+                target[i] = replacers[i].getNumber(strings[i]);
+            } else if (types[i] == TYPE_DATE) {
+                target[i] = encodeDate(strings[i]);
+            } else if (types[i] == TYPE_NUMBER) {
+                target[i] = encodeNumber(strings[i]);
+            }
+        }
+    }
+
+    /**
+     * Encodes a string of a string column as its number.
+     * @param column The index of the column, has to be of type TYPE_STRING.
+     * @param string The string to be replaced.
+     * @return The associated number.
+     */
+    public int encodeString(int column, String string) {
+        return replacers[column].getNumber(string);
+    }
+
+    /**
+     * Returns the number of a string of a string column without adding it (unlike encodeString).
+     * If there is no exact match, surrounding spaces are ignored on both sides.
+     * @param column The index of the column, has to be of type TYPE_STRING.
+     * @param string The string to be looked up.
+     * @return The associated number or -1 if the string is not known.
+     */
+    public int lookupString(int column, String string) {
+        return replacers[column].lookup(string);
+    }
+
+    /**
+     * Encodes a number, null or empty values are 0.
+     * @param string The number as string.
+     * @return The number.
+     */
+    public double encodeNumber(String string) {
+        if (string == null) {
+            return 0;
+        }
+        string = string.trim();
+        return string.isEmpty() ? 0 : Double.parseDouble(string);
+    }
+
+    /**
+     * Encodes a date as number of days since 1970-01-01.
+     * @param string The date in the current date format.
+     * @return The epoch day.
+     */
+    public long encodeDate(String string) {
+        return dateParser.parseEpochDay(string);
+    }
+
+    /**
+     * Returns all strings of a string column ordered by their number.
+     * @param column The index of the column, has to be of type TYPE_STRING.
+     * @return The strings, the first string has the number 2 (0 and 1 are reserved).
+     */
+    public List<String> getStrings(int column) {
+        return replacers[column].getStrings();
+    }
+
+    /**
+     * Adds strings to a string column, e.g. to restore the numbers of a previous run.
+     * New strings get the next free numbers in the order of the list.
+     * @param column The index of the column, has to be of type TYPE_STRING.
+     * @param strings The strings to be added.
+     */
+    public void addStrings(int column, List<String> strings) {
+        for (String string : strings) {
+            replacers[column].getNumber(string);
+        }
+    }
+
     /**
      * Replaces all null references and empty values buy a replacement string.
      * @param strings The array of strings to be processed.
@@ -102,8 +183,7 @@ public class StringReplacer {
             if (types[i] == TYPE_STRING) {
                 replacementArray[i] = replacers[i].getString(replacementArray[i]);
             } else if (types[i] == TYPE_DATE) {
-                Date date = new Date(Long.valueOf(replacementArray[i]));
-                replacementArray[i] = dateParser.format(date);
+                replacementArray[i] = dateParser.format(Long.valueOf(replacementArray[i]));
             }
         }
         return replacementArray;
@@ -111,18 +191,27 @@ public class StringReplacer {
 
     /**
      * Class which handles replacements of one column.
+     * Strings are stored in an open addressing hash table with primitive numbers, so lookups do not box.
      */
     class ItemReplacer {
         private int n = 2; //continuous numerating, starting at 2 because of reserved boolean logic
-        private BiMap<Integer, String> replacementMap = HashBiMap.create();
+
+        // hash table string -> number (keys[i] == null means empty slot)
+        private String[] keys = new String[16];
+        private int[] numbers = new int[16];
+
+        // number -> string
+        private List<String> strings = new ArrayList<>();
 
         /**
          * Initializes ItemReplacer object.
          */
         ItemReplacer() {
             //Add default boolean replacement
-            replacementMap.put(0, "0"); //Add replacement for 0 is "0"
-            replacementMap.put(1, "1"); //Add replacement for 1 is "1"
+            put("0", 0); //Add replacement for 0 is "0"
+            put("1", 1); //Add replacement for 1 is "1"
+            strings.add("0");
+            strings.add("1");
         }
 
         /**
@@ -131,12 +220,82 @@ public class StringReplacer {
          * @return The associated number.
          */
         private String replace(String string) {
-            if (!replacementMap.containsValue(string)) {
-                replacementMap.put(n, string);
-                return String.valueOf(n++); //increment and return old value
-            } else {
-                return String.valueOf(replacementMap.inverse().get(string));
+            return String.valueOf(getNumber(string));
+        }
+
+        /**
+         * Assigns to each string a unique number (same strings get the same number).
+         * @param string The string to be replaced by a number.
+         * @return The associated number.
+         */
+        private int getNumber(String string) {
+            int slot = slot(string);
+            if (keys[slot] != null) {
+                return numbers[slot];
             }
+            strings.add(string);
+            put(string, n);
+            return n++; //increment and return old value
+        }
+
+        /**
+         * Returns the number of a string without assigning a new one.
+         * @param string The string to be looked up.
+         * @return The associated number or -1.
+         */
+        private int lookup(String string) {
+            int slot = slot(string);
+            if (keys[slot] != null) {
+                return numbers[slot];
+            }
+            String trimmed = string.trim();
+            for (int i = 2; i < strings.size(); i++) {
+                if (strings.get(i).trim().equals(trimmed)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the slot of a string, either the slot containing it or the empty slot where it belongs.
+         */
+        private int slot(String string) {
+            int mask = keys.length - 1;
+            int hash = string.hashCode() * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (keys[slot] != null && !keys[slot].equals(string)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void put(String string, int number) {
+            if ((strings.size() + 1) * 2 > keys.length) {
+                // rehash, keep load factor below 0.5
+                String[] oldKeys = keys;
+                int[] oldNumbers = numbers;
+                keys = new String[oldKeys.length * 2];
+                numbers = new int[oldKeys.length * 2];
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != null) {
+                        int slot = slot(oldKeys[i]);
+                        keys[slot] = oldKeys[i];
+                        numbers[slot] = oldNumbers[i];
+                    }
+                }
+            }
+            int slot = slot(string);
+            keys[slot] = string;
+            numbers[slot] = number;
+        }
+
+        /**
+         * Returns all assigned strings ordered by their number (without the reserved numbers).
+         * @return The list of strings.
+         */
+        private List<String> getStrings() {
+            return new ArrayList<>(strings.subList(2, strings.size()));
         }
 
         /**
@@ -145,9 +304,8 @@ public class StringReplacer {
          * @return The original String.
          */
         private String getString(String key) {
-            return replacementMap.get(Integer.valueOf(key));
+            int number = Integer.parseInt(key);
+            return (number >= 0 && number < strings.size()) ? strings.get(number) : null;
         }
     }
 }
-
-